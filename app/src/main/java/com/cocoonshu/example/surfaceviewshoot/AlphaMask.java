@@ -0,0 +1,75 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+/**
+ * Alpha mask
+ * 8-bit alpha plane of a mask, a quarter of the memory of the ARGB
+ * bitmap it is extracted from. Only alpha is used to composite a
+ * captured image, so masks are cached in this form.
+ */
+public class AlphaMask {
+
+    private final int    mWidth;
+    private final int    mHeight;
+    private final byte[] mAlpha;
+
+    public AlphaMask(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Bad mask size " + width + "x" + height);
+        }
+        mWidth  = width;
+        mHeight = height;
+        mAlpha  = new byte[width * height];
+    }
+
+    /**
+     * Keep the alpha channel of ARGB pixels as it is
+     * @param argb   row-major ARGB pixels with stride width
+     * @param offset index of the first pixel
+     */
+    public static AlphaMask fromArgb(int[] argb, int offset, int width, int height) {
+        AlphaMask mask  = new AlphaMask(width, height);
+        byte[]    alpha = mask.mAlpha;
+        for (int i = 0; i < alpha.length; i++) {
+            alpha[i] = (byte) (argb[offset + i] >>> 24);
+        }
+        return mask;
+    }
+
+    /**
+     * Any covered pixel becomes opaque, the same as scaling alpha by 255
+     * with a ColorMatrix, so anti-aliased edges of the layout keep the image
+     * @param argb   row-major ARGB pixels with stride width
+     * @param offset index of the first pixel
+     */
+    public static AlphaMask fromCoverage(int[] argb, int offset, int width, int height) {
+        AlphaMask mask  = new AlphaMask(width, height);
+        byte[]    alpha = mask.mAlpha;
+        for (int i = 0; i < alpha.length; i++) {
+            alpha[i] = (argb[offset + i] >>> 24) == 0 ? 0 : (byte) 0xFF;
+        }
+        return mask;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Row-major alpha values with stride getWidth(), read as unsigned
+     */
+    public byte[] getAlpha() {
+        return mAlpha;
+    }
+
+    public int getAlpha(int x, int y) {
+        return mAlpha[y * mWidth + x] & 0xFF;
+    }
+
+    public int getByteCount() {
+        return mAlpha.length;
+    }
+}
@@ -0,0 +1,427 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Banded renderer
+ * Render a captured JPEG through a mask into a PNG strip by strip, so the
+ * full output is never held. decode() runs on the decode stage: the JPEG is
+ * decoded once at its sampled size if that fits the memory budget, or kept
+ * behind a region decoder otherwise. render() then streams bands on the
+ * writer: the source under a band of output rows is composited and
+ * streamed into PngWriter before the next band is touched, so decoding the
+ * next capture overlaps encoding this one. Peak memory of a capture is
+ * bounded by the memory budget, whatever the sensor size. The decoded
+ * source, the strip bitmap regions are decoded into and the band buffers
+ * all come from a BitmapPool, so steady capturing allocates no large buffer.
+ */
+public class BandedRenderer {
+
+    private static final String TAG                   = "BandedRenderer";
+    private static final String NAME_RENDERER_WORKER  = "BandedRendererWorker";
+    private static final int    BYTES_PER_PIXEL       = 4; // ARGB_8888
+    private static final int    MIN_BAND_ROWS         = 16;
+    public  static final long   DEFAULT_MEMORY_BUDGET = 16 * 1024 * 1024;
+
+    private MaskCompositor  mCompositor    = null;
+    private BitmapPool      mBitmapPool    = null;
+    private long            mMemoryBudget  = DEFAULT_MEMORY_BUDGET;
+    private int             mPngLevel      = PngWriter.DEFAULT_LEVEL;
+    private int             mThreadCount   = 1;
+    private ExecutorService mWorkers       = null;
+    private volatile long   mLastPeakBytes = 0;
+
+    /**
+     * Captured JPEG prepared by decode(), to be rendered and released
+     */
+    public static class Source {
+        private final BitmapPool    mBitmapPool;
+        private final int           mJpegWidth;
+        private final int           mJpegHeight;
+        private final int           mSampleSize;
+        private final int           mSampledWidth;
+        private final int           mSampledHeight;
+        private Bitmap              mDecoded = null;
+        private BitmapRegionDecoder mDecoder = null;
+
+        private Source(BitmapPool bitmapPool, int jpegWidth, int jpegHeight,
+                       int sampleSize, int sampledWidth, int sampledHeight) {
+            mBitmapPool    = bitmapPool;
+            mJpegWidth     = jpegWidth;
+            mJpegHeight    = jpegHeight;
+            mSampleSize    = sampleSize;
+            mSampledWidth  = sampledWidth;
+            mSampledHeight = sampledHeight;
+        }
+
+        /**
+         * Whether the whole sampled source is decoded, rather than decoded band by band
+         */
+        public boolean isDecoded() {
+            return mDecoded != null;
+        }
+
+        /**
+         * Bytes held until release()
+         */
+        public long getDecodedBytes() {
+            return mDecoded != null ? mDecoded.getByteCount() : 0;
+        }
+
+        public void release() {
+            if (mDecoded != null) {
+                mBitmapPool.release(mDecoded);
+                mDecoded = null;
+            }
+            if (mDecoder != null) {
+                mDecoder.recycle();
+                mDecoder = null;
+            }
+        }
+    }
+
+    public BandedRenderer(MaskCompositor compositor, BitmapPool bitmapPool, long memoryBudget, int pngLevel) {
+        this(compositor, bitmapPool, memoryBudget, pngLevel, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param compositor   compositor bands are composited with
+     * @param bitmapPool   pool of decoded sources, strips and band buffers
+     * @param memoryBudget bytes a capture may hold, decoded source, output rows and overlay rows together
+     * @param pngLevel     deflate level of output PNG
+     * @param threadCount  threads deflating PNG chunks
+     */
+    public BandedRenderer(MaskCompositor compositor, BitmapPool bitmapPool, long memoryBudget, int pngLevel,
+                          int threadCount) {
+        mCompositor   = compositor;
+        mBitmapPool   = bitmapPool;
+        mMemoryBudget = Math.max(1, memoryBudget);
+        mPngLevel     = pngLevel;
+        mThreadCount  = Math.max(1, threadCount);
+        if (mThreadCount > 1) {
+            mWorkers = Executors.newFixedThreadPool(mThreadCount, new ThreadFactory() {
+                private final AtomicInteger mIndex = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, NAME_RENDERER_WORKER + "-" + mIndex.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    public String getFileExtension() {
+        return ".png";
+    }
+
+    public long getMemoryBudget() {
+        return mMemoryBudget;
+    }
+
+    /**
+     * Band memory actually held by the last render() call
+     */
+    public long getLastPeakBytes() {
+        return mLastPeakBytes;
+    }
+
+    /**
+     * Decode JPEG for render() onto an output of dstWidth x dstHeight.
+     * The JPEG data isn't referenced anymore when this returns.
+     * @param jpeg       JPEG data
+     * @param length     length of JPEG data
+     * @param jpegWidth  width of JPEG
+     * @param jpegHeight height of JPEG
+     * @param dstWidth   width of the output, i.e. of the mask
+     * @param dstHeight  height of the output
+     * @param transform  rotation and mirror of JPEG onto the output
+     */
+    public Source decode(byte[] jpeg, int length, int jpegWidth, int jpegHeight,
+                         int dstWidth, int dstHeight, CaptureTransform transform) throws IOException {
+        // Sample source down natively by the decoder, the compositor scales the rest
+        DecodePlan plan = DecodePlan.plan(jpegWidth, jpegHeight,
+                transform.getTransformedWidth(dstWidth, dstHeight),
+                transform.getTransformedHeight(dstWidth, dstHeight));
+        int sampleSize    = plan.getSampleSize();
+        int sampledWidth  = (jpegWidth + sampleSize - 1) / sampleSize;
+        int sampledHeight = (jpegHeight + sampleSize - 1) / sampleSize;
+
+        // A region decode has to entropy decode every MCU row above its region,
+        // and with a transposed transform every band spans the whole JPEG
+        // height, so decode the source once whenever it fits the budget
+        long decodedBytes = (long) sampledWidth * sampledHeight * BYTES_PER_PIXEL;
+        long bandBytes    = getBandBytes(Math.min(MIN_BAND_ROWS, dstHeight), sampledWidth, sampledHeight,
+                dstWidth, dstHeight, transform.isTransposed(), true, false);
+        long startTime    = System.nanoTime();
+        if (decodedBytes + bandBytes <= mMemoryBudget) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig  = Bitmap.Config.ARGB_8888;
+            options.inSampleSize       = sampleSize;
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(jpeg, 0, length, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                throw new IOException("Can't read bounds of " + jpegWidth + "x" + jpegHeight + " JPEG");
+            }
+
+            // Decode into a pooled bitmap of the exact sampled size
+            options.inJustDecodeBounds = false;
+            options.inMutable          = true;
+            options.inBitmap           = mBitmapPool.acquire(options.outWidth, options.outHeight, Bitmap.Config.ARGB_8888);
+            Bitmap decoded = decodeInto(jpeg, length, options);
+            if (decoded == null) {
+                mBitmapPool.release(options.inBitmap);
+                throw new IOException("Can't decode " + jpegWidth + "x" + jpegHeight + " JPEG");
+            }
+            Source source = new Source(mBitmapPool, jpegWidth, jpegHeight, sampleSize,
+                    decoded.getWidth(), decoded.getHeight());
+            source.mDecoded = decoded;
+            Log.d(TAG, String.format("[decode] %dx%d / %d decoded once in %.1fms, %dKB",
+                    jpegWidth, jpegHeight, sampleSize, (System.nanoTime() - startTime) / 1e6,
+                    source.getDecodedBytes() / 1024));
+            return source;
+        }
+
+        // Region decoder keeps its own copy of the data
+        Source source = new Source(mBitmapPool, jpegWidth, jpegHeight, sampleSize, sampledWidth, sampledHeight);
+        source.mDecoder = BitmapRegionDecoder.newInstance(jpeg, 0, length, false);
+        Log.d(TAG, String.format("[decode] %dx%d / %d over budget, decoded band by band, indexed in %.1fms",
+                jpegWidth, jpegHeight, sampleSize, (System.nanoTime() - startTime) / 1e6));
+        return source;
+    }
+
+    /**
+     * Render a decoded source through the mask as PNG of the mask size,
+     * the source is left to be released by the caller
+     * @param source     source decoded for the mask size
+     * @param mask       mask of the output size
+     * @param overlay    bitmap of the output size drawn over the output, or null
+     * @param transform  rotation and mirror of JPEG onto the output
+     * @param out        PNG output, left open
+     */
+    public void render(Source source, SpanMask mask, Bitmap overlay, CaptureTransform transform,
+                       OutputStream out) throws IOException {
+        int     dstWidth      = mask.getWidth();
+        int     dstHeight     = mask.getHeight();
+        int     sampleSize    = source.mSampleSize;
+        int     sampledWidth  = source.mSampledWidth;
+        int     sampledHeight = source.mSampledHeight;
+        boolean decodesBands  = !source.isDecoded();
+        int     bandRows      = computeBandRows(mMemoryBudget - source.getDecodedBytes(),
+                sampledWidth, sampledHeight, dstWidth, dstHeight,
+                transform.isTransposed(), overlay != null, decodesBands);
+
+        // Largest source rectangle of a band, so one pooled buffer and strip serve every band
+        int maxBandWidth  = 0;
+        int maxBandHeight = 0;
+        for (int rowBegin = 0; rowBegin < dstHeight; rowBegin += bandRows) {
+            int[] bounds = MaskCompositor.getSourceBounds(sampledWidth, sampledHeight, dstWidth, dstHeight,
+                    transform.getRotation(), rowBegin, Math.min(dstHeight, rowBegin + bandRows));
+            maxBandWidth  = Math.max(maxBandWidth, bounds[2] - bounds[0]);
+            maxBandHeight = Math.max(maxBandHeight, bounds[3] - bounds[1]);
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inSampleSize      = sampleSize;
+        options.inMutable         = true;
+
+        // Regions are decoded into the top left of one pooled strip, which keeps its size
+        int[]  srcBand     = mBitmapPool.acquirePixels(maxBandWidth * maxBandHeight);
+        int[]  dstBand     = mBitmapPool.acquirePixels(dstWidth * bandRows);
+        int[]  overlayBand = overlay != null ? mBitmapPool.acquirePixels(dstWidth * bandRows) : null;
+        Bitmap strip       = decodesBands
+                ? mBitmapPool.acquire(maxBandWidth, maxBandHeight, Bitmap.Config.ARGB_8888) : null;
+        try {
+            PngWriter png          = new PngWriter(out, dstWidth, dstHeight, mPngLevel, mWorkers);
+            long      bandBytes    = (long) BYTES_PER_PIXEL * (srcBand.length + dstBand.length
+                                   + (overlayBand != null ? overlayBand.length : 0))
+                                   + (strip != null ? strip.getByteCount() : 0);
+            long      decodeTimeNs = 0;
+            int       bandCount    = 0;
+            Rect      region       = new Rect();
+            for (int rowBegin = 0; rowBegin < dstHeight; rowBegin += bandRows) {
+                int   rowEnd     = Math.min(dstHeight, rowBegin + bandRows);
+                int[] bounds     = MaskCompositor.getSourceBounds(
+                        sampledWidth, sampledHeight, dstWidth, dstHeight, transform.getRotation(), rowBegin, rowEnd);
+                int   bandWidth  = bounds[2] - bounds[0];
+                int   bandHeight = bounds[3] - bounds[1];
+
+                long startTime = System.nanoTime();
+                if (decodesBands) {
+                    region.set(bounds[0] * sampleSize, bounds[1] * sampleSize,
+                               Math.min(source.mJpegWidth, bounds[2] * sampleSize),
+                               Math.min(source.mJpegHeight, bounds[3] * sampleSize));
+                    options.inBitmap = strip;
+                    Bitmap decoded = source.mDecoder.decodeRegion(region, options);
+                    if (decoded == null) {
+                        throw new IOException("Can't decode region " + region);
+                    }
+                    try {
+                        // Decoder may round the region size, keep the stride of the planned band
+                        // and fill what the region doesn't cover from its edges, not from the last band
+                        int regionWidth  = (region.width() + sampleSize - 1) / sampleSize;
+                        int regionHeight = (region.height() + sampleSize - 1) / sampleSize;
+                        int copiedWidth  = Math.min(Math.min(bandWidth, regionWidth), decoded.getWidth());
+                        int copiedHeight = Math.min(Math.min(bandHeight, regionHeight), decoded.getHeight());
+                        decoded.getPixels(srcBand, 0, bandWidth, 0, 0, copiedWidth, copiedHeight);
+                        extendEdges(srcBand, bandWidth, bandHeight, copiedWidth, copiedHeight);
+                    } finally {
+                        if (decoded != strip) {
+                            decoded.recycle(); // Strip refused, decoded into a new bitmap
+                        }
+                    }
+                } else {
+                    source.mDecoded.getPixels(srcBand, 0, bandWidth, bounds[0], bounds[1], bandWidth, bandHeight);
+                }
+                decodeTimeNs += System.nanoTime() - startTime;
+                bandCount++;
+
+                mCompositor.compositeBand(srcBand, bounds[0], bounds[1], bandWidth, bandHeight,
+                        sampledWidth, sampledHeight, mask,
+                        dstBand, dstWidth, dstHeight, rowBegin, rowEnd, transform);
+                if (overlayBand != null) {
+                    overlay.getPixels(overlayBand, 0, dstWidth, 0, rowBegin, dstWidth, rowEnd - rowBegin);
+                    drawOver(overlayBand, dstBand, dstWidth * (rowEnd - rowBegin));
+                }
+                png.writeRows(dstBand, 0, rowEnd - rowBegin);
+            }
+            png.finish();
+
+            long peakBytes = source.getDecodedBytes() + bandBytes;
+            mLastPeakBytes = peakBytes;
+            Log.d(TAG, String.format("[render] %dx%d / %d -> %dx%d in %d bands of %d rows, %s %.1fms (%.2fms a band), peak %dKB of %dKB, %s",
+                    source.mJpegWidth, source.mJpegHeight, sampleSize, dstWidth, dstHeight, bandCount, bandRows,
+                    decodesBands ? "region decode" : "band copy", decodeTimeNs / 1e6, decodeTimeNs / 1e6 / bandCount,
+                    peakBytes / 1024, mMemoryBudget / 1024, mBitmapPool));
+        } finally {
+            mBitmapPool.releasePixels(srcBand);
+            mBitmapPool.releasePixels(dstBand);
+            mBitmapPool.releasePixels(overlayBand);
+            mBitmapPool.release(strip);
+        }
+    }
+
+    /**
+     * Decode into options.inBitmap, or into a new bitmap if the decoder refuses it
+     */
+    private Bitmap decodeInto(byte[] jpeg, int length, BitmapFactory.Options options) {
+        try {
+            return BitmapFactory.decodeByteArray(jpeg, 0, length, options);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "[decodeInto] Can't decode into pooled bitmap, allocate a new one", e);
+            mBitmapPool.release(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(jpeg, 0, length, options);
+        }
+    }
+
+    /**
+     * Output rows per band so that the source strip of a band, its pixels
+     * and the output rows stay in budget
+     * @param budget       bytes left for bands
+     * @param decodesBands whether every band decodes a strip bitmap besides its pixels
+     */
+    private static int computeBandRows(long budget, int sampledWidth, int sampledHeight, int dstWidth, int dstHeight,
+                                       boolean transposed, boolean hasOverlay, boolean decodesBands) {
+        long roundBytes  = getBandBytes(0, sampledWidth, sampledHeight, dstWidth, dstHeight,
+                transposed, hasOverlay, decodesBands);
+        long bytesPerRow = getBandBytes(1, sampledWidth, sampledHeight, dstWidth, dstHeight,
+                transposed, hasOverlay, decodesBands) - roundBytes;
+        int  bandRows    = (int) Math.max(0, (budget - roundBytes) / Math.max(1, bytesPerRow));
+        return Math.max(Math.min(MIN_BAND_ROWS, dstHeight), Math.min(dstHeight, bandRows));
+    }
+
+    /**
+     * Bytes a band of bandRows output rows holds: source pixels, plus the
+     * strip bitmap they are copied from if decodesBands, plus output and
+     * overlay rows. A band may round up to one more source line, room is
+     * kept for it.
+     */
+    private static long getBandBytes(int bandRows, int sampledWidth, int sampledHeight, int dstWidth, int dstHeight,
+                                     boolean transposed, boolean hasOverlay, boolean decodesBands) {
+        int    alongRow       = transposed ? sampledHeight : sampledWidth;
+        int    alongColumn    = transposed ? sampledWidth : sampledHeight;
+        double srcLinesPerRow = (double) alongColumn / dstHeight;
+        int    srcCopies      = decodesBands ? 2 : 1;
+        double srcBytes       = (double) srcCopies * BYTES_PER_PIXEL * alongRow * (srcLinesPerRow * bandRows + 1);
+        double dstBytes       = (double) BYTES_PER_PIXEL * dstWidth * bandRows * (hasOverlay ? 2 : 1);
+        return (long) Math.ceil(srcBytes + dstBytes);
+    }
+
+    /**
+     * Replicate the last copied column and row of a band over the rest of
+     * it, so pixels outside the copied part are the nearest edge pixels
+     * @param band         band pixels with stride bandWidth
+     * @param copiedWidth  columns copied from the left
+     * @param copiedHeight rows copied from the top
+     */
+    static void extendEdges(int[] band, int bandWidth, int bandHeight, int copiedWidth, int copiedHeight) {
+        if (copiedWidth <= 0 || copiedHeight <= 0) {
+            Arrays.fill(band, 0, bandWidth * bandHeight, 0);
+            return;
+        }
+        if (copiedWidth < bandWidth) {
+            for (int y = 0; y < copiedHeight; y++) {
+                int rowStart = y * bandWidth;
+                Arrays.fill(band, rowStart + copiedWidth, rowStart + bandWidth, band[rowStart + copiedWidth - 1]);
+            }
+        }
+        int lastRowStart = (copiedHeight - 1) * bandWidth;
+        for (int y = copiedHeight; y < bandHeight; y++) {
+            System.arraycopy(band, lastRowStart, band, y * bandWidth, bandWidth);
+        }
+    }
+
+    /**
+     * Source over blending of unpremultiplied ARGB overlay onto destination,
+     * what Canvas.drawBitmap() does with the default Paint
+     */
+    static void drawOver(int[] overlay, int[] dst, int count) {
+        for (int i = 0; i < count; i++) {
+            int color = overlay[i];
+            int alpha = color >>> 24;
+            if (alpha == 0) {
+                continue;
+            } else if (alpha == 0xFF) {
+                dst[i] = color;
+                continue;
+            }
+
+            // Weights of overlay and destination colors, scaled by 255 * 255
+            int back       = dst[i];
+            int overWeight = alpha * 0xFF;
+            int backWeight = (back >>> 24) * (0xFF - alpha);
+            int total      = overWeight + backWeight;
+            int a          = (total + 0x7F) / 0xFF;
+            int r          = blend((color >> 16) & 0xFF, (back >> 16) & 0xFF, overWeight, backWeight, total);
+            int g          = blend((color >> 8) & 0xFF, (back >> 8) & 0xFF, overWeight, backWeight, total);
+            int b          = blend(color & 0xFF, back & 0xFF, overWeight, backWeight, total);
+            dst[i] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    private static int blend(int over, int back, int overWeight, int backWeight, int total) {
+        return (over * overWeight + back * backWeight + total / 2) / total;
+    }
+
+    public void release() {
+        if (mWorkers != null) {
+            mWorkers.shutdown();
+            mWorkers = null;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encoder backed by Bitmap.compress()
+ * Quality is ignored by the platform for PNG.
+ */
+public class BitmapCompressEncoder extends ImageEncoder {
+
+    private Bitmap.CompressFormat mFormat  = null;
+    private int                   mQuality = 100;
+
+    public BitmapCompressEncoder(Bitmap.CompressFormat format, int quality) {
+        mFormat  = format;
+        mQuality = Math.max(0, Math.min(100, quality));
+    }
+
+    @Override
+    public String getFileExtension() {
+        switch (mFormat) {
+            case JPEG:
+                return ".jpg";
+            case WEBP:
+                return ".webp";
+            default:
+                return ".png";
+        }
+    }
+
+    @Override
+    protected void onEncode(Bitmap bitmap, OutputStream out) throws IOException {
+        if (!bitmap.compress(mFormat, mQuality, out)) {
+            throw new IOException("Bitmap.compress() failed for " + mFormat);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bitmap pool
+ * Mutable bitmaps keyed by width, height and config, and int pixel buffers
+ * keyed by length, for the decode, composite and output buffers of every
+ * capture. Captures of one session all have the same sizes, so once each
+ * size has been seen steady-state capturing allocates no large buffer.
+ * Pooled bitmaps can be handed to BitmapFactory.Options.inBitmap.
+ * Every acquired bitmap or buffer should be given back by release().
+ */
+public class BitmapPool {
+
+    private static final int DEFAULT_ITEMS_PER_KEY = 2;
+
+    private final Map<Long, ArrayDeque<Bitmap>>   mFreeBitmaps  = new HashMap<Long, ArrayDeque<Bitmap>>();
+    private final Map<Integer, ArrayDeque<int[]>> mFreePixels   = new HashMap<Integer, ArrayDeque<int[]>>();
+    private final int                             mItemsPerKey;
+    private final AtomicLong                      mHitCount     = new AtomicLong();
+    private final AtomicLong                      mMissCount    = new AtomicLong();
+    private final AtomicLong                      mDiscardCount = new AtomicLong();
+    private long                                  mPooledBytes  = 0;
+    private int                                   mPooledCount  = 0;
+
+    public BitmapPool() {
+        this(DEFAULT_ITEMS_PER_KEY);
+    }
+
+    /**
+     * @param itemsPerKey bitmaps kept per size and config, and buffers per length
+     */
+    public BitmapPool(int itemsPerKey) {
+        mItemsPerKey = Math.max(1, itemsPerKey);
+    }
+
+    /**
+     * Acquire a mutable bitmap, its content is undefined
+     */
+    public Bitmap acquire(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = null;
+        synchronized (this) {
+            ArrayDeque<Bitmap> freeBitmaps = mFreeBitmaps.get(keyOf(width, height, config));
+            if (freeBitmaps != null) {
+                bitmap = freeBitmaps.pollFirst();
+            }
+            if (bitmap != null) {
+                mPooledBytes -= bitmap.getAllocationByteCount();
+                mPooledCount--;
+            }
+        }
+        if (bitmap != null) {
+            mHitCount.incrementAndGet();
+            return bitmap;
+        }
+        mMissCount.incrementAndGet();
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Give a bitmap back to pool, the bitmap is recycled if it isn't kept
+     * @return false if the bitmap isn't poolable or its key is full
+     */
+    public boolean release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return false;
+        }
+        if (bitmap.isMutable() && bitmap.getConfig() != null) {
+            Long key = keyOf(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            synchronized (this) {
+                ArrayDeque<Bitmap> freeBitmaps = mFreeBitmaps.get(key);
+                if (freeBitmaps == null) {
+                    freeBitmaps = new ArrayDeque<Bitmap>(mItemsPerKey);
+                    mFreeBitmaps.put(key, freeBitmaps);
+                }
+                if (freeBitmaps.size() < mItemsPerKey) {
+                    freeBitmaps.offerFirst(bitmap);
+                    mPooledBytes += bitmap.getAllocationByteCount();
+                    mPooledCount++;
+                    return true;
+                }
+            }
+        }
+        mDiscardCount.incrementAndGet();
+        bitmap.recycle();
+        return false;
+    }
+
+    /**
+     * Acquire a pixel buffer of exactly length ints, its content is undefined
+     */
+    public int[] acquirePixels(int length) {
+        int[] pixels = null;
+        synchronized (this) {
+            ArrayDeque<int[]> freePixels = mFreePixels.get(length);
+            if (freePixels != null) {
+                pixels = freePixels.pollFirst();
+            }
+            if (pixels != null) {
+                mPooledBytes -= (long) pixels.length * 4;
+                mPooledCount--;
+            }
+        }
+        if (pixels != null) {
+            mHitCount.incrementAndGet();
+            return pixels;
+        }
+        mMissCount.incrementAndGet();
+        return new int[length];
+    }
+
+    /**
+     * Give a pixel buffer back to pool
+     * @return false if the buffer length is full
+     */
+    public boolean releasePixels(int[] pixels) {
+        if (pixels == null) {
+            return false;
+        }
+        synchronized (this) {
+            ArrayDeque<int[]> freePixels = mFreePixels.get(pixels.length);
+            if (freePixels == null) {
+                freePixels = new ArrayDeque<int[]>(mItemsPerKey);
+                mFreePixels.put(pixels.length, freePixels);
+            }
+            if (freePixels.size() < mItemsPerKey) {
+                freePixels.offerFirst(pixels);
+                mPooledBytes += (long) pixels.length * 4;
+                mPooledCount++;
+                return true;
+            }
+        }
+        mDiscardCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Recycle and drop every pooled bitmap and buffer
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<Bitmap> freeBitmaps : mFreeBitmaps.values()) {
+            for (Bitmap bitmap : freeBitmaps) {
+                bitmap.recycle();
+            }
+        }
+        mFreeBitmaps.clear();
+        mFreePixels.clear();
+        mPooledBytes = 0;
+        mPooledCount = 0;
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    public long getDiscardCount() {
+        return mDiscardCount.get();
+    }
+
+    /**
+     * Acquires served from the pool
+     */
+    public double getReuseRate() {
+        long hits  = mHitCount.get();
+        long total = hits + mMissCount.get();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * Bitmaps and buffers waiting in the pool
+     */
+    public synchronized int getPooledCount() {
+        return mPooledCount;
+    }
+
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BitmapPool{hit=%d, miss=%d, discard=%d, reuse=%.0f%%, pooled=%d/%dKB}",
+                getHitCount(), getMissCount(), getDiscardCount(), getReuseRate() * 100,
+                getPooledCount(), getPooledBytes() / 1024);
+    }
+
+    private static Long keyOf(int width, int height, Bitmap.Config config) {
+        return ((long) width << 36) | ((long) height << 8) | config.ordinal();
+    }
+}
@@ -0,0 +1,134 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size classed byte array pool
+ * Arrays are handed out in power-of-two size classes, so a buffer released
+ * by one capture can be reused by the next one even when the JPEG size
+ * varies slightly. Every acquired buffer should be given back by release().
+ */
+public class ByteArrayPool {
+
+    private static final int MIN_SIZE_CLASS_SHIFT     = 16; // 64KB
+    private static final int MAX_SIZE_CLASS_SHIFT     = 30; // 1GB
+    private static final int DEFAULT_BUFFERS_PER_SIZE = 2;
+
+    private final ArrayDeque<byte[]>[] mFreeBuffers;
+    private final int                  mBuffersPerSize;
+    private final AtomicLong           mHitCount       = new AtomicLong();
+    private final AtomicLong           mMissCount      = new AtomicLong();
+    private final AtomicLong           mDiscardCount   = new AtomicLong();
+
+    public ByteArrayPool() {
+        this(DEFAULT_BUFFERS_PER_SIZE);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ByteArrayPool(int buffersPerSize) {
+        mBuffersPerSize = Math.max(1, buffersPerSize);
+        mFreeBuffers    = new ArrayDeque[MAX_SIZE_CLASS_SHIFT - MIN_SIZE_CLASS_SHIFT + 1];
+        for (int i = 0; i < mFreeBuffers.length; i++) {
+            mFreeBuffers[i] = new ArrayDeque<byte[]>(mBuffersPerSize);
+        }
+    }
+
+    /**
+     * Acquire a buffer which can hold at least minSize bytes.
+     * The returned array may be longer than requested.
+     */
+    public byte[] acquire(int minSize) {
+        int sizeClass = sizeClassOf(minSize);
+        if (sizeClass < 0) {
+            mMissCount.incrementAndGet();
+            return new byte[minSize];
+        }
+
+        byte[] buffer = null;
+        synchronized (mFreeBuffers) {
+            buffer = mFreeBuffers[sizeClass].pollFirst();
+        }
+        if (buffer != null) {
+            mHitCount.incrementAndGet();
+            return buffer;
+        } else {
+            mMissCount.incrementAndGet();
+            return new byte[1 << (sizeClass + MIN_SIZE_CLASS_SHIFT)];
+        }
+    }
+
+    /**
+     * Give a buffer back to pool
+     * @return false if the buffer is not poolable or its size class is full
+     */
+    public boolean release(byte[] buffer) {
+        if (buffer == null) {
+            return false;
+        }
+        int sizeClass = sizeClassOf(buffer.length);
+        if (sizeClass < 0 || buffer.length != 1 << (sizeClass + MIN_SIZE_CLASS_SHIFT)) {
+            mDiscardCount.incrementAndGet();
+            return false;
+        }
+
+        synchronized (mFreeBuffers) {
+            ArrayDeque<byte[]> freeBuffers = mFreeBuffers[sizeClass];
+            if (freeBuffers.size() < mBuffersPerSize) {
+                freeBuffers.offerFirst(buffer);
+                return true;
+            }
+        }
+        mDiscardCount.incrementAndGet();
+        return false;
+    }
+
+    public void clear() {
+        synchronized (mFreeBuffers) {
+            for (ArrayDeque<byte[]> freeBuffers : mFreeBuffers) {
+                freeBuffers.clear();
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    public long getDiscardCount() {
+        return mDiscardCount.get();
+    }
+
+    public long getPooledBytes() {
+        long bytes = 0;
+        synchronized (mFreeBuffers) {
+            for (int i = 0; i < mFreeBuffers.length; i++) {
+                bytes += (long) mFreeBuffers[i].size() << (i + MIN_SIZE_CLASS_SHIFT);
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "ByteArrayPool{hit=" + getHitCount()
+                + ", miss=" + getMissCount()
+                + ", discard=" + getDiscardCount()
+                + ", pooled=" + getPooledBytes() + "B}";
+    }
+
+    private static int sizeClassOf(int size) {
+        if (size <= 0) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        if (shift > MAX_SIZE_CLASS_SHIFT) {
+            return -1;
+        }
+        return Math.max(shift, MIN_SIZE_CLASS_SHIFT) - MIN_SIZE_CLASS_SHIFT;
+    }
+}
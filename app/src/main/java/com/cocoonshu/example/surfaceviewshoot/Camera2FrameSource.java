@@ -0,0 +1,141 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.view.Surface;
+
+/**
+ * Camera2 frame source
+ * Frames of an ImageReader which a camera2 session outputs to. Each image
+ * is delivered as a Frame on the handler thread and given back to the
+ * reader as soon as the listener returns, unless the listener retains the
+ * frame. One image is always left to the camera, so fewer than maxImages
+ * frames can be retained at once. The reader outlives stop() until the
+ * last retained frame is released, so their data stays valid.
+ */
+public class Camera2FrameSource implements FrameSource {
+
+    private ImageReader    mImageReader  = null;
+    private Handler        mHandler      = null;
+    private DeferredCloser mReaderCloser = null;
+
+    /**
+     * Keeps an image open while its frame is retained
+     */
+    private class ImageOwner implements Frame.Owner {
+        private final Image      mImage;
+        private volatile boolean mRetained = false;
+
+        ImageOwner(Image image) {
+            mImage = image;
+        }
+
+        @Override
+        public boolean retain() {
+            mRetained = mReaderCloser.acquire();
+            return mRetained;
+        }
+
+        @Override
+        public void release() {
+            // Image first, the reader may be closed right after the last one
+            mImage.close();
+            mReaderCloser.release();
+        }
+    }
+
+    /**
+     * @param width     width of frames
+     * @param height    height of frames
+     * @param format    Frame.FORMAT_JPEG or Frame.FORMAT_YUV_420_888
+     * @param maxImages images the camera may hold in the reader at once
+     * @param handler   handler frames are delivered on
+     */
+    public Camera2FrameSource(int width, int height, int format, int maxImages, Handler handler) {
+        if (format != Frame.FORMAT_JPEG && format != Frame.FORMAT_YUV_420_888) {
+            throw new IllegalArgumentException("Unsupported frame format 0x" + Integer.toHexString(format));
+        }
+        mImageReader  = ImageReader.newInstance(width, height, format, maxImages);
+        mHandler      = handler;
+        mReaderCloser = new DeferredCloser(maxImages - 1, new Runnable() {
+            @Override
+            public void run() {
+                mImageReader.close();
+            }
+        });
+    }
+
+    /**
+     * Surface to add as a target of capture requests
+     */
+    public Surface getSurface() {
+        return mImageReader.getSurface();
+    }
+
+    /**
+     * Whether the reader outputs frames of this size and format, so it can
+     * be attached to a new session instead of being recreated
+     */
+    public boolean matches(int width, int height, int format) {
+        return mImageReader.getWidth() == width
+            && mImageReader.getHeight() == height
+            && mImageReader.getImageFormat() == format;
+    }
+
+    @Override
+    public void start(final Listener listener) {
+        mImageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                Image image = reader.acquireNextImage();
+                if (image == null) {
+                    return;
+                }
+                ImageOwner owner = new ImageOwner(image);
+                Frame      frame = toFrame(image);
+                frame.setOwner(owner);
+                try {
+                    listener.onFrameAvailable(frame);
+                } finally {
+                    // Give the image back to reader as soon as possible, or next capture will stall
+                    if (!owner.mRetained) {
+                        image.close();
+                    }
+                }
+            }
+        }, mHandler);
+    }
+
+    private static Frame toFrame(Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        if (image.getFormat() != Frame.FORMAT_YUV_420_888) {
+            return new Frame(image.getFormat(), planes[0].getBuffer(),
+                    image.getWidth(), image.getHeight(), image.getTimestamp(), null);
+        }
+
+        // Planes are handed over as they are, strides and all
+        Frame.Plane[] framePlanes = new Frame.Plane[planes.length];
+        for (int i = 0; i < planes.length; i++) {
+            framePlanes[i] = new Frame.Plane(planes[i].getBuffer(), planes[i].getRowStride(), planes[i].getPixelStride());
+        }
+        return new Frame(framePlanes, image.getWidth(), image.getHeight(), image.getTimestamp(), null);
+    }
+
+    /**
+     * Frames retained and not released yet
+     */
+    public int getRetainedCount() {
+        return mReaderCloser.getUserCount();
+    }
+
+    /**
+     * Stop delivering frames and close the reader, the source can't be started again.
+     * While frames are retained, the reader is closed when the last of them is released.
+     */
+    @Override
+    public void stop() {
+        mImageReader.setOnImageAvailableListener(null, null);
+        mReaderCloser.close();
+    }
+}
@@ -0,0 +1,299 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
+import android.util.Log;
+import android.util.Size;
+import android.view.SurfaceHolder;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Camera capability index
+ * What CameraHelper needs to know of every camera, queried from
+ * CameraManager once and persisted to app storage keyed by the device
+ * fingerprint, so camera selection on later starts is a lookup.
+ * A system update changes the fingerprint and rebuilds the index.
+ */
+public class CameraCapabilityIndex {
+
+    private static final String TAG                  = "CameraCapabilityIndex";
+    private static final String INDEX_FILE_NAME      = "camera_capabilities.json";
+    private static final int    INDEX_VERSION        = 2;
+    private static final String KEY_VERSION          = "version";
+    private static final String KEY_FINGERPRINT      = "fingerprint";
+    private static final String KEY_CAMERAS          = "cameras";
+    private static final String KEY_ID               = "id";
+    private static final String KEY_FACING           = "facing";
+    private static final String KEY_ORIENTATION      = "sensorOrientation";
+    private static final String KEY_TIMESTAMP_SOURCE = "timestampSource";
+    private static final String KEY_JPEG_SIZES       = "jpegSizes";
+    private static final String KEY_YUV_SIZES        = "yuvSizes";
+    private static final String KEY_PREVIEW_SIZES    = "previewSizes";
+
+    private List<CameraInfo> mCameras   = new ArrayList<CameraInfo>();
+    private boolean          mFromCache = false;
+
+    public static class CameraInfo {
+        private String mId                = null;
+        private int    mFacing            = CameraCharacteristics.LENS_FACING_BACK;
+        private int    mSensorOrientation = 0;
+        private int    mTimestampSource   = CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_UNKNOWN;
+        private Size[] mJpegSizes         = new Size[0];
+        private Size[] mYuvSizes          = new Size[0];
+        private Size[] mPreviewSizes      = new Size[0];
+
+        public String getId() {
+            return mId;
+        }
+
+        public int getFacing() {
+            return mFacing;
+        }
+
+        public int getSensorOrientation() {
+            return mSensorOrientation;
+        }
+
+        public int getTimestampSource() {
+            return mTimestampSource;
+        }
+
+        public Size[] getJpegSizes() {
+            return mJpegSizes;
+        }
+
+        public Size[] getYuvSizes() {
+            return mYuvSizes;
+        }
+
+        /**
+         * Sizes the camera can stream to a SurfaceHolder
+         */
+        public Size[] getPreviewSizes() {
+            return mPreviewSizes;
+        }
+
+        public Size getLargestJpegSize() {
+            return findLargest(mJpegSizes);
+        }
+    }
+
+    private CameraCapabilityIndex() {
+
+    }
+
+    /**
+     * Load index from app storage, or build it from CameraManager and
+     * persist it if there is no index for the current device fingerprint
+     */
+    public static CameraCapabilityIndex load(Context context, CameraManager cameraManager) throws CameraAccessException {
+        File                  indexFile = new File(context.getFilesDir(), INDEX_FILE_NAME);
+        CameraCapabilityIndex index     = readFrom(indexFile);
+        if (index != null) {
+            return index;
+        }
+
+        index = build(cameraManager);
+        writeTo(index, indexFile);
+        return index;
+    }
+
+    /**
+     * Forget persisted index, next load() queries CameraManager again
+     */
+    public static void invalidate(Context context) {
+        new File(context.getFilesDir(), INDEX_FILE_NAME).delete();
+    }
+
+    public static CameraCapabilityIndex build(CameraManager cameraManager) throws CameraAccessException {
+        CameraCapabilityIndex index     = new CameraCapabilityIndex();
+        String[]              cameraIds = cameraManager.getCameraIdList();
+        for (String cameraId : cameraIds) {
+            CameraCharacteristics  identify  = cameraManager.getCameraCharacteristics(cameraId);
+            StreamConfigurationMap configMap = identify.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            Integer                facing    = identify.get(CameraCharacteristics.LENS_FACING);
+            Integer                rotation  = identify.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            Integer                source    = identify.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            if (configMap == null || facing == null) {
+                continue;
+            }
+
+            CameraInfo camera = new CameraInfo();
+            camera.mId                = cameraId;
+            camera.mFacing            = facing;
+            camera.mSensorOrientation = rotation == null ? 0 : rotation;
+            camera.mTimestampSource   = source == null ? CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_UNKNOWN : source;
+            camera.mJpegSizes         = nonNull(configMap.getOutputSizes(ImageFormat.JPEG));
+            camera.mYuvSizes          = nonNull(configMap.getOutputSizes(ImageFormat.YUV_420_888));
+            camera.mPreviewSizes      = nonNull(configMap.getOutputSizes(SurfaceHolder.class));
+            index.mCameras.add(camera);
+        }
+        return index;
+    }
+
+    public boolean isFromCache() {
+        return mFromCache;
+    }
+
+    public List<CameraInfo> getCameras() {
+        return Collections.unmodifiableList(mCameras);
+    }
+
+    /**
+     * First camera facing the given direction which can output JPEG
+     * @param facing CameraCharacteristics.LENS_FACING_*
+     * @return camera, or null if none
+     */
+    public CameraInfo findCamera(int facing) {
+        for (CameraInfo camera : mCameras) {
+            if (camera.mFacing == facing && camera.mJpegSizes.length > 0) {
+                return camera;
+            }
+        }
+        return null;
+    }
+
+    private static CameraCapabilityIndex readFrom(File indexFile) {
+        if (!indexFile.exists()) {
+            return null;
+        }
+
+        try {
+            JSONObject root = new JSONObject(readText(indexFile));
+            if (root.optInt(KEY_VERSION) != INDEX_VERSION
+                    || !Build.FINGERPRINT.equals(root.optString(KEY_FINGERPRINT))) {
+                return null;
+            }
+
+            CameraCapabilityIndex index   = new CameraCapabilityIndex();
+            JSONArray             cameras = root.getJSONArray(KEY_CAMERAS);
+            for (int i = 0; i < cameras.length(); i++) {
+                JSONObject item   = cameras.getJSONObject(i);
+                CameraInfo camera = new CameraInfo();
+                camera.mId                = item.getString(KEY_ID);
+                camera.mFacing            = item.getInt(KEY_FACING);
+                camera.mSensorOrientation = item.getInt(KEY_ORIENTATION);
+                camera.mTimestampSource   = item.getInt(KEY_TIMESTAMP_SOURCE);
+                camera.mJpegSizes         = toSizes(item.getJSONArray(KEY_JPEG_SIZES));
+                camera.mYuvSizes          = toSizes(item.getJSONArray(KEY_YUV_SIZES));
+                camera.mPreviewSizes      = toSizes(item.getJSONArray(KEY_PREVIEW_SIZES));
+                index.mCameras.add(camera);
+            }
+            index.mFromCache = true;
+            return index;
+        } catch (JSONException e) {
+            Log.w(TAG, "[readFrom] Broken index, rebuild it", e);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "[readFrom] Broken size in index, rebuild it", e);
+        } catch (IOException e) {
+            Log.w(TAG, "[readFrom] Can't read index, rebuild it", e);
+        }
+        return null;
+    }
+
+    private static void writeTo(CameraCapabilityIndex index, File indexFile) {
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try {
+            JSONArray cameras = new JSONArray();
+            for (CameraInfo camera : index.mCameras) {
+                JSONObject item = new JSONObject();
+                item.put(KEY_ID, camera.mId);
+                item.put(KEY_FACING, camera.mFacing);
+                item.put(KEY_ORIENTATION, camera.mSensorOrientation);
+                item.put(KEY_TIMESTAMP_SOURCE, camera.mTimestampSource);
+                item.put(KEY_JPEG_SIZES, toJson(camera.mJpegSizes));
+                item.put(KEY_YUV_SIZES, toJson(camera.mYuvSizes));
+                item.put(KEY_PREVIEW_SIZES, toJson(camera.mPreviewSizes));
+                cameras.put(item);
+            }
+
+            JSONObject root = new JSONObject();
+            root.put(KEY_VERSION, INDEX_VERSION);
+            root.put(KEY_FINGERPRINT, Build.FINGERPRINT);
+            root.put(KEY_CAMERAS, cameras);
+
+            OutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(root.toString().getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(indexFile)) {
+                Log.w(TAG, "[writeTo] Can't replace " + indexFile);
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "[writeTo] Can't persist index", e);
+        } catch (IOException e) {
+            Log.w(TAG, "[writeTo] Can't persist index", e);
+        }
+    }
+
+    private static String readText(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int    read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            return new String(data, 0, read, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static JSONArray toJson(Size[] sizes) {
+        JSONArray array = new JSONArray();
+        for (Size size : sizes) {
+            array.put(size.toString());
+        }
+        return array;
+    }
+
+    private static Size[] toSizes(JSONArray array) throws JSONException {
+        Size[] sizes = new Size[array.length()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = Size.parseSize(array.getString(i));
+        }
+        return sizes;
+    }
+
+    private static Size[] nonNull(Size[] sizes) {
+        return sizes == null ? new Size[0] : sizes;
+    }
+
+    static Size findLargest(Size[] sizes) {
+        Size largest = null;
+        long maxArea = 0;
+        for (Size size : sizes) {
+            long area = (long) size.getWidth() * size.getHeight();
+            if (maxArea < area) {
+                maxArea = area;
+                largest = size;
+            }
+        }
+        return largest;
+    }
+}
@@ -6,7 +6,6 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.ImageFormat;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCaptureSession.CaptureCallback;
@@ -17,19 +16,23 @@ import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
-import android.hardware.camera2.params.StreamConfigurationMap;
-import android.media.ImageReader;
-import android.media.ImageReader.OnImageAvailableListener;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 import android.view.SurfaceHolder;
+import android.view.WindowManager;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Camera helper
@@ -46,7 +49,10 @@ import java.util.Arrays;
 
 public class CameraHelper {
 
+    private static final String   TAG                              = "CameraHelper";
     private static final String   NAME_CAMERA_HELPER_HANDLER       = "CameraHelperHandler";
+    private static final int      CAPTURE_MAX_IMAGES               = 4;
+    private static final int      ZSL_JPEG_BYTES_DIVISOR           = 2; // Budget of 4 bits per pixel
     private static final String[] CameraPermissions                = new String[] {
             Manifest.permission.CAMERA,
             Manifest.permission.WRITE_EXTERNAL_STORAGE};
@@ -58,31 +64,70 @@ public class CameraHelper {
     public  static final int      ERR_NO_ACCESS_TO_OPEN_CAMERA     = 0xB003;
     public  static final int      ERR_CONFIG_CAMERA_SESSION_FAILED = 0xB004;
     public  static final int      ERR_WRONG_STATE                  = 0xB005;
+    public  static final int      ERR_NO_SUITABLE_CAMERA           = 0xB006;
     public  static final int      STATE_OPENING                    = 1;
     public  static final int      STATE_OPEN                       = 2;
     public  static final int      STATE_CLOSING                    = 3;
     public  static final int      STATE_CLOSED                     = 4;
+    public  static final int      STATE_WARM                       = 5; // Camera open, preview stopped
 
-    private HandlerThread                       mCameraStreamHandlerThread = null;
-    private Handler                             mCameraStreamHandler       = null;
-    private Handler                             mUiHandler                 = null;
-    private CameraManager                       mCameraManager             = null;
-    private CameraDevice                        mCamera                    = null;
-    private CameraCaptureSession                mCameraSession             = null;
-    private CaptureRequest.Builder              mPreviewRequest            = null;
-    private CaptureRequest.Builder              mCaptureRequest            = null;
-    private SurfaceHolder                       mPreviewSurfaceHolder      = null;
-    private CameraDevice.StateCallback          mCameraStateListener       = null;
-    private CaptureCallback                     mCameraCaptureListener     = null;
-    private CameraCaptureSession.StateCallback  mSessionStateListener      = null;
-    private OnImageAvailableListener            mImageReaderListener       = null;
-    private OnErrorListener                     mOnErrorListener           = null;
-    private OnCapturedListener                  mOnCapturedListener        = null;
-    private RequestPermissionCallback           mRequestPermissionCallback = null;
-    private Size                                mOutputSize                = null;
-    private Size                                mSuggestPreviewSize        = null;
-    private String                              mCameraId                  = null;
-    private int                                 mOperationState            = STATE_CLOSED;
+    private Context                                              mContext                   = null;
+    private HandlerThread                                        mCameraStreamHandlerThread = null;
+    private volatile Handler                                     mCameraStreamHandler       = null;
+    private Handler                                              mUiHandler                 = null;
+    private CameraManager                                        mCameraManager             = null;
+    private volatile CameraDevice                                mCamera                    = null;
+    private volatile CameraCaptureSession                        mCameraSession             = null;
+    private CaptureRequest.Builder                               mPreviewRequest            = null;
+    private CaptureRequest.Builder                               mCaptureRequest            = null;
+    private volatile SurfaceHolder                               mPreviewSurfaceHolder      = null;
+    private CameraDevice.StateCallback                           mCameraStateListener       = null;
+    private CaptureCallback                                      mCameraCaptureListener     = null;
+    private CameraCaptureSession.StateCallback                   mSessionStateListener      = null;
+    private CaptureCallback                                      mStillCaptureListener      = null;
+    private FrameSource.Listener                                 mFrameListener             = null;
+    private Camera2FrameSource                                   mCameraFrameSource         = null;
+    private volatile FrameSource                                 mFrameSource               = null;
+    private OnErrorListener                                      mOnErrorListener           = null;
+    private OnCapturedListener                                   mOnCapturedListener        = null;
+    private volatile OnCapturedJpegListener                      mOnCapturedJpegListener    = null;
+    private volatile OnCapturedPixelsListener                    mOnCapturedPixelsListener  = null;
+    private volatile OnCapturedBufferListener                    mOnCapturedBufferListener  = null;
+    private RequestPermissionCallback                            mRequestPermissionCallback = null;
+    private OnStartupTracedListener                              mOnStartupTracedListener   = null;
+    private volatile CameraStartupTrace                          mStartupTrace              = new CameraStartupTrace();
+    private Size                                                 mOutputSize                = null;
+    private int                                                  mCaptureFormat             = Frame.FORMAT_JPEG;
+    private YuvConverter                                         mYuvConverter              = new YuvConverter();
+    private Size                                                 mSuggestPreviewSize        = null;
+    private SizeSelector                                         mSizeSelector              = new SizeSelector();
+    private volatile CaptureTransform                            mCaptureTransform          = CaptureTransform.IDENTITY;
+    private String                                               mCameraId                  = null;
+    private CameraLifecycle<SurfaceHolder>                       mLifecycle                 = null;
+    private volatile FrameSource                                 mRunningFrameSource        = null;
+    private ByteArrayPool                                        mJpegBufferPool            = new ByteArrayPool();
+    private BitmapPool                                           mBitmapPool                = new BitmapPool();
+    private DecodePlan                                           mLastDecodePlan            = null;
+    private CapturePipeline                                      mCapturePipeline           = new CapturePipeline();
+    private CaptureStages<CapturedFrame, DecodedFrame, Void>     mCaptureStages             = null;
+    private Queue<CaptureTimeline>                               mPendingTimelines          = new ConcurrentLinkedQueue<CaptureTimeline>();
+    private CaptureLatencyStats                                  mLatencyStats              = new CaptureLatencyStats();
+    private volatile FrameRingBuffer                             mZslRing                   = null;
+    private int                                                  mZslDepth                  = 0;
+    private int                                                  mTimestampSource           = CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_UNKNOWN;
+    private CameraCapabilityIndex                                mCapabilityIndex           = null;
+    private long                                                 mCameraSelectionTimeNs     = 0;
+    private volatile int                                         mDecodeTargetWidth         = 0;
+    private volatile int                                         mDecodeTargetHeight        = 0;
+    private volatile long                                        mKeepAliveMs               = 0;
+    private Runnable                                             mKeepAliveCloser           = null;
+    private LatencyHistogram                                     mColdStartHistogram        = new LatencyHistogram();
+    private LatencyHistogram                                     mWarmStartHistogram        = new LatencyHistogram();
+    private ConvergenceTrigger                                   mConvergenceTrigger        = new ConvergenceTrigger();
+    private volatile boolean                                     mWaitForConvergence        = true;
+    private volatile CaptureTimeline                             mArmedTimeline             = null;
+    private boolean                                              mAfTriggered               = false;
+    private Runnable                                             mConvergenceTimeout        = null;
 
     public interface RequestPermissionCallback {
         boolean onRequestCameraPermission(String[] permission, int requestID);
@@ -93,10 +138,128 @@ public class CameraHelper {
     }
 
     public interface OnCapturedListener {
-        void onCaptured(Bitmap bitmap);
+        /**
+         * Called on the composite stage thread
+         * @param bitmap   decoded picture, valid only during this call, it goes
+         *                 back to getBitmapPool() when the call returns
+         * @param timeline timeline of this shot, mark composited and written
+         *                 on it and record it to getCaptureLatencyStats()
+         */
+        void onCaptured(Bitmap bitmap, CaptureTimeline timeline);
+    }
+
+    public interface OnCapturedJpegListener {
+        /**
+         * Called on the decode stage thread instead of decoding the picture,
+         * for consumers which decode it themselves, e.g. region by region
+         * @param data     JPEG data, owned by the listener from now on and
+         *                 to be released to getJpegBufferPool() when done
+         * @param length   length of JPEG data
+         * @param width    width of JPEG
+         * @param height   height of JPEG
+         * @param timeline timeline of this shot
+         */
+        void onCapturedJpeg(byte[] data, int length, int width, int height, CaptureTimeline timeline);
+    }
+
+    public interface OnCapturedPixelsListener {
+        /**
+         * Called on the composite stage thread instead of OnCapturedListener
+         * for pictures captured as YUV, which are converted to ARGB pixels
+         * without going through a Bitmap
+         * @param argb     opaque ARGB pixels, row-major with stride width,
+         *                 valid only during this call, the buffer goes back
+         *                 to getBitmapPool() when the call returns
+         * @param width    width of picture
+         * @param height   height of picture
+         * @param timeline timeline of this shot
+         */
+        void onCapturedPixels(int[] argb, int width, int height, CaptureTimeline timeline);
+    }
+
+    public interface OnCapturedBufferListener {
+        /**
+         * Called on the camera thread instead of decoding a JPEG capture,
+         * for saving the original picture as it is. Return quickly, the next
+         * capture is delivered on this thread too.
+         * @param frame    JPEG frame, retained for the listener which must
+         *                 release() it once done, e.g. after writing it with
+         *                 ImageWriter.write(Frame, ...). Data stays in the
+         *                 camera Image if the reader can spare it, or is
+         *                 copied to a pooled buffer otherwise.
+         * @param timeline timeline of this shot
+         */
+        void onCapturedBuffer(Frame frame, CaptureTimeline timeline);
+    }
+
+    public interface OnStartupTracedListener {
+        void onStartupTraced(CameraStartupTrace trace);
+    }
+
+    /**
+     * JPEG or YUV bytes copied out of a captured Image, data is owned by mJpegBufferPool
+     */
+    private static class CapturedFrame implements CaptureStages.Shot {
+        final byte[]              data;
+        final int                 length;
+        final int                 width;
+        final int                 height;
+        final YuvConverter.Layout layout; // Null for JPEG
+        final CaptureTimeline     timeline;
+
+        CapturedFrame(byte[] data, int length, int width, int height, CaptureTimeline timeline) {
+            this(data, length, width, height, null, timeline);
+        }
+
+        CapturedFrame(byte[] data, int length, int width, int height, YuvConverter.Layout layout, CaptureTimeline timeline) {
+            this.data     = data;
+            this.length   = length;
+            this.width    = width;
+            this.height   = height;
+            this.layout   = layout;
+            this.timeline = timeline;
+        }
+
+        @Override
+        public CaptureTimeline getTimeline() {
+            return timeline;
+        }
+    }
+
+    /**
+     * Decoded bitmap of a JPEG capture, or converted pixels of a YUV capture
+     */
+    private static class DecodedFrame implements CaptureStages.Shot {
+        final Bitmap          bitmap;
+        final int[]           pixels;
+        final int             width;
+        final int             height;
+        final CaptureTimeline timeline;
+
+        DecodedFrame(Bitmap bitmap, CaptureTimeline timeline) {
+            this.bitmap   = bitmap;
+            this.pixels   = null;
+            this.width    = bitmap.getWidth();
+            this.height   = bitmap.getHeight();
+            this.timeline = timeline;
+        }
+
+        DecodedFrame(int[] pixels, int width, int height, CaptureTimeline timeline) {
+            this.bitmap   = null;
+            this.pixels   = pixels;
+            this.width    = width;
+            this.height   = height;
+            this.timeline = timeline;
+        }
+
+        @Override
+        public CaptureTimeline getTimeline() {
+            return timeline;
+        }
     }
 
     public CameraHelper(Context context) {
+        mContext       = context.getApplicationContext();
         mCameraManager = (CameraManager) context.getSystemService(Service.CAMERA_SERVICE);
         mUiHandler     = new Handler(Looper.getMainLooper());
         initializeComponentFlows();
@@ -122,10 +285,120 @@ public class CameraHelper {
         mCameraStreamHandler = null;
     }
 
+    /**
+     * Preview size selected by the last setupCamera(), natively supported
+     * by the camera for a SurfaceHolder, in sensor orientation
+     */
     public Size getSuggestPreviewSize() {
         return mSuggestPreviewSize;
     }
 
+    /**
+     * Capture size selected by the last setupCamera(), in sensor orientation
+     */
+    public Size getOutputSize() {
+        return mOutputSize;
+    }
+
+    /**
+     * Policy capture and preview sizes are selected by, changes
+     * take effect on next setupCamera()
+     */
+    public SizeSelector getSizeSelector() {
+        return mSizeSelector;
+    }
+
+    /**
+     * Set the size captured image will be consumed at, in display orientation.
+     * Captured JPEG is decoded to the smallest size covering it,
+     * set 0 to decode at full size. The next setupCamera() also selects
+     * the capture size by it.
+     */
+    public void setDecodeTargetSize(int width, int height) {
+        mDecodeTargetWidth  = width;
+        mDecodeTargetHeight = height;
+    }
+
+    /**
+     * Transform which turns captured pictures upright on the display, from
+     * the sensor orientation and lens facing of the camera selected by the
+     * last setupCamera() and the display rotation at that time
+     */
+    public CaptureTransform getCaptureTransform() {
+        return mCaptureTransform;
+    }
+
+    /**
+     * Plan of the last decoded capture, with its estimated peak heap
+     */
+    public DecodePlan getLastDecodePlan() {
+        return mLastDecodePlan;
+    }
+
+    /**
+     * Decode and composite stages captured frames go through,
+     * append further stages to have them reported together
+     */
+    public CapturePipeline getCapturePipeline() {
+        return mCapturePipeline;
+    }
+
+    /**
+     * Configure the queue captured frames wait in for processing. Frames are
+     * queued from the camera thread, which a full queue never blocks unless
+     * policy is POLICY_BLOCK. Frames still queued are dropped by the change.
+     * @param queueDepth frames which may wait for processing
+     * @param policy     PipelineStage.POLICY_DROP_OLDEST, POLICY_REJECT or POLICY_BLOCK
+     */
+    public void setProcessingQueue(int queueDepth, int policy) {
+        mCaptureStages.setDecodeQueue(queueDepth, policy);
+    }
+
+    /**
+     * Frames waiting for processing now
+     */
+    public int getProcessingQueueDepth() {
+        return mCaptureStages.getDecodeStage().getQueueDepth();
+    }
+
+    public int getProcessingPolicy() {
+        return mCaptureStages.getDecodeStage().getPolicy();
+    }
+
+    /**
+     * Frames dropped by the processing queue since it was configured
+     */
+    public long getDroppedFrameCount() {
+        return mCaptureStages.getDecodeStage().getDroppedCount();
+    }
+
+    public long getProcessedFrameCount() {
+        return mCaptureStages.getDecodeStage().getProcessedCount();
+    }
+
+    /**
+     * Per stage latency histograms of recorded shots, from press to written file
+     */
+    public CaptureLatencyStats getCaptureLatencyStats() {
+        return mLatencyStats;
+    }
+
+    /**
+     * Pool of JPEG and YUV copy buffers, watch its hit and miss counters
+     * to see how many buffers are allocated per capture
+     */
+    public ByteArrayPool getJpegBufferPool() {
+        return mJpegBufferPool;
+    }
+
+    /**
+     * Pool of decoded bitmaps and pixel buffers, shared with the consumers
+     * of captured pictures for their composite and output buffers
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
     private void fireErrorEvent(final int error) {
         if (mOnErrorListener != null) {
             final String message;
@@ -164,6 +437,9 @@ public class CameraHelper {
                 case ERR_WRONG_STATE:
                     message = "Operation is requested under a wrong state";
                     break;
+                case ERR_NO_SUITABLE_CAMERA:
+                    message = "No back facing camera can output JPEG";
+                    break;
 
                 default:
                     message = "Unknown error occurred";
@@ -181,66 +457,249 @@ public class CameraHelper {
         }
     }
 
+    /**
+     * Decode stage chained to composite stage, assembled by CaptureStages.
+     * Captured frames are queued on it from the camera thread, so its policy
+     * must not be POLICY_BLOCK unless a stalled camera thread is acceptable.
+     */
     private void initializeComponentFlows() {
-        mImageReaderListener = new ImageReader.OnImageAvailableListener() {
+        mLifecycle = new CameraLifecycle<SurfaceHolder>(new CameraLifecycle.Driver<SurfaceHolder>() {
+            @Override
+            public int open(SurfaceHolder target) {
+                return openCamera(mFrameSource);
+            }
+
+            @Override
+            public void resume(SurfaceHolder target) {
+                resumeWarmCamera();
+            }
+
+            @Override
+            public void keepWarm() {
+                keepCameraWarm();
+            }
+
+            @Override
+            public void release() {
+                releaseCamera();
+            }
+
+            @Override
+            public void restart(SurfaceHolder target) {
+                startPreview(target);
+            }
+
+            @Override
+            public boolean isKeptAlive() {
+                return mRunningFrameSource == null && mKeepAliveMs > 0;
+            }
+
+            @Override
+            public void setTarget(SurfaceHolder target) {
+                mPreviewSurfaceHolder = target;
+            }
+
+            @Override
+            public void runOnCameraThread(Runnable task) {
+                CameraHelper.this.runOnCameraThread(task);
+            }
+
+            @Override
+            public void runOnUiThread(Runnable task) {
+                mUiHandler.post(task);
+            }
+        });
+
+        mFrameListener = new FrameSource.Listener() {
+            @Override
+            public void onFrameAvailable(Frame frame) {
+                if (frame.getFormat() != Frame.FORMAT_JPEG && frame.getFormat() != Frame.FORMAT_YUV_420_888) {
+                    Log.w(TAG, "[onFrameAvailable] Unsupported " + frame);
+                    return;
+                }
+
+                FrameRingBuffer zslRing = mZslRing;
+                if (zslRing != null && frame.getTimeline() == null && frame.getFormat() == Frame.FORMAT_JPEG) {
+                    // Zero shutter lag, keep the frame and wait for a capture to pick it
+                    zslRing.put(frame.getData(), frame.getWidth(), frame.getHeight(), frame.getTimestamp());
+                    return;
+                }
+
+                // Still captures complete in the order they were requested
+                CaptureTimeline timeline = frame.getTimeline();
+                if (timeline == null) {
+                    timeline = mPendingTimelines.poll();
+                }
+                if (timeline == null) {
+                    timeline = new CaptureTimeline();
+                }
+                timeline.mark(CaptureTimeline.POINT_IMAGE_AVAILABLE);
+                OnCapturedBufferListener bufferListener = mOnCapturedBufferListener;
+                if (bufferListener != null && frame.getFormat() == Frame.FORMAT_JPEG) {
+                    // Hand the Image buffer over without copying or decoding it
+                    if (!frame.retain()) {
+                        frame = copyRetainedFrame(frame.getData(), frame.getWidth(), frame.getHeight(), timeline);
+                    }
+                    bufferListener.onCapturedBuffer(frame, timeline);
+                    return;
+                }
+                CapturedFrame captured = frame.getFormat() == Frame.FORMAT_YUV_420_888
+                        ? copyYuvFrame(frame, timeline)
+                        : copyJpegFrame(frame, timeline);
+
+                // Decode and deliver on pipeline stages, keep source thread free for next frame
+                mCaptureStages.accept(captured);
+            }
+        };
+
+        PipelineStage.Processor<CapturedFrame, DecodedFrame> decoder = new PipelineStage.Processor<CapturedFrame, DecodedFrame>() {
             @Override
-            public void onImageAvailable(ImageReader reader) {
-                ByteBuffer jpegBuffer   = reader.acquireNextImage().getPlanes()[0].getBuffer();
-                byte[]     copiedBuffer = new byte[jpegBuffer.remaining()];
-                jpegBuffer.get(copiedBuffer);
+            public DecodedFrame process(CapturedFrame captured) throws Exception {
+                if (captured.layout != null) {
+                    return convertYuvFrame(captured);
+                }
+
+                OnCapturedJpegListener jpegListener = mOnCapturedJpegListener;
+                if (jpegListener != null) {
+                    jpegListener.onCapturedJpeg(captured.data, captured.length,
+                            captured.width, captured.height, captured.timeline);
+                    return null;
+                }
 
+                // Decode straight to the size the output needs instead of sensor size
+                CaptureTransform transform = mCaptureTransform;
+                DecodePlan       plan      = DecodePlan.plan(
+                        captured.width, captured.height,
+                        transform.getTransformedWidth(mDecodeTargetWidth, mDecodeTargetHeight),
+                        transform.getTransformedHeight(mDecodeTargetWidth, mDecodeTargetHeight));
                 BitmapFactory.Options options = new BitmapFactory.Options();
                 options.inPreferredConfig = Bitmap.Config.ARGB_8888;
                 options.inMutable         = true;
+                options.inSampleSize      = plan.getSampleSize();
+                if (plan.isScaled()) {
+                    options.inScaled        = true;
+                    options.inDensity       = plan.getDensity();
+                    options.inTargetDensity = plan.getTargetDensity();
+                }
+
+                // Decode into a pooled bitmap of the same size, so steady capturing
+                // doesn't allocate a new one per shot
+                options.inBitmap = mBitmapPool.acquire(
+                        plan.getDecodedWidth(), plan.getDecodedHeight(), Bitmap.Config.ARGB_8888);
+
+                Bitmap bitmap = null;
+                try {
+                    bitmap = decodeJpeg(captured, options);
+                } finally {
+                    mJpegBufferPool.release(captured.data);
+                }
+                mLastDecodePlan = plan;
+                if (bitmap == null) {
+                    mBitmapPool.release(options.inBitmap);
+                    return null;
+                }
+                Log.d(TAG, "[decode] " + plan + ", decoded " + bitmap.getByteCount() / 1024 + "KB");
+                return new DecodedFrame(bitmap, captured.timeline);
+            }
+        };
+
+        PipelineStage.Processor<DecodedFrame, Void> compositor = new PipelineStage.Processor<DecodedFrame, Void>() {
+            @Override
+            public Void process(DecodedFrame frame) throws Exception {
+                OnCapturedPixelsListener pixelsListener = mOnCapturedPixelsListener;
+                Bitmap                   bitmap         = frame.bitmap;
+                try {
+                    if (frame.pixels != null && pixelsListener != null) {
+                        pixelsListener.onCapturedPixels(frame.pixels, frame.width, frame.height, frame.timeline);
+                    } else if (mOnCapturedListener != null) {
+                        if (bitmap == null) {
+                            bitmap = mBitmapPool.acquire(frame.width, frame.height, Bitmap.Config.ARGB_8888);
+                            bitmap.setPixels(frame.pixels, 0, frame.width, 0, 0, frame.width, frame.height);
+                        }
+                        mOnCapturedListener.onCaptured(bitmap, frame.timeline);
+                    }
+                } finally {
+                    mBitmapPool.release(bitmap);
+                    mBitmapPool.releasePixels(frame.pixels);
+                }
+                return null;
+            }
+        };
+
+        mCaptureStages = new CaptureStages<CapturedFrame, DecodedFrame, Void>(mCapturePipeline, decoder, compositor,
+                new CaptureStages.Listener<CapturedFrame, DecodedFrame>() {
+            @Override
+            public void onDropped(CapturedFrame captured) {
+                mJpegBufferPool.release(captured.data);
+                Log.w(TAG, "[decode] Processing queue is full, frame is dropped");
+            }
+
+            @Override
+            public void onDecodeFailed(CapturedFrame captured, Exception error) {
+                Log.e(TAG, "[decode] Failed to decode frame", error);
+            }
 
-                Bitmap bitmap = BitmapFactory.decodeByteArray(copiedBuffer, 0, copiedBuffer.length, options);
-                if (mOnCapturedListener != null) {
-                    mOnCapturedListener.onCaptured(bitmap);
+            @Override
+            public void onCompositeFailed(DecodedFrame decoded, Exception error) {
+                Log.e(TAG, "[composite] Failed to composite frame", error);
+            }
+        });
+        mCapturePipeline.start();
+
+        mKeepAliveCloser = new Runnable() {
+            @Override
+            public void run() {
+                if (mLifecycle.endKeepAlive()) {
+                    Log.d(TAG, "[keepAlive] Keep-alive of camera " + mCameraId + " ended");
                 }
             }
         };
 
+        mConvergenceTimeout = new Runnable() {
+            @Override
+            public void run() {
+                // Preview results stopped coming, fire anyway
+                onTriggerAction(mConvergenceTrigger.onTimeout(System.nanoTime()), null);
+            }
+        };
+
+        mStillCaptureListener = new CaptureCallback() {
+            @Override
+            public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request, long timestamp, long frameNumber) {
+                markTimeline(request, CaptureTimeline.POINT_CAPTURE_STARTED);
+            }
+
+            @Override
+            public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
+                markTimeline(request, CaptureTimeline.POINT_CAPTURE_COMPLETED);
+            }
+        };
+
         mCameraStateListener = new CameraDevice.StateCallback() {
             @Override
             public void onOpened(CameraDevice camera) {
-                mOperationState = STATE_OPEN;
+                mStartupTrace.mark(CameraStartupTrace.STEP_CAMERA_OPENED);
                 mCamera = camera;
-
-                try {
-                    // Preview surface
-                    Surface previewSurface = mPreviewSurfaceHolder.getSurface();
-                    mPreviewRequest = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-                    mPreviewRequest.addTarget(previewSurface);
-                    mPreviewRequest.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-                    startCameraStreamHandler(); // Make sure camera stream handler is alive
-
-                    // Capture surface
-                    ImageReader imageReader    = ImageReader.newInstance(mOutputSize.getWidth(), mOutputSize.getHeight(), ImageFormat.JPEG, 1);
-                    Surface     captureSurface = imageReader.getSurface();
-                    imageReader.setOnImageAvailableListener(mImageReaderListener, mCameraStreamHandler);
-                    mCaptureRequest = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-                    mCaptureRequest.addTarget(captureSurface);
-                    mCaptureRequest.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-
-                    // Create session
-                    camera.createCaptureSession(Arrays.asList(previewSurface, captureSurface), mSessionStateListener, mCameraStreamHandler);
-                } catch (CameraAccessException e) {
-                    e.printStackTrace();
-                    fireErrorEvent(ERR_NO_ACCESS_TO_OPEN_CAMERA);
+                if (!mLifecycle.onOpened()) {
+                    return; // Preview stopped while opening, closed already
+                }
+                if (mCameraFrameSource != null) {
+                    mCameraFrameSource.stop();
+                    mCameraFrameSource = null;
                 }
+                createSession(camera);
             }
 
             @Override
             public void onDisconnected(CameraDevice camera) {
-                stopCameraStreamHandler();
-                mOperationState = STATE_CLOSED;
-                mCamera = null;
-
+                mCamera = camera;
+                mLifecycle.abort();
             }
 
             @Override
             public void onError(CameraDevice camera, int error) {
-                mOperationState = STATE_CLOSED;
+                mCamera = camera;
+                mLifecycle.abort();
                 fireErrorEvent(error);
             }
         };
@@ -249,12 +708,18 @@ public class CameraHelper {
 
             @Override
             public void onConfigured(CameraCaptureSession session) {
+                mStartupTrace.mark(CameraStartupTrace.STEP_SESSION_CONFIGURED);
                 if (mCamera == null) {
                     return;
                 }
                 if (session == null) {
                     return;
                 }
+                if (mLifecycle.getState() != STATE_OPEN) {
+                    // Preview stopped while configuring, its surface is gone
+                    session.close();
+                    return;
+                }
                 try {
                     session.setRepeatingRequest(mPreviewRequest.build(), mCameraCaptureListener, mCameraStreamHandler);
                     mCameraSession = session;
@@ -285,6 +750,18 @@ public class CameraHelper {
             @Override
             public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
                 super.onCaptureCompleted(session, request, result);
+                if (mConvergenceTrigger.isArmed()) {
+                    Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+                    onTriggerAction(mConvergenceTrigger.onResult(afState, aeState, System.nanoTime()), afState);
+                }
+
+                final CameraStartupTrace trace = mStartupTrace;
+                if (trace.mark(CameraStartupTrace.STEP_FIRST_FRAME)) {
+                    (trace.isWarm() ? mWarmStartHistogram : mColdStartHistogram).recordNs(trace.getTimeToFirstFrameNs());
+                    Log.d(TAG, trace.dump());
+                    fireStartupTracedEvent(trace);
+                }
             }
 
             @Override
@@ -305,83 +782,399 @@ public class CameraHelper {
     }
 
     public void capturePictureSync() {
+        long                  pressTimestamp = getSensorTimestampNow();
+        final CaptureTimeline timeline       = CaptureTimeline.pressed();
         try {
             if (mCamera == null) {
                 return;
             }
 
-            mCameraSession.stopRepeating();
-            mCameraSession.capture(mCaptureRequest.build(), new CameraCaptureSession.CaptureCallback() {
-                @Override
-                public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
-                    try {
-                        mCameraSession.setRepeatingRequest(mPreviewRequest.build(), mCameraCaptureListener, mCameraStreamHandler);
-                    } catch (CameraAccessException e) {
-                        e.printStackTrace();
-                        fireErrorEvent(ERR_NO_ACCESS_TO_OPEN_CAMERA);
+            FrameRingBuffer zslRing = mZslRing;
+            if (zslRing != null) {
+                captureFromRing(zslRing, pressTimestamp, timeline);
+                return;
+            }
+
+            // Fired by the preview result which finds 3A converged, see onTriggerAction()
+            Handler handler = mCameraStreamHandler;
+            if (mWaitForConvergence && handler != null) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        armTrigger(timeline);
                     }
+                });
+                return;
+            }
+
+            fireStillCapture(timeline);
+            Log.e(TAG, "[capturePictureSync]");
+        } catch (CameraAccessException e) {
+            mPendingTimelines.remove(timeline);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Wait for AF and AE to converge before firing a still capture, or
+     * fire it as soon as the shutter is pressed
+     */
+    public void setWaitForConvergence(boolean wait) {
+        mWaitForConvergence = wait;
+    }
+
+    public ConvergenceTrigger getConvergenceTrigger() {
+        return mConvergenceTrigger;
+    }
+
+    /**
+     * Carry out what the convergence trigger decided, on the camera thread
+     * @param afState AF state of the result it decided on, or null
+     */
+    private void onTriggerAction(int action, Integer afState) {
+        CameraCaptureSession session = mCameraSession;
+        if (action == ConvergenceTrigger.ACTION_NONE || session == null || mPreviewRequest == null) {
+            return;
+        }
+        try {
+            if (action == ConvergenceTrigger.ACTION_START_PRECAPTURE) {
+                // One shot of triggers on top of the repeating preview
+                mPreviewRequest.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
+                if (!ConvergenceTrigger.isAfReady(afState)) {
+                    mPreviewRequest.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_START);
+                    mAfTriggered = true;
                 }
-            }, null);
-            Log.e("CameraHelper", "[capturePictureSync]");
+                CaptureRequest precapture = mPreviewRequest.build();
+                mPreviewRequest.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
+                mPreviewRequest.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_IDLE);
+                session.capture(precapture, mCameraCaptureListener, mCameraStreamHandler);
+                return;
+            }
+
+            CaptureTimeline timeline = mArmedTimeline;
+            mArmedTimeline = null;
+            mCameraStreamHandler.removeCallbacks(mConvergenceTimeout);
+            if (timeline != null) {
+                Log.d(TAG, String.format("[onTriggerAction] Capture fired after %.1fms, %s",
+                        mConvergenceTrigger.getLastWaitNs() / 1e6,
+                        ConvergenceTrigger.getReasonName(mConvergenceTrigger.getLastReason())));
+                fireStillCapture(timeline);
+            }
         } catch (CameraAccessException e) {
             e.printStackTrace();
+            fireErrorEvent(ERR_NO_ACCESS_TO_OPEN_CAMERA);
         }
     }
 
     /**
-     * Find a camera we want:
-     *   > Back facing camera
-     *   > Fit preview view size
-     * @return
+     * Wait for 3A before firing the capture of timeline, on the camera thread,
+     * where preview results and the preview request are handled, so a result
+     * can't fire the capture before its timeline is set
      */
-    public int setupCamera(int previewWidth, int previewHeight) {
-        String[] cameraIds   = null;
-        Size     surfaceSize = new Size(previewWidth, previewHeight);
+    private void armTrigger(CaptureTimeline timeline) {
+        if (mCameraSession == null || mPreviewRequest == null) {
+            Log.w(TAG, "[armTrigger] Preview stopped before the capture was armed");
+            return;
+        }
+        if (mConvergenceTrigger.isArmed()) {
+            Log.w(TAG, "[armTrigger] A capture is waiting for 3A already");
+            return;
+        }
+        mArmedTimeline = timeline;
+        mConvergenceTrigger.arm(System.nanoTime());
+        mCameraStreamHandler.postDelayed(mConvergenceTimeout, mConvergenceTrigger.getTimeoutNs() / 1000000 + 1);
+    }
+
+    /**
+     * Drop a capture waiting for 3A, when the session goes away
+     */
+    private void disarmTrigger() {
+        mConvergenceTrigger.disarm();
+        mArmedTimeline = null;
+        mAfTriggered   = false;
+        Handler handler = mCameraStreamHandler;
+        if (handler != null) {
+            handler.removeCallbacks(mConvergenceTimeout);
+        }
+    }
+
+    private void fireStillCapture(CaptureTimeline timeline) throws CameraAccessException {
+        mCameraSession.stopRepeating();
+        mCameraSession.capture(buildStillRequest(timeline), new CameraCaptureSession.CaptureCallback() {
+            @Override
+            public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request, long timestamp, long frameNumber) {
+                markTimeline(request, CaptureTimeline.POINT_CAPTURE_STARTED);
+                Object tag = request.getTag();
+                if (tag instanceof CaptureTimeline) {
+                    mConvergenceTrigger.recordShutterLagNs(((CaptureTimeline) tag).getDurationNs(
+                            CaptureTimeline.POINT_PRESSED, CaptureTimeline.POINT_CAPTURE_STARTED));
+                }
+            }
+
+            @Override
+            public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
+                markTimeline(request, CaptureTimeline.POINT_CAPTURE_COMPLETED);
+                if (mPreviewRequest == null) {
+                    return; // Preview stopped meanwhile
+                }
+                try {
+                    if (mAfTriggered) {
+                        // Let continuous AF run again after the focus locked for this shot
+                        mAfTriggered = false;
+                        mPreviewRequest.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
+                        session.capture(mPreviewRequest.build(), mCameraCaptureListener, mCameraStreamHandler);
+                        mPreviewRequest.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_IDLE);
+                    }
+                    session.setRepeatingRequest(mPreviewRequest.build(), mCameraCaptureListener, mCameraStreamHandler);
+                } catch (CameraAccessException e) {
+                    e.printStackTrace();
+                    fireErrorEvent(ERR_NO_ACCESS_TO_OPEN_CAMERA);
+                }
+            }
+        }, mCameraStreamHandler);
+    }
+
+    private CapturedFrame copyJpegFrame(Frame frame, CaptureTimeline timeline) {
+        ByteBuffer jpegData = frame.getData();
+        int        length   = jpegData.remaining();
+        byte[]     data     = mJpegBufferPool.acquire(length);
+        jpegData.get(data, 0, length);
+        return new CapturedFrame(data, length, frame.getWidth(), frame.getHeight(), timeline);
+    }
+
+    /**
+     * Copy the planes of a YUV frame back to back, keeping their strides,
+     * so the copy is a plain bulk copy and the converter handles the layout
+     */
+    private CapturedFrame copyYuvFrame(Frame frame, CaptureTimeline timeline) {
+        Frame.Plane[] planes = frame.getPlanes();
+        ByteBuffer    yPlane = planes[0].getBuffer();
+        ByteBuffer    uPlane = planes[1].getBuffer();
+        ByteBuffer    vPlane = planes[2].getBuffer();
+        int           yBytes = yPlane.remaining();
+        int           uBytes = uPlane.remaining();
+        int           length = yBytes + uBytes + vPlane.remaining();
+        byte[]        data   = mJpegBufferPool.acquire(length);
+        yPlane.get(data, 0, yBytes);
+        uPlane.get(data, yBytes, uBytes);
+        vPlane.get(data, yBytes + uBytes, length - yBytes - uBytes);
+
+        YuvConverter.Layout layout = new YuvConverter.Layout(
+                0, planes[0].getRowStride(),
+                yBytes, yBytes + uBytes, planes[1].getRowStride(), planes[1].getPixelStride());
+        return new CapturedFrame(data, length, frame.getWidth(), frame.getHeight(), layout, timeline);
+    }
+
+    /**
+     * Decode into options.inBitmap, or into a new bitmap if the decoder
+     * can't reuse it, e.g. on a size mismatch
+     */
+    private Bitmap decodeJpeg(CapturedFrame captured, BitmapFactory.Options options) {
+        try {
+            return BitmapFactory.decodeByteArray(captured.data, 0, captured.length, options);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "[decodeJpeg] Can't decode into pooled bitmap, allocate a new one", e);
+            mBitmapPool.release(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(captured.data, 0, captured.length, options);
+        }
+    }
+
+    private DecodedFrame convertYuvFrame(CapturedFrame captured) {
+        int[] pixels = mBitmapPool.acquirePixels(captured.width * captured.height);
         try {
-            cameraIds = mCameraManager.getCameraIdList();
-            if (cameraIds != null) {
-                for (int i = 0; i < cameraIds.length; i++) {
-                    CameraCharacteristics identify = mCameraManager.getCameraCharacteristics(cameraIds[i]);
-                    Integer facing = identify.get(CameraCharacteristics.LENS_FACING);
-                    if (facing != CameraCharacteristics.LENS_FACING_BACK) {
-                        continue;
+            mYuvConverter.convert(captured.data, captured.layout, captured.width, captured.height,
+                    pixels, 0, captured.width);
+        } finally {
+            mJpegBufferPool.release(captured.data);
+        }
+        Log.d(TAG, String.format("[decode] Converted %dx%d YUV, average %.1fms",
+                captured.width, captured.height, mYuvConverter.getAverageConvertMs()));
+        return new DecodedFrame(pixels, captured.width, captured.height, captured.timeline);
+    }
+
+    /**
+     * Build a still capture request tagged with the timeline of its shot,
+     * and queue the timeline for the image the request will produce
+     */
+    private CaptureRequest buildStillRequest(CaptureTimeline timeline) {
+        mCaptureRequest.setTag(timeline);
+        CaptureRequest request = mCaptureRequest.build();
+        mCaptureRequest.setTag(null);
+        mPendingTimelines.offer(timeline);
+        return request;
+    }
+
+    private static void markTimeline(CaptureRequest request, int point) {
+        Object tag = request.getTag();
+        if (tag instanceof CaptureTimeline) {
+            ((CaptureTimeline) tag).mark(point);
+        }
+    }
+
+    private void captureFromRing(FrameRingBuffer zslRing, long pressTimestamp, CaptureTimeline timeline) {
+        FrameRingBuffer.Entry entry = new FrameRingBuffer.Entry();
+        if (!zslRing.copyNearest(pressTimestamp, mJpegBufferPool, entry)) {
+            Log.w(TAG, "[captureFromRing] No frame buffered yet");
+            return;
+        }
+        Log.d(TAG, "[captureFromRing] Frame is " + (entry.timestamp - pressTimestamp) / 1000000 + "ms off the press");
+        timeline.mark(CaptureTimeline.POINT_IMAGE_AVAILABLE);
+        OnCapturedBufferListener bufferListener = mOnCapturedBufferListener;
+        if (bufferListener != null) {
+            bufferListener.onCapturedBuffer(
+                    wrapPooledFrame(entry.data, entry.length, entry.width, entry.height, timeline), timeline);
+            return;
+        }
+        mCaptureStages.accept(new CapturedFrame(entry.data, entry.length, entry.width, entry.height, timeline));
+    }
+
+    /**
+     * Copy JPEG data of a frame which can't be retained into a pooled buffer
+     */
+    private Frame copyRetainedFrame(ByteBuffer data, int width, int height, CaptureTimeline timeline) {
+        int    length = data.remaining();
+        byte[] copy   = mJpegBufferPool.acquire(length);
+        data.get(copy, 0, length);
+        return wrapPooledFrame(copy, length, width, height, timeline);
+    }
+
+    /**
+     * Retained frame of pooled JPEG data, which goes back to the pool on release
+     */
+    private Frame wrapPooledFrame(final byte[] data, int length, int width, int height, CaptureTimeline timeline) {
+        Frame frame = new Frame(Frame.FORMAT_JPEG, ByteBuffer.wrap(data, 0, length), width, height, 0, timeline);
+        frame.setOwner(new Frame.Owner() {
+            @Override
+            public boolean retain() {
+                return true;
+            }
+
+            @Override
+            public void release() {
+                mJpegBufferPool.release(data);
+            }
+        });
+        frame.retain();
+        return frame;
+    }
+
+    /**
+     * Current time in the timebase of Image.getTimestamp()
+     */
+    private long getSensorTimestampNow() {
+        if (mTimestampSource == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME) {
+            return SystemClock.elapsedRealtimeNanos();
+        } else {
+            return System.nanoTime();
+        }
+    }
+
+    /**
+     * Enable zero shutter lag mode, takes effect on next startPreview().
+     * The last depth full resolution frames are buffered while previewing
+     * and a capture picks the one closest to the time it is requested.
+     * @param depth number of buffered frames, 0 to disable
+     */
+    public void setZeroShutterLag(int depth) {
+        mZslDepth = Math.max(0, depth);
+    }
+
+    public boolean isZeroShutterLagEnabled() {
+        return mZslRing != null;
+    }
+
+    /**
+     * Capture as Frame.FORMAT_JPEG, decoded by BitmapFactory, or as
+     * Frame.FORMAT_YUV_420_888, converted to ARGB by YuvConverter without
+     * the JPEG encode and decode round trip. Zero shutter lag only buffers
+     * JPEG. Takes effect on next setupCamera().
+     */
+    public void setCaptureFormat(int format) {
+        if (format != Frame.FORMAT_JPEG && format != Frame.FORMAT_YUV_420_888) {
+            throw new IllegalArgumentException("Unsupported capture format 0x" + Integer.toHexString(format));
+        }
+        mCaptureFormat = format;
+    }
+
+    public int getCaptureFormat() {
+        return mCaptureFormat;
+    }
+
+    /**
+     * Converter of YUV captures, watch its average conversion time
+     */
+    public YuvConverter getYuvConverter() {
+        return mYuvConverter;
+    }
+
+    /**
+     * Capture a burst of pictures. With interval 0 frames are captured back to back
+     * by CameraCaptureSession.captureBurst(), otherwise one capture is issued per interval.
+     * Captured frames are decoded and delivered through the capture pipeline.
+     * @param count    number of pictures
+     * @param interval interval between two captures in milliseconds
+     * @return error code
+     */
+    public int captureBurst(final int count, final long interval) {
+        if (mCamera == null || mCameraSession == null || mZslRing != null) {
+            fireErrorEvent(ERR_WRONG_STATE);
+            return ERR_WRONG_STATE;
+        }
+        if (count <= 0) {
+            return ERR_NO_ERROR;
+        }
+
+        try {
+            if (interval <= 0) {
+                List<CaptureRequest> requests = new ArrayList<CaptureRequest>(count);
+                for (int i = 0; i < count; i++) {
+                    requests.add(buildStillRequest(CaptureTimeline.pressed()));
+                }
+                mCameraSession.stopRepeating();
+                mCameraSession.captureBurst(requests, new CameraCaptureSession.CaptureCallback() {
+                    @Override
+                    public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request, long timestamp, long frameNumber) {
+                        markTimeline(request, CaptureTimeline.POINT_CAPTURE_STARTED);
                     }
 
-                    StreamConfigurationMap configMap = identify.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-                    if (configMap == null) {
-                        continue;
-                    } else {
-                        Size[] sizes = configMap.getOutputSizes(ImageFormat.JPEG);
-                        if (sizes != null && sizes.length > 0) {
-                            Size  outputSize = sizes[0];
-                            float maxArea    = 0f;
-                            for (int j = 0; j < sizes.length; j++) {
-                                float area = sizes[j].getWidth() * sizes[j].getHeight();
-                                if (maxArea < area) {
-                                    maxArea  = area;
-                                    outputSize = sizes[j];
-                                }
-                            }
-                            mOutputSize = outputSize;
-                        } else {
-                            continue;
-                        }
+                    @Override
+                    public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
+                        markTimeline(request, CaptureTimeline.POINT_CAPTURE_COMPLETED);
                     }
 
-                    float suitableScale = ImageUtils.scaleImage(
-                            mOutputSize.getWidth(), mOutputSize.getHeight(),
-                            surfaceSize.getWidth(), surfaceSize.getHeight(),
-                            ImageUtils.SCALE_MODE_INSIDE);
-                    if (suitableScale != 1f) {
-                        final int scaledWidth  = (int) (mOutputSize.getWidth() * suitableScale);
-                        final int scaledHeight = (int) (mOutputSize.getHeight() * suitableScale);
-                        mSuggestPreviewSize = new Size(scaledWidth, scaledHeight);
+                    @Override
+                    public void onCaptureSequenceCompleted(CameraCaptureSession session, int sequenceId, long frameNumber) {
+                        restartPreview();
                     }
 
-                    // If all matched, this code will be touched
-                    mCameraId = cameraIds[i];
+                    @Override
+                    public void onCaptureSequenceAborted(CameraCaptureSession session, int sequenceId) {
+                        restartPreview();
+                    }
+                }, mCameraStreamHandler);
+            } else {
+                // Preview keeps running between spaced captures
+                for (int i = 0; i < count; i++) {
+                    final CaptureTimeline timeline = CaptureTimeline.pressed();
+                    mCameraStreamHandler.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mCameraSession == null) {
+                                return;
+                            }
+                            try {
+                                mCameraSession.capture(buildStillRequest(timeline), mStillCaptureListener, mCameraStreamHandler);
+                            } catch (CameraAccessException e) {
+                                mPendingTimelines.remove(timeline);
+                                e.printStackTrace();
+                                fireErrorEvent(ERR_NO_ACCESS_TO_OPEN_CAMERA);
+                            }
+                        }
+                    }, i * interval);
                 }
             }
+            Log.d(TAG, "[captureBurst] count = " + count + ", interval = " + interval + "ms");
         } catch (CameraAccessException e) {
             e.printStackTrace();
             fireErrorEvent(ERR_NO_ACCESS_TO_OPEN_CAMERA);
@@ -391,37 +1184,223 @@ public class CameraHelper {
         return ERR_NO_ERROR;
     }
 
-    public synchronized int startPreview(SurfaceHolder surfaceHolder) {
-        if (mOperationState != STATE_CLOSED) {
-            mPreviewSurfaceHolder = surfaceHolder;
-            return ERR_NO_ERROR;
+    /**
+     * Configure a capture session with the current preview surface, output
+     * size and capture format on an open camera
+     */
+    private void createSession(CameraDevice camera) {
+        try {
+            // Preview surface
+            Surface previewSurface = mPreviewSurfaceHolder.getSurface();
+            mPreviewRequest = camera.createCaptureRequest(
+                    mZslDepth > 0 ? CameraDevice.TEMPLATE_ZERO_SHUTTER_LAG : CameraDevice.TEMPLATE_PREVIEW);
+            mPreviewRequest.addTarget(previewSurface);
+            mPreviewRequest.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+            startCameraStreamHandler(); // Make sure camera stream handler is alive
+
+            // Capture surface, a warm camera keeps its reader
+            if (mCameraFrameSource == null) {
+                mCameraFrameSource = new Camera2FrameSource(mOutputSize.getWidth(), mOutputSize.getHeight(),
+                        mCaptureFormat, CAPTURE_MAX_IMAGES, mCameraStreamHandler);
+                mCameraFrameSource.start(mFrameListener);
+            }
+            Surface captureSurface = mCameraFrameSource.getSurface();
+            mCaptureRequest = camera.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            mCaptureRequest.addTarget(captureSurface);
+            mCaptureRequest.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+
+            // Zero shutter lag, full resolution stream stays attached to repeating request
+            if (mZslDepth > 0 && mCaptureFormat == Frame.FORMAT_JPEG) {
+                int slotSize = mOutputSize.getWidth() * mOutputSize.getHeight() / ZSL_JPEG_BYTES_DIVISOR;
+                if (mZslRing == null || mZslRing.getCapacity() != mZslDepth) {
+                    mZslRing = new FrameRingBuffer(mZslDepth, slotSize);
+                } else {
+                    mZslRing.clear();
+                }
+                mPreviewRequest.addTarget(captureSurface);
+            } else {
+                mZslRing = null;
+            }
+
+            // Create session
+            mStartupTrace.mark(CameraStartupTrace.STEP_CREATE_SESSION);
+            camera.createCaptureSession(Arrays.asList(previewSurface, captureSurface), mSessionStateListener, mCameraStreamHandler);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+            fireErrorEvent(ERR_NO_ACCESS_TO_OPEN_CAMERA);
         }
-        if (mCameraManager == null) {
+    }
+
+    private void restartPreview() {
+        if (mCameraSession == null || mPreviewRequest == null) {
+            return;
+        }
+        try {
+            mCameraSession.setRepeatingRequest(mPreviewRequest.build(), mCameraCaptureListener, mCameraStreamHandler);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+            fireErrorEvent(ERR_NO_ACCESS_TO_OPEN_CAMERA);
+        }
+    }
+
+    /**
+     * Find a camera we want:
+     *   > Back facing camera
+     *   > Smallest capture size covering the decode target size, or the
+     *     preview size if no decode target size is set yet
+     *   > Supported preview size fitting preview view size
+     * @param previewWidth  width of preview surface in display orientation
+     * @param previewHeight height of preview surface in display orientation
+     * @return error code
+     */
+    public int setupCamera(int previewWidth, int previewHeight) {
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        try {
+            if (mCapabilityIndex == null) {
+                mCapabilityIndex = CameraCapabilityIndex.load(mContext, mCameraManager);
+            }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+            fireErrorEvent(ERR_NO_ACCESS_TO_OPEN_CAMERA);
+            return ERR_NO_ACCESS_TO_OPEN_CAMERA;
+        }
+
+        CameraCapabilityIndex.CameraInfo camera = mCapabilityIndex.findCamera(CameraCharacteristics.LENS_FACING_BACK);
+        if (camera == null) {
+            fireErrorEvent(ERR_NO_SUITABLE_CAMERA);
+            return ERR_NO_SUITABLE_CAMERA;
+        }
+
+        // Selection works in sensor orientation, sizes given in display orientation are turned into it
+        CaptureTransform transform    = CaptureTransform.create(
+                camera.getSensorOrientation(), getDisplayRotation(), camera.getFacing());
+        int              targetWidth  = mDecodeTargetWidth > 0 ? mDecodeTargetWidth : previewWidth;
+        int              targetHeight = mDecodeTargetHeight > 0 ? mDecodeTargetHeight : previewHeight;
+        Size             surfaceSize  = new Size(
+                transform.getTransformedWidth(previewWidth, previewHeight),
+                transform.getTransformedHeight(previewWidth, previewHeight));
+        mCaptureTransform = transform;
+        Size[] outputSizes  = mCaptureFormat == Frame.FORMAT_YUV_420_888 ? camera.getYuvSizes() : camera.getJpegSizes();
+        mOutputSize         = mSizeSelector.selectOutputSize(outputSizes,
+                transform.getTransformedWidth(targetWidth, targetHeight),
+                transform.getTransformedHeight(targetWidth, targetHeight));
+        mSuggestPreviewSize = mSizeSelector.selectPreviewSize(camera.getPreviewSizes(), mOutputSize,
+                surfaceSize.getWidth(), surfaceSize.getHeight());
+        if (mSuggestPreviewSize == null) {
+            mSuggestPreviewSize = surfaceSize;
+        }
+        Log.d(TAG, "[setupCamera] " + mSizeSelector + ", " + transform);
+
+        mTimestampSource = camera.getTimestampSource();
+        mCameraId        = camera.getId();
+
+        mCameraSelectionTimeNs = SystemClock.elapsedRealtimeNanos() - startTime;
+        Log.d(TAG, "[setupCamera] Camera " + mCameraId + " selected in " + mCameraSelectionTimeNs / 1000 + "us"
+                + (mCapabilityIndex.isFromCache() ? " from cached index" : " from camera service"));
+        return ERR_NO_ERROR;
+    }
+
+    /**
+     * Rotation of the display from its natural orientation in degrees
+     */
+    private int getDisplayRotation() {
+        WindowManager windowManager = (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
+        switch (windowManager.getDefaultDisplay().getRotation()) {
+            case Surface.ROTATION_90:
+                return 90;
+            case Surface.ROTATION_180:
+                return 180;
+            case Surface.ROTATION_270:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Time spent in the last setupCamera(), including loading capability index
+     */
+    public long getCameraSelectionTimeNs() {
+        return mCameraSelectionTimeNs;
+    }
+
+    /**
+     * Keep the camera open for graceMs after stopPreview(), so a startPreview()
+     * within it only configures a new session instead of opening the camera
+     * again. The camera is closed when the grace period ends, on release(),
+     * or when the camera, output size or capture format selected by
+     * setupCamera() changes meanwhile.
+     * @param graceMs grace period in milliseconds, 0 closes the camera on stopPreview()
+     */
+    public void setKeepAlive(long graceMs) {
+        mKeepAliveMs = Math.max(0, graceMs);
+    }
+
+    public long getKeepAlive() {
+        return mKeepAliveMs;
+    }
+
+    /**
+     * One of STATE_*
+     */
+    public int getOperationState() {
+        return mLifecycle.getState();
+    }
+
+    public CameraStateMachine getStateMachine() {
+        return mLifecycle.getStateMachine();
+    }
+
+    /**
+     * Start preview on surfaceHolder. Never waits for the camera: opening
+     * and closing run on the camera thread, and a start while the camera is
+     * still closing is carried out on the UI thread once it is closed.
+     */
+    public int startPreview(SurfaceHolder surfaceHolder) {
+        FrameSource frameSource = mFrameSource;
+        if (mCameraManager == null && frameSource == null) {
             fireErrorEvent(ERR_NO_INITIALIZE);
             return ERR_NO_INITIALIZE;
         }
-        if (surfaceHolder == null) {
+        if (surfaceHolder == null && frameSource == null) {
             fireErrorEvent(ERR_BAD_SURFACE);
             return ERR_BAD_SURFACE;
-        } else {
-            mPreviewSurfaceHolder = surfaceHolder;
+        }
+        startCameraStreamHandler(); // Camera work runs there, never on the caller thread
+        return mLifecycle.start(surfaceHolder);
+    }
+
+    /**
+     * Open the camera, or start the external frame source, in STATE_OPENING
+     */
+    private int openCamera(FrameSource frameSource) {
+        if (frameSource != null) {
+            // Frames come from the external source, camera isn't opened
+            mRunningFrameSource = frameSource;
+            if (mLifecycle.onOpened()) {
+                frameSource.start(mFrameListener);
+            }
+            return ERR_NO_ERROR;
         }
         if (!requestCameraPermission()) {
+            mLifecycle.openFailed();
             return ERR_NO_ACCESS_TO_OPEN_CAMERA;
         }
 
-        mOperationState = STATE_OPENING;
-
+        mStartupTrace = new CameraStartupTrace();
+        mStartupTrace.mark(CameraStartupTrace.STEP_START_PREVIEW);
         try {
+            // Asynchronous, onOpened() continues on the camera thread
+            mStartupTrace.mark(CameraStartupTrace.STEP_OPEN_CAMERA);
             mCameraManager.openCamera(mCameraId, mCameraStateListener, mCameraStreamHandler);
         } catch (CameraAccessException exp) {
             exp.printStackTrace();
-            mOperationState = STATE_CLOSED;
+            mLifecycle.openFailed();
             fireErrorEvent(ERR_NO_ACCESS_TO_OPEN_CAMERA);
             return ERR_NO_ACCESS_TO_OPEN_CAMERA;
         } catch (SecurityException exp) {
             exp.printStackTrace();
-            mOperationState = STATE_CLOSED;
+            mLifecycle.openFailed();
             fireErrorEvent(ERR_NO_ACCESS_TO_OPEN_CAMERA);
             return ERR_NO_ACCESS_TO_OPEN_CAMERA;
         }
@@ -429,26 +1408,181 @@ public class CameraHelper {
         return ERR_NO_ERROR;
     }
 
-    public synchronized void stopPreview() {
-        if (mOperationState == STATE_CLOSING || mOperationState == STATE_CLOSED) {
+    /**
+     * Stop preview. Never waits for the camera: the camera is closed, or
+     * kept warm, on the camera thread. A camera still opening is closed as
+     * soon as it is open.
+     */
+    public void stopPreview() {
+        mLifecycle.stop();
+    }
+
+    /**
+     * Close the session, whose preview surface is going away, but keep the
+     * camera and its capture reader until the keep-alive grace period ends
+     */
+    private void keepCameraWarm() {
+        disarmTrigger();
+        mPreviewRequest = null;
+        if (mCameraSession != null) {
+            mCameraSession.close();
+            mCameraSession = null;
+        }
+        Handler handler = mCameraStreamHandler;
+        if (handler != null && mLifecycle.getState() == STATE_WARM) {
+            handler.postDelayed(mKeepAliveCloser, mKeepAliveMs);
+            Log.d(TAG, "[stopPreview] Camera " + mCameraId + " kept warm for " + mKeepAliveMs + "ms");
+        }
+    }
+
+    /**
+     * Configure a new session on the warm camera, or open it again if it
+     * can't be reused
+     */
+    private void resumeWarmCamera() {
+        Handler handler = mCameraStreamHandler;
+        if (handler != null) {
+            handler.removeCallbacks(mKeepAliveCloser);
+        }
+        if (mLifecycle.getState() != STATE_OPEN) {
+            return; // Stopped again meanwhile
+        }
+        if (mCamera == null || !mCamera.getId().equals(mCameraId) || mCameraFrameSource == null
+                || !mCameraFrameSource.matches(mOutputSize.getWidth(), mOutputSize.getHeight(), mCaptureFormat)) {
+            mLifecycle.reopen(mPreviewSurfaceHolder);
             return;
-        } else {
-            mPreviewRequest = null;
-            if (mCameraSession != null) {
-                mCameraSession.close();
-                mCameraSession = null;
-            }
-            if (mCamera != null) {
-                mCamera.close();
-                mCamera = null;
-            }
         }
+        mStartupTrace = new CameraStartupTrace(true);
+        mStartupTrace.mark(CameraStartupTrace.STEP_START_PREVIEW);
+        createSession(mCamera);
+    }
+
+    /**
+     * Release the camera, or stop the external frame source, on the way to
+     * STATE_CLOSED or after the camera failed
+     */
+    private void releaseCamera() {
+        Handler handler = mCameraStreamHandler;
+        if (handler != null) {
+            handler.removeCallbacks(mKeepAliveCloser);
+        }
+        disarmTrigger();
+        mPreviewRequest = null;
+        if (mCameraSession != null) {
+            mCameraSession.close();
+            mCameraSession = null;
+        }
+        if (mCamera != null) {
+            mCamera.close();
+            mCamera = null;
+        }
+        if (mCameraFrameSource != null) {
+            mCameraFrameSource.stop();
+            mCameraFrameSource = null;
+        }
+        if (mRunningFrameSource != null) {
+            mRunningFrameSource.stop();
+            mRunningFrameSource = null;
+        }
+    }
+
+    private void runOnCameraThread(Runnable task) {
+        Handler handler = mCameraStreamHandler;
+        if (handler == null || !handler.post(task)) {
+            task.run();
+        }
+    }
+
+    /**
+     * Take captured frames from source instead of the camera, e.g. a
+     * FileFrameSource replaying recorded frames for measurement.
+     * Takes effect on next startPreview(), null to use the camera again.
+     * Every frame of the source goes through the capture pipeline as a shot.
+     */
+    public void setFrameSource(FrameSource source) {
+        mFrameSource = source;
+    }
+
+    public FrameSource getFrameSource() {
+        return mFrameSource;
+    }
+
+    /**
+     * Stop capture pipeline threads, the helper can't be used anymore
+     */
+    public void release() {
+        mLifecycle.shutdown();
+        mCapturePipeline.stop();
+        mYuvConverter.release();
+        mBitmapPool.clear();
+        stopCameraStreamHandler();
     }
 
     public void setOnCapturedListener(OnCapturedListener listener) {
         mOnCapturedListener = listener;
     }
 
+    /**
+     * Receive captured JPEG data instead of decoded bitmaps,
+     * OnCapturedListener isn't called while this listener is set
+     */
+    public void setOnCapturedJpegListener(OnCapturedJpegListener listener) {
+        mOnCapturedJpegListener = listener;
+    }
+
+    /**
+     * Receive YUV captures as ARGB pixels instead of bitmaps,
+     * OnCapturedListener isn't called for them while this listener is set
+     */
+    public void setOnCapturedPixelsListener(OnCapturedPixelsListener listener) {
+        mOnCapturedPixelsListener = listener;
+    }
+
+    /**
+     * Receive JPEG captures as they come from the camera instead of decoded,
+     * OnCapturedListener and OnCapturedJpegListener aren't called for them
+     * while this listener is set
+     */
+    public void setOnCapturedBufferListener(OnCapturedBufferListener listener) {
+        mOnCapturedBufferListener = listener;
+    }
+
+    public void setOnStartupTracedListener(OnStartupTracedListener listener) {
+        mOnStartupTracedListener = listener;
+    }
+
+    /**
+     * Trace of the latest startPreview(), steps not reached yet are left empty
+     */
+    public CameraStartupTrace getStartupTrace() {
+        return mStartupTrace;
+    }
+
+    public String dumpStartupTrace() {
+        return Build.MODEL + " " + Build.FINGERPRINT + "\n" + mStartupTrace.dump()
+                + "\n  cold starts " + mColdStartHistogram
+                + "\n  warm starts " + mWarmStartHistogram;
+    }
+
+    /**
+     * Time to first frame of every startPreview() that opened the camera,
+     * or resumed a camera kept warm by setKeepAlive()
+     */
+    public LatencyHistogram getStartupHistogram(boolean warm) {
+        return warm ? mWarmStartHistogram : mColdStartHistogram;
+    }
+
+    private void fireStartupTracedEvent(final CameraStartupTrace trace) {
+        if (mOnStartupTracedListener != null && mUiHandler != null) {
+            mUiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mOnStartupTracedListener.onStartupTraced(trace);
+                }
+            });
+        }
+    }
+
     public void setOnErrorListener(OnErrorListener listener) {
         mOnErrorListener = listener;
     }
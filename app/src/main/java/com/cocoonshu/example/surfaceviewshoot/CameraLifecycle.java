@@ -0,0 +1,258 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Camera lifecycle
+ * Start, stop, keep-alive and failure handling of a camera on top of
+ * CameraStateMachine, with the camera itself behind a Driver, so the
+ * protocol has no dependency on android.hardware.camera2 and can be run
+ * against a fake camera. start() and stop() are called on the UI thread
+ * and never wait: camera work is posted to the camera thread, and a start
+ * which comes while the camera is closing is parked and carried out on the
+ * UI thread once it is closed.
+ * @param <T> preview target, e.g. a SurfaceHolder
+ */
+public class CameraLifecycle<T> {
+
+    private final CameraStateMachine mState        = new CameraStateMachine();
+    private final AtomicReference<T> mPendingStart = new AtomicReference<T>();
+    private final Driver<T>          mDriver;
+    private final Runnable           mKeepWarm;
+    private final Runnable           mClose;
+    private final Runnable           mRestart;
+
+    /**
+     * What the lifecycle asks of the camera
+     */
+    public interface Driver<T> {
+        /**
+         * Called on the caller thread of start() in STATE_OPENING. Open the
+         * camera and call onOpened() once it is open, or openFailed().
+         * @return error code of start()
+         */
+        int open(T target);
+
+        /**
+         * Called on the camera thread in STATE_OPEN after a warm camera is
+         * started again, reuse it or reopen() it
+         */
+        void resume(T target);
+
+        /**
+         * Called on the camera thread in STATE_WARM, stop the preview and call
+         * endKeepAlive() once the keep-alive ends
+         */
+        void keepWarm();
+
+        /**
+         * Called on the camera thread in STATE_CLOSING, or when the camera
+         * failed, release whatever is open
+         */
+        void release();
+
+        /**
+         * Carry out a start parked while the camera was closing, called on the UI thread
+         */
+        void restart(T target);
+
+        /**
+         * Whether stop() keeps the camera warm instead of closing it
+         */
+        boolean isKeptAlive();
+
+        /**
+         * Called whenever the preview target of the running camera changes
+         */
+        void setTarget(T target);
+
+        void runOnCameraThread(Runnable task);
+
+        void runOnUiThread(Runnable task);
+    }
+
+    public CameraLifecycle(Driver<T> driver) {
+        mDriver   = driver;
+        mKeepWarm = new Runnable() {
+            @Override
+            public void run() {
+                mDriver.keepWarm();
+            }
+        };
+        mClose = new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        };
+        mRestart = new Runnable() {
+            @Override
+            public void run() {
+                // Taken here, so a stop() which came meanwhile cancels it
+                T target = mPendingStart.getAndSet(null);
+                if (target != null) {
+                    mDriver.restart(target);
+                }
+            }
+        };
+    }
+
+    /**
+     * Start the camera on target, or just switch target if it is running
+     * @return error code of Driver.open(), or CameraHelper.ERR_NO_ERROR
+     */
+    public int start(T target) {
+        mPendingStart.set(null); // A newer start supersedes a parked one
+        while (true) {
+            switch (mState.get()) {
+                case CameraHelper.STATE_OPENING:
+                case CameraHelper.STATE_OPEN:
+                    mDriver.setTarget(target);
+                    return CameraHelper.ERR_NO_ERROR;
+
+                case CameraHelper.STATE_CLOSING:
+                    // Started again once closed, see close()
+                    mPendingStart.set(target);
+                    if (mState.get() == CameraHelper.STATE_CLOSING || !mPendingStart.compareAndSet(target, null)) {
+                        return CameraHelper.ERR_NO_ERROR;
+                    }
+                    break; // Closed meanwhile and nobody took it, start it here
+
+                case CameraHelper.STATE_WARM:
+                    if (mState.transition(CameraHelper.STATE_WARM, CameraHelper.STATE_OPEN)) {
+                        mDriver.setTarget(target);
+                        final T resumed = target;
+                        mDriver.runOnCameraThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                mDriver.resume(resumed);
+                            }
+                        });
+                        return CameraHelper.ERR_NO_ERROR;
+                    }
+                    break;
+
+                default:
+                    if (mState.transition(CameraHelper.STATE_CLOSED, CameraHelper.STATE_OPENING)) {
+                        mDriver.setTarget(target);
+                        return mDriver.open(target);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Stop the camera, it is closed, or kept warm, on the camera thread.
+     * A camera still opening is closed as soon as it is open.
+     */
+    public void stop() {
+        mPendingStart.set(null); // A start waiting for close is cancelled
+        while (true) {
+            switch (mState.get()) {
+                case CameraHelper.STATE_OPENING:
+                    if (mState.transition(CameraHelper.STATE_OPENING, CameraHelper.STATE_CLOSING)) {
+                        return; // onOpened() closes it
+                    }
+                    break;
+
+                case CameraHelper.STATE_OPEN:
+                    if (mDriver.isKeptAlive()) {
+                        if (mState.transition(CameraHelper.STATE_OPEN, CameraHelper.STATE_WARM)) {
+                            mDriver.runOnCameraThread(mKeepWarm);
+                            return;
+                        }
+                    } else if (mState.transition(CameraHelper.STATE_OPEN, CameraHelper.STATE_CLOSING)) {
+                        mDriver.runOnCameraThread(mClose);
+                        return;
+                    }
+                    break;
+
+                default:
+                    return; // Closing, closed or warm already
+            }
+        }
+    }
+
+    /**
+     * Stop the camera for good, a warm camera is closed too
+     */
+    public void shutdown() {
+        stop();
+        if (mState.transition(CameraHelper.STATE_WARM, CameraHelper.STATE_CLOSING)) {
+            mDriver.runOnCameraThread(mClose);
+        }
+    }
+
+    /**
+     * Camera is open
+     * @return false if it was stopped while opening and is closed now
+     */
+    public boolean onOpened() {
+        if (!mState.transition(CameraHelper.STATE_OPENING, CameraHelper.STATE_OPEN)) {
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Camera couldn't be opened, close what was opened so far
+     */
+    public void openFailed() {
+        mState.transition(CameraHelper.STATE_OPENING, CameraHelper.STATE_CLOSING);
+        close();
+    }
+
+    /**
+     * Close a resumed camera which can't be reused and open it again on target
+     */
+    public void reopen(T target) {
+        if (mState.transition(CameraHelper.STATE_OPEN, CameraHelper.STATE_CLOSING)) {
+            mPendingStart.set(target);
+            close();
+        }
+    }
+
+    /**
+     * Keep-alive of a warm camera ended, called on the camera thread
+     * @return false if the camera was started again meanwhile
+     */
+    public boolean endKeepAlive() {
+        if (!mState.transition(CameraHelper.STATE_WARM, CameraHelper.STATE_CLOSING)) {
+            return false;
+        }
+        close();
+        return true;
+    }
+
+    /**
+     * Camera failed or was taken away, release what is left whatever the state
+     */
+    public void abort() {
+        mPendingStart.set(null);
+        mDriver.release();
+        mState.reset();
+    }
+
+    public int getState() {
+        return mState.get();
+    }
+
+    public CameraStateMachine getStateMachine() {
+        return mState;
+    }
+
+    /**
+     * Release the camera in STATE_CLOSING and move to STATE_CLOSED, then
+     * carry out a start which came meanwhile on the UI thread, where it may
+     * ask for permission
+     */
+    private void close() {
+        mDriver.release();
+        mState.transition(CameraHelper.STATE_CLOSING, CameraHelper.STATE_CLOSED);
+        if (mPendingStart.get() != null) {
+            mDriver.runOnUiThread(mRestart);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+/**
+ * Camera startup trace
+ * Monotonic timestamps of every step from startPreview() to the first preview
+ * frame, to follow time-to-first-frame across devices and builds.
+ * A warm start resumes a camera kept open by CameraHelper.setKeepAlive(),
+ * its openCamera and onOpened steps stay empty.
+ */
+public class CameraStartupTrace {
+
+    public  static final int      STEP_START_PREVIEW      = 0;
+    public  static final int      STEP_OPEN_CAMERA        = 1;
+    public  static final int      STEP_CAMERA_OPENED      = 2;
+    public  static final int      STEP_CREATE_SESSION     = 3;
+    public  static final int      STEP_SESSION_CONFIGURED = 4;
+    public  static final int      STEP_FIRST_FRAME        = 5;
+    private static final int      STEP_COUNT              = 6;
+    private static final String[] STEP_NAMES              = new String[] {
+            "startPreview",
+            "openCamera",
+            "onOpened",
+            "createCaptureSession",
+            "onConfigured",
+            "firstFrame"};
+
+    private final long[]  mTimestamps = new long[STEP_COUNT];
+    private final boolean mWarm;
+
+    public CameraStartupTrace() {
+        this(false);
+    }
+
+    /**
+     * @param warm whether the camera device is already open
+     */
+    public CameraStartupTrace(boolean warm) {
+        mWarm = warm;
+    }
+
+    public boolean isWarm() {
+        return mWarm;
+    }
+
+    /**
+     * Record a step with current monotonic time, only the first mark of a step counts
+     * @return true if this is the first mark of step
+     */
+    public synchronized boolean mark(int step) {
+        if (mTimestamps[step] != 0) {
+            return false;
+        }
+        mTimestamps[step] = System.nanoTime();
+        return true;
+    }
+
+    public synchronized boolean isMarked(int step) {
+        return mTimestamps[step] != 0;
+    }
+
+    /**
+     * Timestamp of step in System.nanoTime() base, 0 if step isn't reached
+     */
+    public synchronized long getTimestampNs(int step) {
+        return mTimestamps[step];
+    }
+
+    /**
+     * Time from startPreview() to step, -1 if step isn't reached
+     */
+    public synchronized long getElapsedNs(int step) {
+        if (mTimestamps[STEP_START_PREVIEW] == 0 || mTimestamps[step] == 0) {
+            return -1;
+        }
+        return mTimestamps[step] - mTimestamps[STEP_START_PREVIEW];
+    }
+
+    public long getTimeToFirstFrameNs() {
+        return getElapsedNs(STEP_FIRST_FRAME);
+    }
+
+    public static String getStepName(int step) {
+        return STEP_NAMES[step];
+    }
+
+    public synchronized String dump() {
+        StringBuilder builder  = new StringBuilder(mWarm ? "CameraStartupTrace (warm)" : "CameraStartupTrace (cold)");
+        long          previous = mTimestamps[STEP_START_PREVIEW];
+        for (int step = 0; step < STEP_COUNT; step++) {
+            builder.append("\n  ").append(String.format("%-22s", STEP_NAMES[step]));
+            if (mTimestamps[step] == 0 || previous == 0) {
+                builder.append("      -");
+                continue;
+            }
+            builder.append(String.format("%+8.1fms  @%8.1fms",
+                    (mTimestamps[step] - previous) / 1e6,
+                    (mTimestamps[step] - mTimestamps[STEP_START_PREVIEW]) / 1e6));
+            previous = mTimestamps[step];
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,102 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Camera state machine
+ * Lock free operation state of CameraHelper. Lifecycle calls on the UI
+ * thread and camera callbacks on the camera thread move the state only
+ * along allowed transitions, each one a single compare-and-set, so no
+ * caller ever waits for another and a lost race shows up as a failed
+ * transition instead of a torn state.
+ *
+ *   CLOSED  -> OPENING -> OPEN -> CLOSING -> CLOSED
+ *   OPENING -> CLOSING           stopped before the camera is open
+ *   OPEN    -> WARM -> OPEN      kept alive, see CameraHelper.setKeepAlive()
+ *   WARM    -> CLOSING           keep-alive ended
+ *   any     -> CLOSED            camera error or disconnection, see reset()
+ */
+public class CameraStateMachine {
+
+    private static final String[] STATE_NAMES = new String[] {
+            "?", "OPENING", "OPEN", "CLOSING", "CLOSED", "WARM"};
+
+    private final AtomicInteger mState       = new AtomicInteger(CameraHelper.STATE_CLOSED);
+    private final AtomicLong    mTransitions = new AtomicLong();
+    private final AtomicLong    mLostRaces   = new AtomicLong();
+
+    public int get() {
+        return mState.get();
+    }
+
+    /**
+     * Move from state to state if the machine is in from
+     * @return false if the machine isn't in from, another caller won the race
+     * @throws IllegalArgumentException if from -> to isn't an allowed transition
+     */
+    public boolean transition(int from, int to) {
+        if (!isAllowed(from, to)) {
+            throw new IllegalArgumentException("Illegal transition " + getName(from) + " -> " + getName(to));
+        }
+        if (mState.compareAndSet(from, to)) {
+            mTransitions.incrementAndGet();
+            return true;
+        }
+        mLostRaces.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Move to CLOSED whatever the state, after the camera failed or was taken away
+     * @return state before
+     */
+    public int reset() {
+        int previous = mState.getAndSet(CameraHelper.STATE_CLOSED);
+        if (previous != CameraHelper.STATE_CLOSED) {
+            mTransitions.incrementAndGet();
+        }
+        return previous;
+    }
+
+    public static boolean isAllowed(int from, int to) {
+        switch (from) {
+            case CameraHelper.STATE_CLOSED:
+                return to == CameraHelper.STATE_OPENING;
+            case CameraHelper.STATE_OPENING:
+                return to == CameraHelper.STATE_OPEN || to == CameraHelper.STATE_CLOSING;
+            case CameraHelper.STATE_OPEN:
+                return to == CameraHelper.STATE_CLOSING || to == CameraHelper.STATE_WARM;
+            case CameraHelper.STATE_WARM:
+                return to == CameraHelper.STATE_OPEN || to == CameraHelper.STATE_CLOSING;
+            case CameraHelper.STATE_CLOSING:
+                return to == CameraHelper.STATE_CLOSED;
+            default:
+                return false;
+        }
+    }
+
+    public static String getName(int state) {
+        return state > 0 && state < STATE_NAMES.length ? STATE_NAMES[state] : String.valueOf(state);
+    }
+
+    /**
+     * Transitions made so far
+     */
+    public long getTransitionCount() {
+        return mTransitions.get();
+    }
+
+    /**
+     * Transitions which failed because the state had moved meanwhile
+     */
+    public long getLostRaceCount() {
+        return mLostRaces.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CameraStateMachine{%s, transitions=%d, lost races=%d}",
+                getName(mState.get()), mTransitions.get(), mLostRaces.get());
+    }
+}
@@ -0,0 +1,64 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+/**
+ * Capture latency statistics
+ * One latency histogram per stage between consecutive timeline points,
+ * plus one for the whole press-to-file latency, so a spike in save time
+ * can be traced to the stage which regressed.
+ */
+public class CaptureLatencyStats {
+
+    private final LatencyHistogram[] mStageHistograms = new LatencyHistogram[CaptureTimeline.POINT_COUNT];
+    private final LatencyHistogram   mTotalHistogram  = new LatencyHistogram();
+
+    public CaptureLatencyStats() {
+        for (int point = 1; point < CaptureTimeline.POINT_COUNT; point++) {
+            mStageHistograms[point] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Record a finished timeline. A stage is measured from the closest marked
+     * point before it, points missing in a shot are skipped.
+     */
+    public void record(CaptureTimeline timeline) {
+        int previous = CaptureTimeline.POINT_PRESSED;
+        for (int point = 1; point < CaptureTimeline.POINT_COUNT; point++) {
+            long duration = timeline.getDurationNs(previous, point);
+            if (duration >= 0) {
+                mStageHistograms[point].recordNs(duration);
+                previous = point;
+            }
+        }
+        mTotalHistogram.recordNs(timeline.getDurationNs(CaptureTimeline.POINT_PRESSED, CaptureTimeline.POINT_WRITTEN));
+    }
+
+    /**
+     * Histogram of the stage ending at point
+     * @param point CaptureTimeline.POINT_*, except POINT_PRESSED
+     */
+    public LatencyHistogram getStageHistogram(int point) {
+        return mStageHistograms[point].snapshot();
+    }
+
+    public LatencyHistogram getTotalHistogram() {
+        return mTotalHistogram.snapshot();
+    }
+
+    public void reset() {
+        for (int point = 1; point < CaptureTimeline.POINT_COUNT; point++) {
+            mStageHistograms[point].reset();
+        }
+        mTotalHistogram.reset();
+    }
+
+    public String dump() {
+        StringBuilder builder = new StringBuilder("CaptureLatencyStats");
+        for (int point = 1; point < CaptureTimeline.POINT_COUNT; point++) {
+            builder.append(String.format("\n  %-18s %s",
+                    CaptureTimeline.getPointName(point), mStageHistograms[point].snapshot()));
+        }
+        builder.append(String.format("\n  %-18s %s", "total", mTotalHistogram.snapshot()));
+        return builder.toString();
+    }
+}
@@ -0,0 +1,79 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Capture pipeline
+ * Ordered set of chained stages a captured frame goes through,
+ * used to report the sustained frame rate and per-stage queue depth.
+ */
+public class CapturePipeline {
+
+    private final List<PipelineStage<?, ?>> mStages = new CopyOnWriteArrayList<PipelineStage<?, ?>>();
+
+    public CapturePipeline addStage(PipelineStage<?, ?> stage) {
+        mStages.add(stage);
+        return this;
+    }
+
+    public boolean removeStage(PipelineStage<?, ?> stage) {
+        return mStages.remove(stage);
+    }
+
+    /**
+     * Put newStage in place of oldStage, keeping the order of stages
+     * @return false if oldStage isn't in this pipeline
+     */
+    public boolean replaceStage(PipelineStage<?, ?> oldStage, PipelineStage<?, ?> newStage) {
+        int index = mStages.indexOf(oldStage);
+        if (index < 0) {
+            return false;
+        }
+        mStages.set(index, newStage);
+        return true;
+    }
+
+    public List<PipelineStage<?, ?>> getStages() {
+        return mStages;
+    }
+
+    public void start() {
+        for (PipelineStage<?, ?> stage : mStages) {
+            stage.start();
+        }
+    }
+
+    public void stop() {
+        for (PipelineStage<?, ?> stage : mStages) {
+            stage.stop();
+        }
+    }
+
+    /**
+     * Sustained frame rate is bounded by the last stage of the pipeline
+     */
+    public double getFramesPerSecond() {
+        if (mStages.isEmpty()) {
+            return 0.0;
+        }
+        return mStages.get(mStages.size() - 1).getFramesPerSecond();
+    }
+
+    public int getQueuedFrameCount() {
+        int count = 0;
+        for (PipelineStage<?, ?> stage : mStages) {
+            count += stage.getQueueDepth();
+        }
+        return count;
+    }
+
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("CapturePipeline fps=%.2f", getFramesPerSecond()));
+        for (PipelineStage<?, ?> stage : mStages) {
+            builder.append("\n  ").append(stage);
+        }
+        return builder.toString();
+    }
+}
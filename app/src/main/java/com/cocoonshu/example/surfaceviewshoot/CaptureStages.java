@@ -0,0 +1,143 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+/**
+ * Capture stages
+ * The decode and composite stages captures go through, with the queue
+ * depths, backpressure policies, sinks and timeline marks the app runs
+ * them with. CameraHelper on a device and the replay harness on a desktop
+ * JVM both assemble their pipeline here, only what decoding and compositing
+ * do is platform specific and plugged in as processors. The write stage
+ * after them is configured by WRITE_QUEUE_CAPACITY and WRITE_POLICY.
+ * @param <C> captured frame, queued for decoding
+ * @param <D> decoded frame, queued for compositing
+ * @param <O> composited output, handed to the sink of the composite stage
+ */
+public class CaptureStages<C extends CaptureStages.Shot, D extends CaptureStages.Shot, O> {
+
+    public  static final String NAME_DECODE_STAGE        = "decode";
+    public  static final String NAME_COMPOSITE_STAGE     = "composite";
+    public  static final String NAME_WRITE_STAGE         = "write";
+    public  static final int    DECODE_QUEUE_DEPTH       = 6; // A default burst and one more
+    public  static final int    DECODE_POLICY            = PipelineStage.POLICY_REJECT;
+    public  static final int    COMPOSITE_QUEUE_CAPACITY = 2;
+    public  static final int    WRITE_QUEUE_CAPACITY     = 4;
+    public  static final int    WRITE_POLICY             = PipelineStage.POLICY_BLOCK;
+
+    private final CapturePipeline               mPipeline;
+    private final PipelineStage.Processor<C, D> mDecodeProcessor;
+    private final PipelineStage<D, O>           mCompositeStage;
+    private final Listener<C, D>                mListener;
+    private volatile PipelineStage<C, D>        mDecodeStage = null;
+
+    /**
+     * A capture on its way through the stages
+     */
+    public interface Shot {
+        CaptureTimeline getTimeline();
+    }
+
+    /**
+     * Captures which leave the stages before they are composited
+     */
+    public interface Listener<C, D> {
+        /**
+         * Called on the producer thread for a frame which a full decode
+         * queue drops, release what it holds
+         */
+        void onDropped(C captured);
+
+        /**
+         * Called on the decode stage thread when the decoder threw
+         */
+        void onDecodeFailed(C captured, Exception error);
+
+        /**
+         * Called on the composite stage thread when the compositor threw
+         */
+        void onCompositeFailed(D decoded, Exception error);
+    }
+
+    /**
+     * Assemble the stages and add them to pipeline, which starts them
+     * @param decoder    decode processor, returning null for a frame it
+     *                   handed on by itself, which then marks its timeline
+     * @param compositor composite processor
+     */
+    public CaptureStages(CapturePipeline pipeline,
+                         final PipelineStage.Processor<C, D> decoder,
+                         PipelineStage.Processor<D, O> compositor,
+                         Listener<C, D> listener) {
+        mPipeline        = pipeline;
+        mListener        = listener;
+        mDecodeProcessor = new PipelineStage.Processor<C, D>() {
+            @Override
+            public D process(C captured) throws Exception {
+                D decoded = decoder.process(captured);
+                if (decoded != null) {
+                    decoded.getTimeline().mark(CaptureTimeline.POINT_DECODED);
+                }
+                return decoded;
+            }
+        };
+
+        mCompositeStage = new PipelineStage<D, O>(NAME_COMPOSITE_STAGE, COMPOSITE_QUEUE_CAPACITY, compositor);
+        mCompositeStage.setFailedSink(new PipelineStage.FailedSink<D>() {
+            @Override
+            public void accept(D decoded, Exception error) {
+                mListener.onCompositeFailed(decoded, error);
+            }
+        });
+
+        mDecodeStage = createDecodeStage(DECODE_QUEUE_DEPTH, DECODE_POLICY);
+        mPipeline.addStage(mDecodeStage).addStage(mCompositeStage);
+    }
+
+    /**
+     * Queue a captured frame for decoding, never blocks unless the decode
+     * policy is POLICY_BLOCK
+     * @return false if the frame is dropped
+     */
+    public boolean accept(C captured) {
+        return mDecodeStage.accept(captured);
+    }
+
+    /**
+     * Replace the decode queue, frames still queued are dropped by the change
+     * @param queueDepth frames which may wait for decoding
+     * @param policy     PipelineStage.POLICY_DROP_OLDEST, POLICY_REJECT or POLICY_BLOCK
+     */
+    public void setDecodeQueue(int queueDepth, int policy) {
+        PipelineStage<C, D> oldStage = mDecodeStage;
+        PipelineStage<C, D> newStage = createDecodeStage(queueDepth, policy);
+        newStage.start();
+        mDecodeStage = newStage;
+        mPipeline.replaceStage(oldStage, newStage);
+        oldStage.stop();
+    }
+
+    public PipelineStage<C, D> getDecodeStage() {
+        return mDecodeStage;
+    }
+
+    public PipelineStage<D, O> getCompositeStage() {
+        return mCompositeStage;
+    }
+
+    private PipelineStage<C, D> createDecodeStage(int queueDepth, int policy) {
+        PipelineStage<C, D> stage = new PipelineStage<C, D>(NAME_DECODE_STAGE, queueDepth, policy, mDecodeProcessor);
+        stage.setDroppedSink(new PipelineStage.Sink<C>() {
+            @Override
+            public void accept(C captured) {
+                mListener.onDropped(captured);
+            }
+        });
+        stage.setFailedSink(new PipelineStage.FailedSink<C>() {
+            @Override
+            public void accept(C captured, Exception error) {
+                mListener.onDecodeFailed(captured, error);
+            }
+        });
+        stage.then(mCompositeStage);
+        return stage;
+    }
+}
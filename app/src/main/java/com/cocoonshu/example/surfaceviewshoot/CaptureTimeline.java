@@ -0,0 +1,81 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+/**
+ * Capture timeline
+ * Monotonic timestamps of one shot from button press to the closed file.
+ * A timeline travels with its frame through the capture pipeline,
+ * points a shot doesn't go through (zero shutter lag has no still request)
+ * stay unmarked.
+ */
+public class CaptureTimeline {
+
+    public  static final int      POINT_PRESSED           = 0;
+    public  static final int      POINT_CAPTURE_STARTED   = 1;
+    public  static final int      POINT_CAPTURE_COMPLETED = 2;
+    public  static final int      POINT_IMAGE_AVAILABLE   = 3;
+    public  static final int      POINT_DECODED           = 4;
+    public  static final int      POINT_COMPOSITED        = 5;
+    public  static final int      POINT_WRITTEN           = 6;
+    public  static final int      POINT_COUNT             = 7;
+    private static final String[] POINT_NAMES             = new String[] {
+            "pressed",
+            "captureStarted",
+            "captureCompleted",
+            "imageAvailable",
+            "decoded",
+            "composited",
+            "written"};
+
+    private final long[] mTimestamps = new long[POINT_COUNT];
+
+    /**
+     * Create a timeline with its press time marked
+     */
+    public static CaptureTimeline pressed() {
+        CaptureTimeline timeline = new CaptureTimeline();
+        timeline.mark(POINT_PRESSED);
+        return timeline;
+    }
+
+    public synchronized void mark(int point) {
+        mTimestamps[point] = System.nanoTime();
+    }
+
+    /**
+     * Timestamp of point in System.nanoTime() base, 0 if not marked
+     */
+    public synchronized long getTimestampNs(int point) {
+        return mTimestamps[point];
+    }
+
+    /**
+     * Duration between two points, -1 if either isn't marked
+     */
+    public synchronized long getDurationNs(int fromPoint, int toPoint) {
+        if (mTimestamps[fromPoint] == 0 || mTimestamps[toPoint] == 0) {
+            return -1;
+        }
+        return mTimestamps[toPoint] - mTimestamps[fromPoint];
+    }
+
+    public static String getPointName(int point) {
+        return POINT_NAMES[point];
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("CaptureTimeline{");
+        for (int point = 1; point < POINT_COUNT; point++) {
+            if (point > 1) {
+                builder.append(", ");
+            }
+            builder.append(POINT_NAMES[point]).append('=');
+            if (mTimestamps[point] == 0 || mTimestamps[POINT_PRESSED] == 0) {
+                builder.append('-');
+            } else {
+                builder.append((mTimestamps[point] - mTimestamps[POINT_PRESSED]) / 1000000).append("ms");
+            }
+        }
+        return builder.append('}').toString();
+    }
+}
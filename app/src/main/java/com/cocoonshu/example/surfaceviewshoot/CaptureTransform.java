@@ -0,0 +1,130 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+/**
+ * Capture transform
+ * How captured pixels, which come in sensor orientation, are turned upright
+ * on the display: a clockwise rotation followed by a horizontal mirror for
+ * front facing lenses, so a picture looks like its preview. The transform
+ * isn't applied to a buffer of its own, MaskCompositor folds it into the
+ * sampling which scales and masks the picture, see MaskCompositor.composite().
+ */
+public class CaptureTransform {
+
+    public static final int              LENS_FACING_FRONT = 0; // CameraCharacteristics.LENS_FACING_FRONT
+    public static final int              LENS_FACING_BACK  = 1; // CameraCharacteristics.LENS_FACING_BACK
+    public static final CaptureTransform IDENTITY          = new CaptureTransform(MaskCompositor.ROTATION_0, false);
+
+    private final int     mRotation;
+    private final boolean mMirrored;
+
+    /**
+     * @param rotation clockwise rotation, one of MaskCompositor.ROTATION_*
+     * @param mirrored whether rotated pixels are mirrored horizontally
+     */
+    public CaptureTransform(int rotation, boolean mirrored) {
+        if (rotation != MaskCompositor.ROTATION_0 && rotation != MaskCompositor.ROTATION_90
+                && rotation != MaskCompositor.ROTATION_180 && rotation != MaskCompositor.ROTATION_270) {
+            throw new IllegalArgumentException("Unsupported rotation " + rotation);
+        }
+        mRotation = rotation;
+        mMirrored = mirrored;
+    }
+
+    /**
+     * Transform from sensor orientation to display orientation
+     * @param sensorOrientation CameraCharacteristics.SENSOR_ORIENTATION, in degrees
+     * @param displayRotation   rotation of the display from its natural orientation, in degrees
+     * @param facing            LENS_FACING_FRONT or LENS_FACING_BACK
+     */
+    public static CaptureTransform create(int sensorOrientation, int displayRotation, int facing) {
+        if (facing == LENS_FACING_FRONT) {
+            // Front lens looks at the user, preview is shown mirrored
+            return new CaptureTransform((sensorOrientation + displayRotation) % 360, true);
+        } else {
+            return new CaptureTransform((sensorOrientation - displayRotation + 360) % 360, false);
+        }
+    }
+
+    public int getRotation() {
+        return mRotation;
+    }
+
+    public boolean isMirrored() {
+        return mMirrored;
+    }
+
+    /**
+     * Whether width and height swap between sensor and display orientation
+     */
+    public boolean isTransposed() {
+        return mRotation == MaskCompositor.ROTATION_90 || mRotation == MaskCompositor.ROTATION_270;
+    }
+
+    /**
+     * Width in display orientation of a size in sensor orientation, or the other way round
+     */
+    public int getTransformedWidth(int width, int height) {
+        return isTransposed() ? height : width;
+    }
+
+    /**
+     * Height in display orientation of a size in sensor orientation, or the other way round
+     */
+    public int getTransformedHeight(int width, int height) {
+        return isTransposed() ? width : height;
+    }
+
+    /**
+     * Affine matrix from pixel centers of a srcWidth x srcHeight picture to
+     * pixel centers of the transformed picture, row-major 3x3 as
+     * android.graphics.Matrix.setValues() takes it
+     */
+    public float[] getMatrix(int srcWidth, int srcHeight) {
+        float   right  = srcWidth - 1;
+        float   bottom = srcHeight - 1;
+        float[] matrix;
+        switch (mRotation) {
+            case MaskCompositor.ROTATION_90:
+                // (x, y) -> (bottom - y, x)
+                matrix = new float[] {0, -1, bottom, 1, 0, 0, 0, 0, 1};
+                break;
+            case MaskCompositor.ROTATION_180:
+                matrix = new float[] {-1, 0, right, 0, -1, bottom, 0, 0, 1};
+                break;
+            case MaskCompositor.ROTATION_270:
+                // (x, y) -> (y, right - x)
+                matrix = new float[] {0, 1, 0, -1, 0, right, 0, 0, 1};
+                break;
+            default:
+                matrix = new float[] {1, 0, 0, 0, 1, 0, 0, 0, 1};
+                break;
+        }
+        if (mMirrored) {
+            // x -> width - 1 - x after rotation
+            float lastColumn = getTransformedWidth(srcWidth, srcHeight) - 1;
+            matrix[0] = -matrix[0];
+            matrix[1] = -matrix[1];
+            matrix[2] = lastColumn - matrix[2];
+        }
+        return matrix;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof CaptureTransform)) {
+            return false;
+        }
+        CaptureTransform transform = (CaptureTransform) other;
+        return mRotation == transform.mRotation && mMirrored == transform.mMirrored;
+    }
+
+    @Override
+    public int hashCode() {
+        return mRotation * 2 + (mMirrored ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "CaptureTransform{rotate " + mRotation + (mMirrored ? ", mirror}" : "}");
+    }
+}
@@ -0,0 +1,225 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Convergence trigger
+ * Decide when a still capture is fired after the shutter is pressed, from
+ * the AF and AE states of preview results. The capture fires on the first
+ * result with 3A converged. Otherwise one precapture sequence is asked for
+ * and the capture fires once 3A settles, or when the precapture runs out
+ * of frames or time, whichever comes first, so a shot is never held back
+ * for long. States are CaptureResult.CONTROL_AF_STATE_* and
+ * CONTROL_AE_STATE_* values, null where the camera doesn't report them,
+ * so decisions can be replayed from recorded result sequences off device.
+ */
+public class ConvergenceTrigger {
+
+    public  static final int  ACTION_NONE                 = 0;
+    public  static final int  ACTION_START_PRECAPTURE     = 1;
+    public  static final int  ACTION_CAPTURE              = 2;
+
+    public  static final int  REASON_CONVERGED            = 0; // 3A converged when pressed
+    public  static final int  REASON_PRECAPTURED          = 1; // 3A converged after precapture
+    public  static final int  REASON_TIMED_OUT            = 2; // Precapture ran out of frames or time
+    private static final int  REASON_COUNT                = 3;
+
+    public  static final int  DEFAULT_MAX_FRAMES          = 10;
+    public  static final long DEFAULT_TIMEOUT_NS          = 500 * 1000000L;
+
+    // CaptureResult.CONTROL_AF_STATE_*
+    public  static final int  AF_STATE_INACTIVE           = 0;
+    public  static final int  AF_STATE_PASSIVE_SCAN       = 1;
+    public  static final int  AF_STATE_PASSIVE_FOCUSED    = 2;
+    public  static final int  AF_STATE_ACTIVE_SCAN        = 3;
+    public  static final int  AF_STATE_FOCUSED_LOCKED     = 4;
+    public  static final int  AF_STATE_NOT_FOCUSED_LOCKED = 5;
+    public  static final int  AF_STATE_PASSIVE_UNFOCUSED  = 6;
+
+    // CaptureResult.CONTROL_AE_STATE_*
+    public  static final int  AE_STATE_INACTIVE           = 0;
+    public  static final int  AE_STATE_SEARCHING          = 1;
+    public  static final int  AE_STATE_CONVERGED          = 2;
+    public  static final int  AE_STATE_LOCKED             = 3;
+    public  static final int  AE_STATE_FLASH_REQUIRED     = 4;
+    public  static final int  AE_STATE_PRECAPTURE         = 5;
+
+    private static final String[] REASON_NAMES = new String[] {"converged", "precaptured", "timed out"};
+
+    private final int              mMaxFrames;
+    private final long             mTimeoutNs;
+    private boolean                mArmed               = false;
+    private boolean                mPrecapturing        = false;
+    private long                   mArmedNs             = 0;
+    private int                    mPrecaptureFrames    = 0;
+    private int                    mLastReason          = REASON_CONVERGED;
+    private long                   mLastWaitNs          = 0;
+    private final AtomicLong[]     mReasonCounts        = new AtomicLong[REASON_COUNT];
+    private final LatencyHistogram mWaitHistogram       = new LatencyHistogram();
+    private final LatencyHistogram mShutterLagHistogram = new LatencyHistogram();
+
+    public ConvergenceTrigger() {
+        this(DEFAULT_MAX_FRAMES, DEFAULT_TIMEOUT_NS);
+    }
+
+    /**
+     * @param maxFrames preview results to wait for after a precapture is started
+     * @param timeoutNs longest wait from arm() to capture
+     */
+    public ConvergenceTrigger(int maxFrames, long timeoutNs) {
+        mMaxFrames = Math.max(1, maxFrames);
+        mTimeoutNs = Math.max(0, timeoutNs);
+        for (int i = 0; i < REASON_COUNT; i++) {
+            mReasonCounts[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Shutter pressed, the next results decide when the capture fires
+     * @return false if a capture is armed already
+     */
+    public synchronized boolean arm(long nowNs) {
+        if (mArmed) {
+            return false;
+        }
+        mArmed            = true;
+        mPrecapturing     = false;
+        mArmedNs          = nowNs;
+        mPrecaptureFrames = 0;
+        return true;
+    }
+
+    public long getTimeoutNs() {
+        return mTimeoutNs;
+    }
+
+    public synchronized boolean isArmed() {
+        return mArmed;
+    }
+
+    /**
+     * Drop an armed capture, e.g. when the session is closed
+     */
+    public synchronized void disarm() {
+        mArmed        = false;
+        mPrecapturing = false;
+    }
+
+    /**
+     * Feed the 3A states of a preview result
+     * @param afState CONTROL_AF_STATE, or null if not reported
+     * @param aeState CONTROL_AE_STATE, or null if not reported
+     * @param nowNs   time of the result, in the time base of arm()
+     * @return ACTION_*, what to do now
+     */
+    public synchronized int onResult(Integer afState, Integer aeState, long nowNs) {
+        if (!mArmed) {
+            return ACTION_NONE;
+        }
+        if (isAfReady(afState) && isAeReady(aeState)) {
+            return fire(mPrecapturing ? REASON_PRECAPTURED : REASON_CONVERGED, nowNs);
+        }
+        if (nowNs - mArmedNs >= mTimeoutNs) {
+            return fire(REASON_TIMED_OUT, nowNs);
+        }
+        if (!mPrecapturing) {
+            mPrecapturing = true;
+            return ACTION_START_PRECAPTURE;
+        }
+        if (++mPrecaptureFrames >= mMaxFrames) {
+            return fire(REASON_TIMED_OUT, nowNs);
+        }
+        return ACTION_NONE;
+    }
+
+    /**
+     * No result came in time, e.g. preview stalled
+     * @return ACTION_CAPTURE if a capture was armed for longer than the timeout
+     */
+    public synchronized int onTimeout(long nowNs) {
+        if (!mArmed || nowNs - mArmedNs < mTimeoutNs) {
+            return ACTION_NONE;
+        }
+        return fire(REASON_TIMED_OUT, nowNs);
+    }
+
+    /**
+     * Whether the focus the capture would get is as good as it gets without a trigger.
+     * Only a scan in progress, or a passive scan which lost focus, is worth
+     * waiting for. NOT_FOCUSED_LOCKED is a scan which finished without
+     * focus, waiting won't make it any sharper, so the shot is taken rather
+     * than held back until the timeout. INACTIVE means AF is off, fixed
+     * focus or not started, there is no scan to wait for either.
+     */
+    public static boolean isAfReady(Integer afState) {
+        if (afState == null) {
+            return true;
+        }
+        switch (afState) {
+            case AF_STATE_PASSIVE_SCAN:
+            case AF_STATE_ACTIVE_SCAN:
+            case AF_STATE_PASSIVE_UNFOCUSED:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    public static boolean isAeReady(Integer aeState) {
+        return aeState == null || (aeState != AE_STATE_SEARCHING && aeState != AE_STATE_PRECAPTURE);
+    }
+
+    /**
+     * Record time from press to the start of exposure of the captured frame
+     */
+    public void recordShutterLagNs(long lagNs) {
+        mShutterLagHistogram.recordNs(lagNs);
+    }
+
+    /**
+     * REASON_* of the last fired capture
+     */
+    public synchronized int getLastReason() {
+        return mLastReason;
+    }
+
+    /**
+     * Time from arm() to the last fired capture
+     */
+    public synchronized long getLastWaitNs() {
+        return mLastWaitNs;
+    }
+
+    public long getCount(int reason) {
+        return mReasonCounts[reason].get();
+    }
+
+    public LatencyHistogram getWaitHistogram() {
+        return mWaitHistogram;
+    }
+
+    public LatencyHistogram getShutterLagHistogram() {
+        return mShutterLagHistogram;
+    }
+
+    public static String getReasonName(int reason) {
+        return REASON_NAMES[reason];
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ConvergenceTrigger{converged=%d, precaptured=%d, timed out=%d, wait %s, shutter lag %s}",
+                getCount(REASON_CONVERGED), getCount(REASON_PRECAPTURED), getCount(REASON_TIMED_OUT),
+                mWaitHistogram, mShutterLagHistogram);
+    }
+
+    private int fire(int reason, long nowNs) {
+        mArmed        = false;
+        mPrecapturing = false;
+        mLastReason   = reason;
+        mLastWaitNs   = nowNs - mArmedNs;
+        mReasonCounts[reason].incrementAndGet();
+        mWaitHistogram.recordNs(mLastWaitNs);
+        return ACTION_CAPTURE;
+    }
+}
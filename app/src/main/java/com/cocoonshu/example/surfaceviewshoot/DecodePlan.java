@@ -0,0 +1,117 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+/**
+ * Decode plan
+ * Describe how a captured JPEG should be decoded to reach a target size:
+ * a power-of-two inSampleSize which the JPEG decoder handles natively,
+ * followed by a density scale down to the target size.
+ * The decoded image always covers the target size, it is never upscaled.
+ */
+public class DecodePlan {
+
+    private static final int BYTES_PER_PIXEL = 4; // ARGB_8888
+
+    private int mSourceWidth   = 0;
+    private int mSourceHeight  = 0;
+    private int mSampleSize    = 1;
+    private int mSampledWidth  = 0;
+    private int mSampledHeight = 0;
+    private int mDecodedWidth  = 0;
+    private int mDecodedHeight = 0;
+
+    private DecodePlan() {
+
+    }
+
+    /**
+     * Plan a decode of a srcWidth x srcHeight image for a destWidth x destHeight output
+     * @param srcWidth
+     * @param srcHeight
+     * @param destWidth  target width, or 0 to decode at full size
+     * @param destHeight target height, or 0 to decode at full size
+     * @return
+     */
+    public static DecodePlan plan(int srcWidth, int srcHeight, int destWidth, int destHeight) {
+        DecodePlan plan = new DecodePlan();
+        plan.mSourceWidth  = srcWidth;
+        plan.mSourceHeight = srcHeight;
+        if (destWidth <= 0 || destHeight <= 0) {
+            destWidth  = srcWidth;
+            destHeight = srcHeight;
+        }
+
+        plan.mSampleSize    = ImageMath.computeSampleSize(srcWidth, srcHeight, destWidth, destHeight);
+        plan.mSampledWidth  = (srcWidth + plan.mSampleSize - 1) / plan.mSampleSize;
+        plan.mSampledHeight = (srcHeight + plan.mSampleSize - 1) / plan.mSampleSize;
+
+        // Scale uniformly so that both sides still cover the target
+        float scale = ImageMath.scaleImage(
+                plan.mSampledWidth, plan.mSampledHeight,
+                destWidth, destHeight,
+                ImageMath.SCALE_MODE_FILL);
+        if (scale < 1f) {
+            plan.mDecodedWidth  = Math.max(destWidth, (int) (plan.mSampledWidth * scale + 0.5f));
+            plan.mDecodedHeight = Math.max(destHeight, (int) (plan.mSampledHeight * scale + 0.5f));
+        } else {
+            plan.mDecodedWidth  = plan.mSampledWidth;
+            plan.mDecodedHeight = plan.mSampledHeight;
+        }
+        return plan;
+    }
+
+    public int getSampleSize() {
+        return mSampleSize;
+    }
+
+    public boolean isScaled() {
+        return mDecodedWidth != mSampledWidth;
+    }
+
+    /**
+     * Density pair for BitmapFactory.Options.inDensity
+     */
+    public int getDensity() {
+        return mSampledWidth;
+    }
+
+    /**
+     * Density pair for BitmapFactory.Options.inTargetDensity
+     */
+    public int getTargetDensity() {
+        return mDecodedWidth;
+    }
+
+    public int getDecodedWidth() {
+        return mDecodedWidth;
+    }
+
+    public int getDecodedHeight() {
+        return mDecodedHeight;
+    }
+
+    public long getDecodedBytes() {
+        return (long) mDecodedWidth * mDecodedHeight * BYTES_PER_PIXEL;
+    }
+
+    public long getFullDecodeBytes() {
+        return (long) mSourceWidth * mSourceHeight * BYTES_PER_PIXEL;
+    }
+
+    /**
+     * Estimated peak heap of the decode, the sampled bitmap and the
+     * density scaled bitmap may both be alive while scaling
+     */
+    public long getPeakBytes() {
+        long sampledBytes = (long) mSampledWidth * mSampledHeight * BYTES_PER_PIXEL;
+        return isScaled() ? sampledBytes + getDecodedBytes() : sampledBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "DecodePlan{" + mSourceWidth + "x" + mSourceHeight
+                + " -> 1/" + mSampleSize + " " + mSampledWidth + "x" + mSampledHeight
+                + " -> " + mDecodedWidth + "x" + mDecodedHeight
+                + ", peak=" + getPeakBytes() / 1024 + "KB"
+                + ", full=" + getFullDecodeBytes() / 1024 + "KB}";
+    }
+}
@@ -0,0 +1,87 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+/**
+ * Deferred closer
+ * Close a shared resource, e.g. the ImageReader behind retained camera
+ * frames, only once its last user is released. Users are admitted up to a
+ * limit, and none after close() is asked for. The close action runs once,
+ * on the thread calling close() if there is no user left, otherwise on the
+ * thread releasing the last user.
+ */
+public class DeferredCloser {
+
+    private final int      mMaxUsers;
+    private final Runnable mCloseAction;
+    private int            mUserCount = 0;
+    private boolean        mClosing   = false;
+    private boolean        mClosed    = false;
+
+    /**
+     * @param maxUsers    users admitted at once
+     * @param closeAction what closes the resource
+     */
+    public DeferredCloser(int maxUsers, Runnable closeAction) {
+        mMaxUsers    = maxUsers;
+        mCloseAction = closeAction;
+    }
+
+    /**
+     * Admit a user, the resource stays open until it is released
+     * @return false if the limit is reached or the resource is closing
+     */
+    public synchronized boolean acquire() {
+        if (mClosing || mUserCount >= mMaxUsers) {
+            return false;
+        }
+        mUserCount++;
+        return true;
+    }
+
+    /**
+     * Release an admitted user, closing the resource if it was the last one of a closing resource
+     */
+    public void release() {
+        synchronized (this) {
+            if (mUserCount == 0) {
+                throw new IllegalStateException("Released more users than acquired");
+            }
+            mUserCount--;
+            if (!shouldClose()) {
+                return;
+            }
+        }
+        mCloseAction.run();
+    }
+
+    /**
+     * Close the resource now, or once the users left are released
+     */
+    public void close() {
+        synchronized (this) {
+            mClosing = true;
+            if (!shouldClose()) {
+                return;
+            }
+        }
+        mCloseAction.run();
+    }
+
+    public synchronized int getUserCount() {
+        return mUserCount;
+    }
+
+    /**
+     * Whether the close action has run, or is running
+     */
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    private boolean shouldClose() {
+        if (!mClosing || mClosed || mUserCount > 0) {
+            return false;
+        }
+        mClosed = true;
+        return true;
+    }
+}
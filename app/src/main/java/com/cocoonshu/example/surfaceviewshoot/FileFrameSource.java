@@ -0,0 +1,213 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * File frame source
+ * Replay JPEG and YUV files as captured frames at a fixed rate, on a plain
+ * JVM as well as on a device. Files are read into memory when the source is
+ * created, so disk reads don't add to the pipeline being measured. Each
+ * frame starts a shot timeline the moment it is emitted.
+ *
+ * JPEG files are named *.jpg or *.jpeg, YUV files hold packed I420 data and
+ * are named *_<width>x<height>.yuv.
+ */
+public class FileFrameSource implements FrameSource {
+
+    private static final String  NAME_REPLAY_THREAD = "FileFrameSource";
+    private static final Pattern YUV_SIZE_PATTERN   = Pattern.compile(".*_(\\d+)x(\\d+)\\.yuv");
+
+    private final List<Frame> mFrames          = new ArrayList<Frame>();
+    private final double      mFramesPerSecond;
+    private final int         mFrameCount;
+    private volatile Thread   mReplayThread    = null;
+    private volatile long     mEmittedCount    = 0;
+
+    /**
+     * @param files           JPEG or YUV files, replayed in order and looped
+     * @param framesPerSecond emit rate, 0 or less to emit as fast as the listener returns
+     * @param frameCount      frames to emit before the source finishes
+     */
+    public FileFrameSource(List<File> files, double framesPerSecond, int frameCount) throws IOException {
+        for (File file : files) {
+            mFrames.add(readFrame(file));
+        }
+        if (mFrames.isEmpty()) {
+            throw new IllegalArgumentException("No frame to replay");
+        }
+        mFramesPerSecond = framesPerSecond;
+        mFrameCount      = frameCount;
+    }
+
+    /**
+     * Collect replayable files of a directory in name order
+     */
+    public static List<File> listFrameFiles(File dir) {
+        List<File> files = new ArrayList<File>();
+        File[]     items = dir.listFiles();
+        if (items == null) {
+            return files;
+        }
+        Arrays.sort(items);
+        for (File item : items) {
+            String name = item.getName().toLowerCase(Locale.US);
+            if (item.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".yuv"))) {
+                files.add(item);
+            }
+        }
+        return files;
+    }
+
+    @Override
+    public synchronized void start(final Listener listener) {
+        if (mReplayThread != null) {
+            return;
+        }
+        mEmittedCount = 0;
+        mReplayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay(listener);
+            }
+        }, NAME_REPLAY_THREAD);
+        mReplayThread.setDaemon(true);
+        mReplayThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mReplayThread != null) {
+            mReplayThread.interrupt();
+            mReplayThread = null;
+        }
+    }
+
+    /**
+     * Wait until all frames are emitted or the source is stopped
+     * @return false if timed out
+     */
+    public boolean awaitCompletion(long timeoutMs) throws InterruptedException {
+        Thread replayThread = mReplayThread;
+        if (replayThread != null) {
+            replayThread.join(timeoutMs);
+            return !replayThread.isAlive();
+        }
+        return true;
+    }
+
+    public long getEmittedCount() {
+        return mEmittedCount;
+    }
+
+    public int getFrameFileCount() {
+        return mFrames.size();
+    }
+
+    private void replay(Listener listener) {
+        long intervalNs = mFramesPerSecond > 0 ? (long) (1e9 / mFramesPerSecond) : 0;
+        long startTime  = System.nanoTime();
+        for (int i = 0; i < mFrameCount && !Thread.currentThread().isInterrupted(); i++) {
+            // Keep a steady rate from the start instead of sleeping a fixed interval after each frame
+            long delayNs = startTime + i * intervalNs - System.nanoTime();
+            if (delayNs > 0) {
+                try {
+                    Thread.sleep(delayNs / 1000000, (int) (delayNs % 1000000));
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            Frame source = mFrames.get(i % mFrames.size());
+            listener.onFrameAvailable(new Frame(source.getFormat(), source.getData(),
+                    source.getWidth(), source.getHeight(), System.nanoTime(), CaptureTimeline.pressed()));
+            mEmittedCount = i + 1;
+        }
+    }
+
+    private static Frame readFrame(File file) throws IOException {
+        byte[] data = readBytes(file);
+        String name = file.getName().toLowerCase(Locale.US);
+        if (name.endsWith(".yuv")) {
+            Matcher matcher = YUV_SIZE_PATTERN.matcher(name);
+            if (!matcher.matches()) {
+                throw new IOException("YUV file name has no size: " + file);
+            }
+            int width  = Integer.parseInt(matcher.group(1));
+            int height = Integer.parseInt(matcher.group(2));
+            if (data.length < width * height * 3 / 2) {
+                throw new IOException("YUV file is too short for " + width + "x" + height + ": " + file);
+            }
+            return new Frame(Frame.FORMAT_YUV_420_888, ByteBuffer.wrap(data), width, height, 0, null);
+        }
+
+        int[] size = readJpegSize(data);
+        if (size == null) {
+            throw new IOException("Not a baseline or progressive JPEG: " + file);
+        }
+        return new Frame(Frame.FORMAT_JPEG, ByteBuffer.wrap(data), size[0], size[1], 0, null);
+    }
+
+    /**
+     * Size of a JPEG from its start of frame segment
+     * @return {width, height}, or null if there is no start of frame
+     */
+    static int[] readJpegSize(byte[] data) {
+        if (data.length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != 0xD8) {
+            return null;
+        }
+        int offset = 2;
+        while (offset + 4 <= data.length) {
+            if ((data[offset] & 0xFF) != 0xFF) {
+                return null;
+            }
+            int marker = data[offset + 1] & 0xFF;
+            if (marker == 0xFF) {
+                offset++;
+                continue;
+            }
+            int length = ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+            // SOF0 ~ SOF15, except DHT, JPG and DAC
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                if (offset + 9 > data.length) {
+                    return null;
+                }
+                int height = ((data[offset + 5] & 0xFF) << 8) | (data[offset + 6] & 0xFF);
+                int width  = ((data[offset + 7] & 0xFF) << 8) | (data[offset + 8] & 0xFF);
+                return new int[] {width, height};
+            }
+            offset += 2 + length;
+        }
+        return null;
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int    read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            if (read != data.length) {
+                throw new IOException("Short read of " + file);
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+}
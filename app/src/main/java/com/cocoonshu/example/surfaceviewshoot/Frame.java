@@ -0,0 +1,230 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frame
+ * One encoded or raw picture delivered by a FrameSource, with no dependency
+ * on android.media. Frame data is only valid inside the listener call it is
+ * delivered to, copy it out to keep it, or retain() the frame if its source
+ * can keep the data valid, e.g. a camera Image, and release() it when done.
+ *
+ * FORMAT_YUV_420_888 data is either packed as I420: the full Y plane, then
+ * the quarter size U and V planes, without row padding, or given as the
+ * three planes of a camera image with their own strides. getPlanes() works
+ * for both.
+ */
+public class Frame {
+
+    public static final int FORMAT_JPEG        = 0x100; // ImageFormat.JPEG
+    public static final int FORMAT_YUV_420_888 = 0x23;  // ImageFormat.YUV_420_888
+
+    private final int             mFormat;
+    private final ByteBuffer      mData;
+    private final Plane[]         mPlanes;
+    private final int             mWidth;
+    private final int             mHeight;
+    private final long            mTimestamp;
+    private final CaptureTimeline mTimeline;
+    private Owner                 mOwner    = null;
+    private boolean               mRetained = false;
+
+    /**
+     * What keeps frame data valid, e.g. the Image of a camera frame
+     */
+    public interface Owner {
+        /**
+         * @return false if data can't be kept valid now, e.g. the source is
+         *         short of buffers while too many of its frames are retained
+         */
+        boolean retain();
+
+        /**
+         * Called once for a retained frame, its data isn't valid anymore
+         */
+        void release();
+    }
+
+    /**
+     * One plane of a FORMAT_YUV_420_888 frame, like android.media.Image.Plane
+     */
+    public static final class Plane {
+        private final ByteBuffer mBuffer;
+        private final int        mRowStride;
+        private final int        mPixelStride;
+
+        public Plane(ByteBuffer buffer, int rowStride, int pixelStride) {
+            mBuffer      = buffer;
+            mRowStride   = rowStride;
+            mPixelStride = pixelStride;
+        }
+
+        /**
+         * Plane data, a new view of it on every call
+         */
+        public ByteBuffer getBuffer() {
+            return mBuffer.duplicate();
+        }
+
+        public int getRowStride() {
+            return mRowStride;
+        }
+
+        public int getPixelStride() {
+            return mPixelStride;
+        }
+    }
+
+    /**
+     * @param format    FORMAT_*
+     * @param data      frame data from its position to its limit
+     * @param width
+     * @param height
+     * @param timestamp timestamp in the timebase of the source
+     * @param timeline  timeline of the shot this frame belongs to, or null if the source doesn't know
+     */
+    public Frame(int format, ByteBuffer data, int width, int height, long timestamp, CaptureTimeline timeline) {
+        mFormat    = format;
+        mData      = data;
+        mPlanes    = null;
+        mWidth     = width;
+        mHeight    = height;
+        mTimestamp = timestamp;
+        mTimeline  = timeline;
+    }
+
+    /**
+     * FORMAT_YUV_420_888 frame of separate Y, U and V planes
+     * @param planes    Y, U and V planes
+     * @param width
+     * @param height
+     * @param timestamp timestamp in the timebase of the source
+     * @param timeline  timeline of the shot this frame belongs to, or null if the source doesn't know
+     */
+    public Frame(Plane[] planes, int width, int height, long timestamp, CaptureTimeline timeline) {
+        mFormat    = FORMAT_YUV_420_888;
+        mData      = null;
+        mPlanes    = planes;
+        mWidth     = width;
+        mHeight    = height;
+        mTimestamp = timestamp;
+        mTimeline  = timeline;
+    }
+
+    /**
+     * Set by the source before delivering a frame which can be retained
+     */
+    public synchronized void setOwner(Owner owner) {
+        mOwner = owner;
+    }
+
+    /**
+     * Keep frame data valid after the listener call returns, until release()
+     * @return false if the frame can't be retained, copy its data out instead
+     */
+    public synchronized boolean retain() {
+        if (mOwner == null || mRetained) {
+            return false;
+        }
+        mRetained = mOwner.retain();
+        return mRetained;
+    }
+
+    public synchronized boolean isRetained() {
+        return mRetained;
+    }
+
+    /**
+     * Release a retained frame, its data isn't valid anymore
+     */
+    public void release() {
+        Owner owner = null;
+        synchronized (this) {
+            if (!mRetained) {
+                return;
+            }
+            mRetained = false;
+            owner     = mOwner;
+        }
+        owner.release();
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Frame data, a new view of it on every call so each reader starts from the beginning.
+     * Null for a frame of separate planes.
+     */
+    public ByteBuffer getData() {
+        return mData == null ? null : mData.duplicate();
+    }
+
+    /**
+     * Bytes of frame data, or of all planes
+     */
+    public int getLength() {
+        if (mData != null) {
+            return mData.remaining();
+        }
+        int length = 0;
+        for (Plane plane : mPlanes) {
+            length += plane.mBuffer.remaining();
+        }
+        return length;
+    }
+
+    /**
+     * Y, U and V planes of a FORMAT_YUV_420_888 frame, views into packed
+     * I420 data if the frame isn't made of separate planes
+     */
+    public Plane[] getPlanes() {
+        if (mPlanes != null) {
+            return mPlanes;
+        }
+        if (mFormat != FORMAT_YUV_420_888) {
+            return new Plane[] {new Plane(mData, mWidth, 1)};
+        }
+
+        int        chromaWidth = (mWidth + 1) / 2;
+        int        lumaBytes   = mWidth * mHeight;
+        int        chromaBytes = chromaWidth * ((mHeight + 1) / 2);
+        ByteBuffer data        = mData.duplicate();
+        int        start       = data.position();
+        return new Plane[] {
+                new Plane(slice(data, start, lumaBytes), mWidth, 1),
+                new Plane(slice(data, start + lumaBytes, chromaBytes), chromaWidth, 1),
+                new Plane(slice(data, start + lumaBytes + chromaBytes, chromaBytes), chromaWidth, 1)};
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public CaptureTimeline getTimeline() {
+        return mTimeline;
+    }
+
+    private static ByteBuffer slice(ByteBuffer data, int position, int length) {
+        ByteBuffer slice = data.duplicate();
+        slice.limit(position + length);
+        slice.position(position);
+        return slice.slice();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Frame{%s %dx%d, %dB, ts=%d}",
+                mFormat == FORMAT_JPEG ? "JPEG" : mFormat == FORMAT_YUV_420_888 ? "YUV" : "0x" + Integer.toHexString(mFormat),
+                mWidth, mHeight, getLength(), mTimestamp);
+    }
+}
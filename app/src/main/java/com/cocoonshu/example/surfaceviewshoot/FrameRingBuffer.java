@@ -0,0 +1,125 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frame ring buffer
+ * Keep the most recent encoded frames with their sensor timestamps for
+ * zero shutter lag capture. All slots are allocated up front, a new frame
+ * overwrites the oldest slot in place, so memory is bounded by
+ * capacity x slotSize and eviction never allocates.
+ * Frames larger than a slot are dropped and counted.
+ */
+public class FrameRingBuffer {
+
+    private final byte[][] mSlots;
+    private final int[]    mLengths;
+    private final int[]    mWidths;
+    private final int[]    mHeights;
+    private final long[]   mTimestamps;
+    private int            mNext         = 0;
+    private int            mCount        = 0;
+    private long           mPutCount     = 0;
+    private long           mDroppedCount = 0;
+
+    /**
+     * Copy of a frame taken out of the ring
+     */
+    public static class Entry {
+        public byte[] data      = null;
+        public int    length    = 0;
+        public int    width     = 0;
+        public int    height    = 0;
+        public long   timestamp = 0;
+    }
+
+    public FrameRingBuffer(int capacity, int slotSize) {
+        if (capacity <= 0 || slotSize <= 0) {
+            throw new IllegalArgumentException("Bad ring size " + capacity + " x " + slotSize);
+        }
+        mSlots      = new byte[capacity][slotSize];
+        mLengths    = new int[capacity];
+        mWidths     = new int[capacity];
+        mHeights    = new int[capacity];
+        mTimestamps = new long[capacity];
+    }
+
+    /**
+     * Copy remaining bytes of data into the oldest slot
+     * @return false if frame doesn't fit in a slot and was dropped
+     */
+    public synchronized boolean put(ByteBuffer data, int width, int height, long timestamp) {
+        int length = data.remaining();
+        mPutCount++;
+        if (length > mSlots[mNext].length) {
+            mDroppedCount++;
+            return false;
+        }
+
+        data.get(mSlots[mNext], 0, length);
+        mLengths[mNext]    = length;
+        mWidths[mNext]     = width;
+        mHeights[mNext]    = height;
+        mTimestamps[mNext] = timestamp;
+        mNext  = (mNext + 1) % mSlots.length;
+        mCount = Math.min(mCount + 1, mSlots.length);
+        return true;
+    }
+
+    /**
+     * Copy the frame whose timestamp is closest to the given one
+     * @param timestamp  timestamp in sensor timebase
+     * @param bufferPool pool the copy buffer is acquired from
+     * @param out        receive the copied frame, out.data must be released to bufferPool
+     * @return false if ring is empty
+     */
+    public synchronized boolean copyNearest(long timestamp, ByteArrayPool bufferPool, Entry out) {
+        if (mCount == 0) {
+            return false;
+        }
+
+        int  nearest  = -1;
+        long distance = Long.MAX_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            int  slot  = (mNext - 1 - i + mSlots.length) % mSlots.length;
+            long delta = Math.abs(mTimestamps[slot] - timestamp);
+            if (delta < distance) {
+                distance = delta;
+                nearest  = slot;
+            }
+        }
+
+        out.length    = mLengths[nearest];
+        out.width     = mWidths[nearest];
+        out.height    = mHeights[nearest];
+        out.timestamp = mTimestamps[nearest];
+        out.data      = bufferPool.acquire(out.length);
+        System.arraycopy(mSlots[nearest], 0, out.data, 0, out.length);
+        return true;
+    }
+
+    public synchronized void clear() {
+        mNext  = 0;
+        mCount = 0;
+    }
+
+    public int getCapacity() {
+        return mSlots.length;
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    public synchronized long getPutCount() {
+        return mPutCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public long getFootprintBytes() {
+        return (long) mSlots.length * mSlots[0].length;
+    }
+}
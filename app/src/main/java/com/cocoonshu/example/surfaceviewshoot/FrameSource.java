@@ -0,0 +1,21 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+/**
+ * Frame source
+ * Where captured frames come from. CameraHelper starts its source when
+ * preview starts and feeds every frame into the capture pipeline, so the
+ * pipeline runs the same on camera frames and on replayed files.
+ */
+public interface FrameSource {
+
+    interface Listener {
+        /**
+         * Called on a thread of the source, frame data is only valid during this call
+         */
+        void onFrameAvailable(Frame frame);
+    }
+
+    void start(Listener listener);
+
+    void stop();
+}
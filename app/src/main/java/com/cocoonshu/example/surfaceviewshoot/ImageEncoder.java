@@ -0,0 +1,136 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import android.graphics.Bitmap;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Image encoder
+ * Output format of ImageWriter. Every encode is timed and its output size
+ * is counted, so encoders can be compared on a device and chosen per deployment.
+ */
+public abstract class ImageEncoder {
+
+    public  static final int PNG_LEVEL_DEFAULT = -1;
+
+    private final AtomicLong mEncodeCount  = new AtomicLong();
+    private final AtomicLong mEncodeTimeNs = new AtomicLong();
+    private final AtomicLong mEncodedBytes = new AtomicLong();
+    private volatile long    mLastTimeNs   = 0;
+    private volatile long    mLastBytes    = 0;
+
+    /**
+     * PNG encoder
+     * @param level deflate level 0 ~ 9, or PNG_LEVEL_DEFAULT for Bitmap.compress()
+     */
+    public static ImageEncoder createPng(int level) {
+        if (level == PNG_LEVEL_DEFAULT) {
+            return new BitmapCompressEncoder(Bitmap.CompressFormat.PNG, 100);
+        }
+        return new PngEncoder(level);
+    }
+
+    public static ImageEncoder createJpeg(int quality) {
+        return new BitmapCompressEncoder(Bitmap.CompressFormat.JPEG, quality);
+    }
+
+    public static ImageEncoder createWebp(int quality) {
+        return new BitmapCompressEncoder(Bitmap.CompressFormat.WEBP, quality);
+    }
+
+    /**
+     * Uncompressed ARGB container for machine consumption, see RawArgbEncoder
+     */
+    public static ImageEncoder createRawArgb() {
+        return new RawArgbEncoder();
+    }
+
+    /**
+     * File extension including the dot
+     */
+    public abstract String getFileExtension();
+
+    protected abstract void onEncode(Bitmap bitmap, OutputStream out) throws IOException;
+
+    /**
+     * Release what the encoder holds, e.g. worker threads, it can't encode anymore
+     */
+    public void release() {
+    }
+
+    /**
+     * Encode bitmap into out
+     * @return encoded size in bytes
+     */
+    public final long encode(Bitmap bitmap, OutputStream out) throws IOException {
+        CountingOutputStream counter   = new CountingOutputStream(out);
+        long                 startTime = System.nanoTime();
+        onEncode(bitmap, counter);
+        counter.flush();
+        long                 costTime  = System.nanoTime() - startTime;
+
+        mLastTimeNs = costTime;
+        mLastBytes  = counter.getCount();
+        mEncodeTimeNs.addAndGet(costTime);
+        mEncodedBytes.addAndGet(counter.getCount());
+        mEncodeCount.incrementAndGet();
+        return counter.getCount();
+    }
+
+    public long getEncodeCount() {
+        return mEncodeCount.get();
+    }
+
+    public double getLastEncodeMs() {
+        return mLastTimeNs / 1e6;
+    }
+
+    public long getLastEncodedBytes() {
+        return mLastBytes;
+    }
+
+    public double getAverageEncodeMs() {
+        long count = mEncodeCount.get();
+        return count == 0 ? 0.0 : mEncodeTimeNs.get() / 1e6 / count;
+    }
+
+    public long getAverageEncodedBytes() {
+        long count = mEncodeCount.get();
+        return count == 0 ? 0 : mEncodedBytes.get() / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s{%s, count=%d, last=%.1fms/%dKB, avg=%.1fms/%dKB}",
+                getClass().getSimpleName(), getFileExtension(), getEncodeCount(),
+                getLastEncodeMs(), getLastEncodedBytes() / 1024,
+                getAverageEncodeMs(), getAverageEncodedBytes() / 1024);
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long mCount = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            out.write(oneByte);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            mCount += length;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+}
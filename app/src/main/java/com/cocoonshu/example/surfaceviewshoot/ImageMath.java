@@ -0,0 +1,182 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+/**
+ * Image math
+ * Scale and alpha computations of ImageUtils which don't touch android.*,
+ * so DecodePlan and the benchmark module can run them on a desktop JVM.
+ */
+public class ImageMath {
+
+    public static final int SCALE_MODE_FILL   = 0x0001;
+    public static final int SCALE_MODE_INSIDE = 0x0002;
+
+    /**
+     * Compute the largest power-of-two sample size which keeps both sides
+     * of the sampled image not smaller than the destination size
+     * @param srcWidth
+     * @param srcHeight
+     * @param destWidth
+     * @param destHeight
+     * @return sample size for BitmapFactory.Options.inSampleSize
+     */
+    public static int computeSampleSize(int srcWidth, int srcHeight, int destWidth, int destHeight) {
+        int sampleSize = 1;
+        if (destWidth <= 0 || destHeight <= 0) {
+            return sampleSize;
+        }
+        while (srcWidth / (sampleSize * 2) >= destWidth
+                && srcHeight / (sampleSize * 2) >= destHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Compute a scale value to fit image to limit size
+     * @param srcWidth
+     * @param srcHeight
+     * @param limitWidth
+     * @param limitHeight
+     * @return
+     */
+    public static float computeFitScale(float srcWidth, float srcHeight, float limitWidth, float limitHeight) {
+        float scale      = 1f;
+        float srcRatio   = srcWidth / srcHeight;
+        float limitRatio = limitWidth / limitHeight;
+
+        if (srcRatio > limitRatio) {
+            // fit Height
+            scale = limitHeight / srcHeight;
+        } else {
+            // fit Width
+            scale = limitWidth / srcWidth;
+        }
+
+        return scale;
+    }
+
+    /**
+     * Compute a scale value to fit image to limit size
+     * @param srcWidth
+     * @param srcHeight
+     * @param limitWidth
+     * @param limitHeight
+     * @return
+     */
+    public static double computeFitScale(double srcWidth, double srcHeight, double limitWidth, double limitHeight) {
+        double scale      = 1f;
+        double srcRatio   = srcWidth / srcHeight;
+        double limitRatio = limitWidth / limitHeight;
+
+        if (srcRatio > limitRatio) {
+            // fit Height
+            scale = limitHeight / srcHeight;
+        } else {
+            // fit Width
+            scale = limitWidth / srcWidth;
+        }
+
+        return scale;
+    }
+
+    /**
+     * Compute a scale value to let all image inside the limit size
+     * @param srcWidth
+     * @param srcHeight
+     * @param limitWidth
+     * @param limitHeight
+     * @return fitable image scale factor
+     */
+    private static float computeInsideScale(float srcWidth, float srcHeight, float limitWidth, float limitHeight) {
+        float scale      = 1f;
+        float srcRatio   = srcWidth / srcHeight;
+        float limitRatio = limitWidth / limitHeight;
+
+        if (srcRatio > limitRatio) {
+            // fit Width
+            scale = limitWidth / srcWidth;
+        } else {
+            // fit Height
+            scale = limitHeight / srcHeight;
+        }
+
+        return scale;
+    }
+
+    /**
+     * Compute a scale value to let all image inside the limit size
+     * @param srcWidth
+     * @param srcHeight
+     * @param limitWidth
+     * @param limitHeight
+     * @return fitable image scale factor
+     */
+    private static double computeInsideScale(double srcWidth, double srcHeight, double limitWidth, double limitHeight) {
+        double scale      = 1f;
+        double srcRatio   = srcWidth / srcHeight;
+        double limitRatio = limitWidth / limitHeight;
+
+        if (srcRatio > limitRatio) {
+            // fit Width
+            scale = limitWidth / srcWidth;
+        } else {
+            // fit Height
+            scale = limitHeight / srcHeight;
+        }
+
+        return scale;
+    }
+
+    /**
+     * Compute scale factor with specified method
+     * @param imageWidth
+     * @param imageHeight
+     * @param limitWidth
+     * @param limitHeight
+     * @param mode SCALE_MODE_FILL to fill full of limit size
+     *             SCALE_MODE_INSIDE to scale image fit limit size
+     * @return scale factor
+     */
+    public static float scaleImage(float imageWidth, float imageHeight, float limitWidth, float limitHeight, int mode) {
+        float scaleFactor = 1f;
+        switch(mode) {
+        case SCALE_MODE_FILL:
+            scaleFactor = computeFitScale(imageWidth, imageHeight, limitWidth, limitHeight);
+            break;
+        case SCALE_MODE_INSIDE:
+            scaleFactor = computeInsideScale(imageWidth, imageHeight, limitWidth, limitHeight);
+            break;
+        }
+        return scaleFactor;
+    }
+
+    /**
+     * Compute scale factor with specified method
+     * @param imageWidth
+     * @param imageHeight
+     * @param limitWidth
+     * @param limitHeight
+     * @param mode SCALE_MODE_FILL to fill full of limit size
+     *             SCALE_MODE_INSIDE to scale image fit limit size
+     * @return scale factor
+     */
+    public static double scaleImage(double imageWidth, double imageHeight, double limitWidth, double limitHeight, int mode) {
+        double scaleFactor = 1f;
+        switch(mode) {
+        case SCALE_MODE_FILL:
+            scaleFactor = computeFitScale(imageWidth, imageHeight, limitWidth, limitHeight);
+            break;
+        case SCALE_MODE_INSIDE:
+            scaleFactor = computeInsideScale(imageWidth, imageHeight, limitWidth, limitHeight);
+            break;
+        }
+        return scaleFactor;
+    }
+
+    public static int mixAlphaToColor(int color, int alpha) {
+        int colorAlpha = color >>> 24;
+        int destAlpha  = (int)(((float)colorAlpha / 255f) * ((float)alpha / 255f) * 255f);
+        return (destAlpha << 24)
+             | (color & 0x00FFFFFF);
+    }
+}
@@ -10,8 +10,8 @@ import android.graphics.RectF;
  */
 public class ImageUtils {
 
-    public static final int SCALE_MODE_FILL   = 0x0001;
-    public static final int SCALE_MODE_INSIDE = 0x0002;
+    public static final int SCALE_MODE_FILL   = ImageMath.SCALE_MODE_FILL;
+    public static final int SCALE_MODE_INSIDE = ImageMath.SCALE_MODE_INSIDE;
 
     /**
      * detect image nine-patch attribute by giving image file name
@@ -62,6 +62,13 @@ public class ImageUtils {
         return new Rect(0, 0, (int) (srcWidth * referenceScale), (int) (srcHeight * referenceScale));
     }
 
+    /**
+     * Compute the largest power-of-two sample size, see ImageMath.computeSampleSize()
+     */
+    public static int computeSampleSize(int srcWidth, int srcHeight, int destWidth, int destHeight) {
+        return ImageMath.computeSampleSize(srcWidth, srcHeight, destWidth, destHeight);
+    }
+
     /**
      * Compute a scale value to fit image to limit size
      * @param srcWidth
@@ -71,19 +78,7 @@ public class ImageUtils {
      * @return
      */
     public static float computeFitScale(float srcWidth, float srcHeight, float limitWidth, float limitHeight) {
-        float scale      = 1f;
-        float srcRatio   = srcWidth / srcHeight;
-        float limitRatio = limitWidth / limitHeight;
-
-        if (srcRatio > limitRatio) {
-            // fit Height
-            scale = limitHeight / srcHeight;
-        } else {
-            // fit Width
-            scale = limitWidth / srcWidth;
-        }
-
-        return scale;
+        return ImageMath.computeFitScale(srcWidth, srcHeight, limitWidth, limitHeight);
     }
 
     /**
@@ -95,67 +90,7 @@ public class ImageUtils {
      * @return
      */
     public static double computeFitScale(double srcWidth, double srcHeight, double limitWidth, double limitHeight) {
-        double scale      = 1f;
-        double srcRatio   = srcWidth / srcHeight;
-        double limitRatio = limitWidth / limitHeight;
-
-        if (srcRatio > limitRatio) {
-            // fit Height
-            scale = limitHeight / srcHeight;
-        } else {
-            // fit Width
-            scale = limitWidth / srcWidth;
-        }
-
-        return scale;
-    }
-
-    /**
-     * Compute a scale value to let all image inside the limit size
-     * @param imageWidth
-     * @param imageHeight
-     * @param limitWidth
-     * @param limitHeight
-     * @return fitable image scale factor
-     */
-    private static float computeInsideScale(float srcWidth, float srcHeight, float limitWidth, float limitHeight) {
-        float scale      = 1f;
-        float srcRatio   = srcWidth / srcHeight;
-        float limitRatio = limitWidth / limitHeight;
-
-        if (srcRatio > limitRatio) {
-            // fit Width
-            scale = limitWidth / srcWidth;
-        } else {
-            // fit Height
-            scale = limitHeight / srcHeight;
-        }
-
-        return scale;
-    }
-
-    /**
-     * Compute a scale value to let all image inside the limit size
-     * @param imageWidth
-     * @param imageHeight
-     * @param limitWidth
-     * @param limitHeight
-     * @return fitable image scale factor
-     */
-    private static double computeInsideScale(double srcWidth, double srcHeight, double limitWidth, double limitHeight) {
-        double scale      = 1f;
-        double srcRatio   = srcWidth / srcHeight;
-        double limitRatio = limitWidth / limitHeight;
-
-        if (srcRatio > limitRatio) {
-            // fit Width
-            scale = limitWidth / srcWidth;
-        } else {
-            // fit Height
-            scale = limitHeight / srcHeight;
-        }
-
-        return scale;
+        return ImageMath.computeFitScale(srcWidth, srcHeight, limitWidth, limitHeight);
     }
 
     /**
@@ -169,16 +104,7 @@ public class ImageUtils {
      * @return scale factor
      */
     public static float scaleImage(float imageWidth, float imageHeight, float limitWidth, float limitHeight, int mode) {
-        float scaleFactor = 1f;
-        switch(mode) {
-        case SCALE_MODE_FILL:
-            scaleFactor = computeFitScale(imageWidth, imageHeight, limitWidth, limitHeight);
-            break;
-        case SCALE_MODE_INSIDE:
-            scaleFactor = computeInsideScale(imageWidth, imageHeight, limitWidth, limitHeight);
-            break;
-        }
-        return scaleFactor;
+        return ImageMath.scaleImage(imageWidth, imageHeight, limitWidth, limitHeight, mode);
     }
 
     /**
@@ -192,16 +118,7 @@ public class ImageUtils {
      * @return scale factor
      */
     public static double scaleImage(double imageWidth, double imageHeight, double limitWidth, double limitHeight, int mode) {
-        double scaleFactor = 1f;
-        switch(mode) {
-        case SCALE_MODE_FILL:
-            scaleFactor = computeFitScale(imageWidth, imageHeight, limitWidth, limitHeight);
-            break;
-        case SCALE_MODE_INSIDE:
-            scaleFactor = computeInsideScale(imageWidth, imageHeight, limitWidth, limitHeight);
-            break;
-        }
-        return scaleFactor;
+        return ImageMath.scaleImage(imageWidth, imageHeight, limitWidth, limitHeight, mode);
     }
 
     public static boolean isEmptyRect(float left, float top, float right, float bottom) {
@@ -220,10 +137,7 @@ public class ImageUtils {
     }
 
     public static int mixAlphaToColor(int color, int alpha) {
-        int colorAlpha = color >>> 24;
-        int destAlpha  = (int)(((float)colorAlpha / 255f) * ((float)alpha / 255f) * 255f);
-        return (destAlpha << 24)
-             | (color & 0x00FFFFFF);
+        return ImageMath.mixAlphaToColor(color, alpha);
     }
 
 }
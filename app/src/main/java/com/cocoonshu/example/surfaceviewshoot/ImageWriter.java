@@ -1,47 +1,264 @@
 package com.cocoonshu.example.surfaceviewshoot;
 
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Mask image writer
+ * A persistent single writer thread with a bounded queue. When the queue is
+ * full, the backpressure policy decides whether write() blocks, the oldest
+ * pending image is dropped or the new one is rejected. Each image gets its
+ * own finished callback on the main thread, with a null file name if it
+ * was dropped or failed to write, whatever the failure was, and a file
+ * which failed is deleted rather than left behind half written. Images
+ * are encoded by a pluggable ImageEncoder, which reports its encode time
+ * and output size. Frames which are encoded already, e.g. camera JPEG,
+ * are written as they are from their buffer through a FileChannel.
  * @Auther Cocoonshu
  * @Date   2017-01-01 10:59:11
  */
-public class ImageWriter extends AsyncTask<Bitmap, Integer, String> {
+public class ImageWriter {
 
-    private String             mDir                = null;
-    private OnFinishedListener mOnFinishedListener = null;
+    private static final String TAG                     = "ImageWriter";
+    private static final int    DEFAULT_QUEUE_CAPACITY  = 2;
+    private static final int    OUTPUT_BUFFER_SIZE      = 64 * 1024;
+    private static final String EXTENSION_JPEG          = ".jpg";
+
+    public  static final int    POLICY_BLOCK            = PipelineStage.POLICY_BLOCK;
+    public  static final int    POLICY_DROP_OLDEST      = PipelineStage.POLICY_DROP_OLDEST;
+    public  static final int    POLICY_REJECT           = PipelineStage.POLICY_REJECT;
+
+    private String                              mDir          = null;
+    private ImageEncoder                        mEncoder      = null;
+    private Handler                             mUiHandler    = null;
+    private PipelineStage<WriteTask, WriteTask> mWriterStage  = null;
+    private final AtomicLong                    mWrittenBytes = new AtomicLong();
+    private final AtomicLong                    mWriteTimeNs  = new AtomicLong();
+    private final AtomicLong                    mWrittenCount = new AtomicLong();
 
     public interface OnFinishedListener {
         void onFinished(String fileName);
     }
 
-    public ImageWriter() {
+    /**
+     * Image content which is produced straight into the output file,
+     * for images which are never held as a whole Bitmap
+     */
+    public interface StreamSource {
+        String getFileExtension();
+
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static class WriteTask {
+        final Bitmap             bitmap;
+        final StreamSource       source;
+        final Frame              frame;
+        final CaptureTimeline    timeline;
+        final OnFinishedListener listener;
+        String                   fileName = null;
+
+        WriteTask(Bitmap bitmap, StreamSource source, CaptureTimeline timeline, OnFinishedListener listener) {
+            this(bitmap, source, null, timeline, listener);
+        }
+
+        WriteTask(Bitmap bitmap, StreamSource source, Frame frame, CaptureTimeline timeline, OnFinishedListener listener) {
+            this.bitmap   = bitmap;
+            this.source   = source;
+            this.frame    = frame;
+            this.timeline = timeline;
+            this.listener = listener;
+        }
+    }
+
+    public ImageWriter(String dir) {
+        this(dir, ImageEncoder.createPng(ImageEncoder.PNG_LEVEL_DEFAULT), DEFAULT_QUEUE_CAPACITY, POLICY_BLOCK);
+    }
+
+    public ImageWriter(String dir, ImageEncoder encoder, int queueCapacity, int policy) {
+        mDir         = dir;
+        mEncoder     = encoder;
+        mUiHandler   = new Handler(Looper.getMainLooper());
+        mWriterStage = new PipelineStage<WriteTask, WriteTask>(CaptureStages.NAME_WRITE_STAGE, queueCapacity, policy,
+                new PipelineStage.Processor<WriteTask, WriteTask>() {
+            @Override
+            public WriteTask process(WriteTask task) throws Exception {
+                long startTime = System.nanoTime();
+                task.fileName = writeImage(task);
+                if (task.fileName != null) {
+                    if (task.timeline != null) {
+                        task.timeline.mark(CaptureTimeline.POINT_WRITTEN);
+                    }
+                    mWriteTimeNs.addAndGet(System.nanoTime() - startTime);
+                    mWrittenBytes.addAndGet(new File(task.fileName).length());
+                    mWrittenCount.incrementAndGet();
+                }
+                return task;
+            }
+        });
+        mWriterStage.setSink(new PipelineStage.Sink<WriteTask>() {
+            @Override
+            public void accept(WriteTask task) {
+                notifyFinished(task);
+            }
+        });
+        mWriterStage.setDroppedSink(new PipelineStage.Sink<WriteTask>() {
+            @Override
+            public void accept(WriteTask task) {
+                if (task.frame != null) {
+                    task.frame.release();
+                }
+                notifyFinished(task);
+            }
+        });
+        mWriterStage.setFailedSink(new PipelineStage.FailedSink<WriteTask>() {
+            @Override
+            public void accept(WriteTask task, Exception error) {
+                Log.e(TAG, "[write] Failed to write image", error);
+                if (task.frame != null) {
+                    task.frame.release();
+                }
+                task.fileName = null;
+                notifyFinished(task);
+            }
+        });
+        mWriterStage.start();
+    }
+
+    /**
+     * Queue a bitmap to be written
+     * @param bitmap
+     * @param listener called on main thread when bitmap is written, dropped or failed
+     * @return false if the bitmap is rejected by a full queue
+     */
+    public boolean write(Bitmap bitmap, OnFinishedListener listener) {
+        return write(bitmap, null, listener);
+    }
+
+    /**
+     * Queue a bitmap to be written, marking CaptureTimeline.POINT_WRITTEN
+     * on timeline once the file is closed
+     * @param bitmap
+     * @param timeline timeline of the shot, or null
+     * @param listener called on main thread when bitmap is written, dropped or failed
+     * @return false if the bitmap is rejected by a full queue
+     */
+    public boolean write(Bitmap bitmap, CaptureTimeline timeline, OnFinishedListener listener) {
+        return mWriterStage.accept(new WriteTask(bitmap, null, timeline, listener));
+    }
+
+    /**
+     * Queue a stream source to be written on the writer thread
+     * @param source   content of the file
+     * @param timeline timeline of the shot, or null
+     * @param listener called on main thread when source is written, dropped or failed
+     * @return false if the source is rejected by a full queue
+     */
+    public boolean write(StreamSource source, CaptureTimeline timeline, OnFinishedListener listener) {
+        return mWriterStage.accept(new WriteTask(null, source, timeline, listener));
+    }
+
+    /**
+     * Queue an encoded frame to be written as it is, without decoding or
+     * copying it. Never blocks whatever the backpressure policy, so it can be
+     * called on the camera thread: a frame which doesn't fit is dropped.
+     * @param frame    retained FORMAT_JPEG frame, released once it is written, dropped or failed
+     * @param timeline timeline of the shot, or null
+     * @param listener called on main thread when frame is written, dropped or failed
+     * @return false if the frame is rejected by a full queue
+     */
+    public boolean write(Frame frame, CaptureTimeline timeline, OnFinishedListener listener) {
+        if (frame.getFormat() != Frame.FORMAT_JPEG) {
+            frame.release();
+            throw new IllegalArgumentException("Only JPEG frames are written as they are, not " + frame);
+        }
+        return mWriterStage.offer(new WriteTask(null, null, frame, timeline, listener));
+    }
+
+    public void release() {
+        mWriterStage.stop();
+        mEncoder.release();
+    }
+
+    /**
+     * Writer stage, to be reported along with a capture pipeline
+     */
+    public PipelineStage<?, ?> getStage() {
+        return mWriterStage;
+    }
+
+    public ImageEncoder getEncoder() {
+        return mEncoder;
+    }
+
+    public int getQueueDepth() {
+        return mWriterStage.getQueueDepth();
+    }
+
+    public long getDroppedCount() {
+        return mWriterStage.getDroppedCount();
+    }
 
+    public long getWrittenCount() {
+        return mWrittenCount.get();
     }
 
-    public ImageWriter writeToDirectory(String dir) {
-        mDir = dir;
-        return this;
+    public double getAverageWriteMs() {
+        long count = mWrittenCount.get();
+        return count == 0 ? 0.0 : mWriteTimeNs.get() / 1e6 / count;
     }
 
-    public ImageWriter onFinished(OnFinishedListener listener) {
-        mOnFinishedListener = listener;
-        return this;
+    /**
+     * Write throughput while the writer is busy
+     */
+    public double getBytesPerSecond() {
+        long writeTime = mWriteTimeNs.get();
+        return writeTime == 0 ? 0.0 : mWrittenBytes.get() * 1e9 / writeTime;
     }
 
     @Override
-    protected String doInBackground(Bitmap... params) {
-        Bitmap bitmap = null;
-        if (params != null && params.length > 0) {
-            bitmap = params[0];
+    public String toString() {
+        return String.format("ImageWriter{queue=%d, written=%d, dropped=%d, avg=%.1fms, %.1fKB/s, %s}",
+                getQueueDepth(), getWrittenCount(), getDroppedCount(),
+                getAverageWriteMs(), getBytesPerSecond() / 1024, mEncoder);
+    }
+
+    private void notifyFinished(final WriteTask task) {
+        if (task.listener == null) {
+            return;
+        }
+        mUiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                task.listener.onFinished(task.fileName);
+            }
+        });
+    }
+
+    /**
+     * Write bitmap or stream source of task into directory on caller thread
+     * @param task
+     * @return written file name, or null if failed
+     */
+    private String writeImage(WriteTask task) {
+        if (task.frame != null) {
+            try {
+                return writeFrame(task.frame);
+            } finally {
+                task.frame.release();
+            }
         }
 
         try {
@@ -50,35 +267,110 @@ public class ImageWriter extends AsyncTask<Bitmap, Integer, String> {
                 parent.mkdirs();
             }
 
-            Calendar calendar = Calendar.getInstance();
-            String   fileName = String.format("/MIX_%04d_%02d_%02d_%02d_%02d_%02d.png",
-                    calendar.get(Calendar.YEAR),
-                    calendar.get(Calendar.MONTH) + 1,
-                    calendar.get(Calendar.DAY_OF_MONTH),
-                    calendar.get(Calendar.HOUR_OF_DAY),
-                    calendar.get(Calendar.MINUTE),
-                    calendar.get(Calendar.SECOND));
-
-            File             file = new File(mDir + fileName);
-            FileOutputStream fout = new FileOutputStream(file);
-            bitmap.compress(Bitmap.CompressFormat.PNG, 100, fout);
-            fout.close();
+            String               extension = task.source != null ? task.source.getFileExtension() : mEncoder.getFileExtension();
+            File                 file      = createUniqueFile(mDir, extension);
+            boolean              written   = false;
+            try {
+                BufferedOutputStream fout = new BufferedOutputStream(new FileOutputStream(file), OUTPUT_BUFFER_SIZE);
+                try {
+                    if (task.source != null) {
+                        task.source.writeTo(fout);
+                    } else {
+                        mEncoder.encode(task.bitmap, fout);
+                    }
+                } finally {
+                    fout.close();
+                }
+                written = true;
+            } finally {
+                if (!written) {
+                    deleteFailedFile(file);
+                }
+            }
 
-            return mDir + fileName;
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            return file.getPath();
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.e(TAG, "[writeImage] Failed to write image", e);
         }
 
         return null;
     }
 
-    @Override
-    protected void onPostExecute(String fileName) {
-        super.onPostExecute(fileName);
-        if (mOnFinishedListener != null) {
-            mOnFinishedListener.onFinished(fileName);
+    /**
+     * Write frame data straight from its buffer, a direct buffer of a camera
+     * Image goes to the file without passing through the Java heap
+     * @return written file name, or null if failed
+     */
+    private String writeFrame(Frame frame) {
+        try {
+            File parent = new File(mDir);
+            if (!parent.exists()) {
+                parent.mkdirs();
+            }
+
+            File    file    = createUniqueFile(mDir, EXTENSION_JPEG);
+            boolean written = false;
+            try {
+                writeFrame(frame, file);
+                written = true;
+            } finally {
+                if (!written) {
+                    deleteFailedFile(file);
+                }
+            }
+            return file.getPath();
+        } catch (IOException e) {
+            Log.e(TAG, "[writeFrame] Failed to write frame", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Write frame data into file through a FileChannel, on caller thread
+     */
+    static void writeFrame(Frame frame, File file) throws IOException {
+        FileOutputStream fout    = new FileOutputStream(file);
+        FileChannel      channel = fout.getChannel();
+        try {
+            ByteBuffer data = frame.getData();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        } finally {
+            fout.close();
+        }
+    }
+
+    /**
+     * Delete a file whose write failed, so no empty or partial image is left
+     * in the directory
+     */
+    private static void deleteFailedFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "[deleteFailedFile] Can't delete " + file);
+        }
+    }
+
+    /**
+     * Create a file named by capture time down to millisecond, with a sequence
+     * suffix if that name is taken already, so bursts never overwrite each other
+     */
+    private static synchronized File createUniqueFile(String dir, String extension) throws IOException {
+        Calendar calendar = Calendar.getInstance();
+        String   baseName = String.format("/MIX_%04d_%02d_%02d_%02d_%02d_%02d_%03d",
+                calendar.get(Calendar.YEAR),
+                calendar.get(Calendar.MONTH) + 1,
+                calendar.get(Calendar.DAY_OF_MONTH),
+                calendar.get(Calendar.HOUR_OF_DAY),
+                calendar.get(Calendar.MINUTE),
+                calendar.get(Calendar.SECOND),
+                calendar.get(Calendar.MILLISECOND));
+
+        File file = new File(dir + baseName + extension);
+        for (int sequence = 1; !file.createNewFile(); sequence++) {
+            file = new File(dir + baseName + "_" + sequence + extension);
         }
+        return file;
     }
 }
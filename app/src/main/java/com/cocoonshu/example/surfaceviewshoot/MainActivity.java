@@ -4,12 +4,8 @@ import android.Manifest;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.ColorFilter;
 import android.graphics.ColorMatrix;
-import android.graphics.ColorMatrixColorFilter;
 import android.graphics.Paint;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Xfermode;
@@ -30,16 +26,41 @@ import android.view.View;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.ViewGroup;
+import android.widget.CompoundButton;
 import android.widget.Switch;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
 public class MainActivity extends AppCompatActivity {
 
-    private FloatingActionButton mFabScreenShoot    = null;
-    private ViewGroup            mSurfaceViewParent = null;
-    private ViewGroup            mLayoutPannel      = null;
-    private SurfaceView          mSfvCameraPreview  = null;
-    private Switch               mSwtDrawMasker     = null;
-    private CameraHelper         mCameraHelper      = null;
+    private static final String  TAG                   = "MainActivity";
+    private static final int     OUTPUT_PNG_LEVEL      = PngWriter.DEFAULT_LEVEL;
+    private static final int     BURST_COUNT           = 5;
+    private static final long    BURST_INTERVAL        = 0;
+    private static final boolean USE_BANDED_RENDERER   = true;
+    private static final long    BANDED_MEMORY_BUDGET  = BandedRenderer.DEFAULT_MEMORY_BUDGET;
+    private static final int     CAPTURE_FORMAT        = Frame.FORMAT_JPEG;
+    private static final long    CAMERA_KEEP_ALIVE_MS  = 5000;
+    private static final boolean SAVE_ORIGINAL_JPEG    = false; // No mask, camera JPEG straight to file
+
+    private FloatingActionButton          mFabScreenShoot    = null;
+    private ViewGroup                     mSurfaceViewParent = null;
+    private ViewGroup                     mLayoutPannel      = null;
+    private SurfaceView                   mSfvCameraPreview  = null;
+    private Switch                        mSwtDrawMasker     = null;
+    private CameraHelper                  mCameraHelper      = null;
+    private MaskCompositor                mMaskCompositor    = null;
+    private ImageWriter                   mImageWriter       = null;
+    private BandedRenderer                mBandedRenderer    = null;
+    private volatile SpanMask             mSpanMask          = null;
+    private volatile Bitmap               mMaskerOverlay     = null;
+    private Runnable                      mMaskRebuilder     = new Runnable() {
+        @Override
+        public void run() {
+            rebuildMask();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -52,6 +73,13 @@ public class MainActivity extends AppCompatActivity {
 
     private void findViews() {
         mCameraHelper      = new CameraHelper(getApplicationContext());
+        mMaskCompositor    = new MaskCompositor();
+        mBandedRenderer    = new BandedRenderer(mMaskCompositor, mCameraHelper.getBitmapPool(),
+                BANDED_MEMORY_BUDGET, OUTPUT_PNG_LEVEL);
+        mImageWriter       = new ImageWriter(
+                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).toString(),
+                ImageEncoder.createPng(OUTPUT_PNG_LEVEL),
+                CaptureStages.WRITE_QUEUE_CAPACITY, CaptureStages.WRITE_POLICY);
         mSurfaceViewParent = (ViewGroup) findViewById(R.id.content_main);
         mLayoutPannel      = (ViewGroup) findViewById(R.id.content_preview);
         mSfvCameraPreview  = (SurfaceView) findViewById(R.id.SurfaceView_Camera);
@@ -67,6 +95,16 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
+        mFabScreenShoot.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                mCameraHelper.captureBurst(BURST_COUNT, BURST_INTERVAL);
+                return true;
+            }
+        });
+
+        mCameraHelper.getCapturePipeline().addStage(mImageWriter.getStage());
+
         mCameraHelper.setOnRequestCameraPermissionListener(new CameraHelper.RequestPermissionCallback() {
             @Override
             public boolean onRequestCameraPermission(String[] permissions, int requestID) {
@@ -87,57 +125,117 @@ public class MainActivity extends AppCompatActivity {
 
         mCameraHelper.setOnCapturedListener(new CameraHelper.OnCapturedListener() {
             @Override
-            public void onCaptured(Bitmap bitmap) {
-                mLayoutPannel.setDrawingCacheQuality(View.DRAWING_CACHE_QUALITY_HIGH);
-                mLayoutPannel.setDrawingCacheEnabled(true);
-
-                final float[] colorMatrix  = new float[] {
-                        1, 0, 0, 0,   0,
-                        0, 1, 0, 0,   0,
-                        0, 0, 1, 0,   0,
-                        0, 0, 0, 255, 0
-                };
-
-                Bitmap             masker       = mLayoutPannel.getDrawingCache();
-                Bitmap             mask         = Bitmap.createBitmap(masker.getWidth(), masker.getHeight(), Bitmap.Config.ARGB_8888);
-                Bitmap             output       = Bitmap.createBitmap(masker.getWidth(), masker.getHeight(), Bitmap.Config.ARGB_8888);
-                float              bitmapWidth  = bitmap.getWidth();
-                float              bitmapHeight = bitmap.getHeight();
-                float              maskWidth    = mask.getWidth();
-                float              maskHeight   = mask.getHeight();
-                Canvas             canvas       = new Canvas(output);
-                Canvas             maskCanvas   = new Canvas(mask);
-                Paint              paint        = new Paint(Paint.ANTI_ALIAS_FLAG);
-                PorterDuffXfermode xfermode     = new PorterDuffXfermode(PorterDuff.Mode.DST_IN);
-                ColorFilter        colorFilter  = new ColorMatrixColorFilter(colorMatrix);
-
-                paint.setColorFilter(colorFilter);
-                maskCanvas.drawBitmap(masker, 0, 0, paint);
-                paint.setColorFilter(null);
-
-                canvas.save();
-                canvas.scale(maskWidth / bitmapHeight, maskHeight / bitmapWidth);
-                canvas.translate(bitmapHeight, 0);
-                canvas.rotate(90);
-                canvas.drawBitmap(bitmap, 0, 0, paint);
-                canvas.restore();
-
-                paint.setXfermode(xfermode);
-                canvas.drawBitmap(mask, 0, 0, paint);
-
-                if (mSwtDrawMasker.isChecked()) {
-                    paint.setXfermode(null);
-                    canvas.drawBitmap(masker, 0, 0, paint);
+            public void onCaptured(Bitmap bitmap, CaptureTimeline timeline) {
+                BitmapPool bitmapPool   = mCameraHelper.getBitmapPool();
+                int        bitmapWidth  = bitmap.getWidth();
+                int        bitmapHeight = bitmap.getHeight();
+                int[]      srcPixels    = bitmapPool.acquirePixels(bitmapWidth * bitmapHeight);
+                try {
+                    bitmap.getPixels(srcPixels, 0, bitmapWidth, 0, 0, bitmapWidth, bitmapHeight);
+                    compositeAndWrite(srcPixels, bitmapWidth, bitmapHeight, timeline);
+                } finally {
+                    bitmapPool.releasePixels(srcPixels);
+                }
+            }
+        });
+
+        mCameraHelper.setCaptureFormat(CAPTURE_FORMAT);
+        mCameraHelper.setKeepAlive(CAMERA_KEEP_ALIVE_MS);
+        mCameraHelper.setOnCapturedPixelsListener(new CameraHelper.OnCapturedPixelsListener() {
+            @Override
+            public void onCapturedPixels(int[] argb, int width, int height, CaptureTimeline timeline) {
+                // Converted YUV is composited as it is, no Bitmap in between
+                compositeAndWrite(argb, width, height, timeline);
+            }
+        });
+
+        if (SAVE_ORIGINAL_JPEG) {
+            mCameraHelper.setOnCapturedBufferListener(new CameraHelper.OnCapturedBufferListener() {
+                @Override
+                public void onCapturedBuffer(Frame frame, final CaptureTimeline timeline) {
+                    // Written from the Image buffer and released by the writer, no decode or copy
+                    mImageWriter.write(frame, timeline, new ImageWriter.OnFinishedListener() {
+                        @Override
+                        public void onFinished(String fileName) {
+                            onPictureWritten(fileName, timeline);
+                        }
+                    });
                 }
+            });
+        } else if (USE_BANDED_RENDERER) {
+            mCameraHelper.setOnCapturedJpegListener(new CameraHelper.OnCapturedJpegListener() {
+                @Override
+                public void onCapturedJpeg(final byte[] data, final int length, final int width, final int height,
+                                           final CaptureTimeline timeline) {
+                    final SpanMask         mask      = mSpanMask;
+                    final Bitmap           overlay   = mMaskerOverlay;
+                    final CaptureTransform transform = mCameraHelper.getCaptureTransform();
+                    if (mask == null) {
+                        Log.w(TAG, "[onCapturedJpeg] Mask isn't ready, drop the picture");
+                        mCameraHelper.getJpegBufferPool().release(data);
+                        return;
+                    }
 
-                new ImageWriter().writeToDirectory(
-                        Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).toString()
-                ).onFinished(new ImageWriter.OnFinishedListener() {
-                    @Override
-                    public void onFinished(String fileName) {
-                        Snackbar.make(mFabScreenShoot, "Image saved to " + fileName, Snackbar.LENGTH_LONG).show();
+                    // Decode here on the decode stage, so the next capture decodes
+                    // while this one is composited and encoded band by band on the writer
+                    final BandedRenderer.Source source;
+                    try {
+                        source = mBandedRenderer.decode(data, length, width, height,
+                                mask.getWidth(), mask.getHeight(), transform);
+                    } catch (IOException e) {
+                        Log.e(TAG, "[onCapturedJpeg] Failed to decode the picture", e);
+                        return;
+                    } finally {
+                        mCameraHelper.getJpegBufferPool().release(data);
                     }
-                }).execute(output);
+                    timeline.mark(CaptureTimeline.POINT_DECODED);
+
+                    mImageWriter.write(new ImageWriter.StreamSource() {
+                        @Override
+                        public String getFileExtension() {
+                            return mBandedRenderer.getFileExtension();
+                        }
+
+                        @Override
+                        public void writeTo(OutputStream out) throws IOException {
+                            mBandedRenderer.render(source, mask, overlay, transform, out);
+                            timeline.mark(CaptureTimeline.POINT_COMPOSITED);
+                        }
+                    }, timeline, new ImageWriter.OnFinishedListener() {
+                        @Override
+                        public void onFinished(String fileName) {
+                            source.release();
+                            onPictureWritten(fileName, timeline);
+                        }
+                    });
+                }
+            });
+        }
+
+        mLayoutPannel.addOnLayoutChangeListener(new View.OnLayoutChangeListener() {
+            @Override
+            public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                                       int oldLeft, int oldTop, int oldRight, int oldBottom) {
+                mCameraHelper.setDecodeTargetSize(right - left, bottom - top);
+                // Rebuild the mask after children are drawn in their new layout
+                mLayoutPannel.removeCallbacks(mMaskRebuilder);
+                mLayoutPannel.post(mMaskRebuilder);
+            }
+        });
+
+        mSwtDrawMasker.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                mLayoutPannel.removeCallbacks(mMaskRebuilder);
+                mLayoutPannel.post(mMaskRebuilder);
+            }
+        });
+
+        mCameraHelper.setOnStartupTracedListener(new CameraHelper.OnStartupTracedListener() {
+            @Override
+            public void onStartupTraced(CameraStartupTrace trace) {
+                Log.i(TAG, "Time to first frame " + trace.getTimeToFirstFrameNs() / 1000000 + "ms"
+                        + (trace.isWarm() ? " (warm)" : " (cold)"));
             }
         });
 
@@ -151,9 +249,10 @@ public class MainActivity extends AppCompatActivity {
         mSfvCameraPreview.getHolder().addCallback(new SurfaceHolder.Callback() {
             @Override
             public void surfaceCreated(SurfaceHolder holder) {
-                mCameraHelper.setupCamera(mSurfaceViewParent.getHeight(), mSurfaceViewParent.getWidth());
+                mCameraHelper.setupCamera(mSurfaceViewParent.getWidth(), mSurfaceViewParent.getHeight());
+                // Camera streams a supported size in sensor orientation, the display turns it upright
                 Size previewSize = mCameraHelper.getSuggestPreviewSize();
-                holder.setFixedSize(previewSize.getHeight(), previewSize.getWidth());
+                holder.setFixedSize(previewSize.getWidth(), previewSize.getHeight());
             }
 
             @Override
@@ -175,6 +274,103 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
+    /**
+     * Turn upright, scale and mask captured pixels onto the pannel and write the result.
+     * Runs on the composite stage thread.
+     */
+    private void compositeAndWrite(int[] srcPixels, int srcWidth, int srcHeight, final CaptureTimeline timeline) {
+        // Mask is prepared on UI thread when the pannel is laid out, only read it here
+        SpanMask mask    = mSpanMask;
+        Bitmap   overlay = mMaskerOverlay;
+        if (mask == null) {
+            Log.w(TAG, "[compositeAndWrite] Mask isn't ready, drop the picture");
+            return;
+        }
+
+        // Composite and output buffers come from the pool, the output bitmap
+        // goes back once it is written
+        final BitmapPool bitmapPool = mCameraHelper.getBitmapPool();
+        int              maskWidth  = mask.getWidth();
+        int              maskHeight = mask.getHeight();
+        int[]            dstPixels  = bitmapPool.acquirePixels(maskWidth * maskHeight);
+        final Bitmap     output     = bitmapPool.acquire(maskWidth, maskHeight, Bitmap.Config.ARGB_8888);
+
+        // Turn upright, scale and mask in one pass
+        try {
+            mMaskCompositor.composite(
+                    srcPixels, srcWidth, srcHeight,
+                    mask,
+                    dstPixels, maskWidth, maskHeight,
+                    mCameraHelper.getCaptureTransform());
+            output.setPixels(dstPixels, 0, maskWidth, 0, 0, maskWidth, maskHeight);
+        } finally {
+            bitmapPool.releasePixels(dstPixels);
+        }
+        Log.d(TAG, String.format("[compositeAndWrite] Composited with %d spans, average %.1fms",
+                mask.getSpanCount(), mMaskCompositor.getAverageCompositeMs()));
+
+        if (overlay != null) {
+            new Canvas(output).drawBitmap(overlay, 0, 0, new Paint(Paint.ANTI_ALIAS_FLAG));
+        }
+        timeline.mark(CaptureTimeline.POINT_COMPOSITED);
+
+        mImageWriter.write(output, timeline, new ImageWriter.OnFinishedListener() {
+            @Override
+            public void onFinished(String fileName) {
+                bitmapPool.release(output);
+                onPictureWritten(fileName, timeline);
+            }
+        });
+    }
+
+    private void onPictureWritten(String fileName, CaptureTimeline timeline) {
+        CaptureLatencyStats latencyStats = mCameraHelper.getCaptureLatencyStats();
+        if (fileName != null) {
+            latencyStats.record(timeline);
+        }
+        Log.d(TAG, mCameraHelper.getCapturePipeline().dump() + "\n" + mImageWriter);
+        Log.d(TAG, timeline + "\n" + latencyStats.dump() + "\n" + mCameraHelper.getConvergenceTrigger()
+                + "\n" + mCameraHelper.getBitmapPool());
+        if (fileName != null) {
+            Snackbar.make(mFabScreenShoot, "Image saved to " + fileName, Snackbar.LENGTH_LONG).show();
+        }
+    }
+
+    /**
+     * Render the pannel once and keep its coverage as a span mask, plus the
+     * rendered pannel itself if it is drawn over captured pictures.
+     * Runs on UI thread, captures only read the cached result.
+     */
+    private void rebuildMask() {
+        int width  = mLayoutPannel.getWidth();
+        int height = mLayoutPannel.getHeight();
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+
+        Bitmap masker = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        int[]  pixels = new int[width * height];
+        mLayoutPannel.draw(new Canvas(masker));
+        masker.getPixels(pixels, 0, width, 0, 0, width, height);
+        mSpanMask = SpanMask.compile(AlphaMask.fromCoverage(pixels, 0, width, height));
+
+        // A capture in flight may still draw the old overlay, so it isn't recycled here
+        mMaskerOverlay = mSwtDrawMasker.isChecked() ? masker : null;
+        if (mMaskerOverlay == null) {
+            masker.recycle();
+        }
+        Log.d(TAG, "[rebuildMask] " + mSpanMask + (mMaskerOverlay != null ? " with overlay" : ""));
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mCameraHelper.release();
+        mImageWriter.release();
+        mBandedRenderer.release();
+        mMaskCompositor.release();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_main, menu);
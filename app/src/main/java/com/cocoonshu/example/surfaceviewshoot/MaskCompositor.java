@@ -0,0 +1,541 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mask compositor
+ * Rotate or mirror, scale and alpha-mask a captured ARGB image in one pass.
+ * Output rows are split into bands and composited on a worker pool,
+ * the mask is read as an 8-bit AlphaMask of the destination size, or as a
+ * SpanMask which clears or copies whole runs and blends only edge pixels,
+ * so it has no dependency on android.graphics and runs on a plain JVM.
+ *
+ * Source pixels are sampled with nearest neighbour, which matches the
+ * unfiltered Canvas.drawBitmap() path it replaces.
+ */
+public class MaskCompositor {
+
+    private static final String NAME_COMPOSITOR_WORKER = "MaskCompositorWorker";
+    private static final int    MIN_BAND_HEIGHT        = 16;
+
+    public  static final int    ROTATION_0             = 0;
+    public  static final int    ROTATION_90            = 90;
+    public  static final int    ROTATION_180           = 180;
+    public  static final int    ROTATION_270           = 270;
+
+    private ExecutorService  mWorkers         = null;
+    private int              mThreadCount     = 1;
+    private final AtomicLong mCompositeCount  = new AtomicLong();
+    private final AtomicLong mCompositeTimeNs = new AtomicLong();
+
+    public MaskCompositor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public MaskCompositor(int threadCount) {
+        mThreadCount = Math.max(1, threadCount);
+        if (mThreadCount > 1) {
+            mWorkers = Executors.newFixedThreadPool(mThreadCount, new ThreadFactory() {
+                private final AtomicInteger mIndex = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, NAME_COMPOSITOR_WORKER + "-" + mIndex.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * Composite source into destination with IntBuffer backed pixels.
+     * The buffers must be array backed, pixels start at their current position.
+     */
+    public void composite(IntBuffer src, int srcWidth, int srcHeight,
+                          IntBuffer mask,
+                          IntBuffer dst, int dstWidth, int dstHeight,
+                          int rotation) {
+        if (!src.hasArray() || !mask.hasArray() || !dst.hasArray()) {
+            throw new IllegalArgumentException("Only array backed IntBuffer is supported");
+        }
+        checkBounds(mask.array(), mask.arrayOffset() + mask.position(), dstWidth, dstHeight, "mask");
+        composite(src.array(), src.arrayOffset() + src.position(), srcWidth, srcHeight,
+                  AlphaMask.fromArgb(mask.array(), mask.arrayOffset() + mask.position(), dstWidth, dstHeight), null,
+                  dst.array(), dst.arrayOffset() + dst.position(), dstWidth, dstHeight,
+                  new CaptureTransform(rotation, false));
+    }
+
+    /**
+     * Composite source into destination
+     * @param src       source ARGB pixels, row-major with stride srcWidth
+     * @param srcWidth
+     * @param srcHeight
+     * @param mask      mask ARGB pixels with the same size as destination,
+     *                  only the alpha channel is used
+     * @param dst       destination ARGB pixels, row-major with stride dstWidth
+     * @param dstWidth
+     * @param dstHeight
+     * @param rotation  clockwise rotation applied to source, one of ROTATION_*
+     */
+    public void composite(int[] src, int srcWidth, int srcHeight,
+                          int[] mask,
+                          int[] dst, int dstWidth, int dstHeight,
+                          int rotation) {
+        checkBounds(mask, 0, dstWidth, dstHeight, "mask");
+        composite(src, 0, srcWidth, srcHeight, AlphaMask.fromArgb(mask, 0, dstWidth, dstHeight), null,
+                  dst, 0, dstWidth, dstHeight, new CaptureTransform(rotation, false));
+    }
+
+    /**
+     * Composite source into destination with a prepared alpha mask
+     * @param src       source ARGB pixels, row-major with stride srcWidth
+     * @param srcWidth
+     * @param srcHeight
+     * @param mask      alpha mask with the same size as destination
+     * @param dst       destination ARGB pixels, row-major with stride dstWidth
+     * @param dstWidth
+     * @param dstHeight
+     * @param rotation  clockwise rotation applied to source, one of ROTATION_*
+     */
+    public void composite(int[] src, int srcWidth, int srcHeight,
+                          AlphaMask mask,
+                          int[] dst, int dstWidth, int dstHeight,
+                          int rotation) {
+        composite(src, 0, srcWidth, srcHeight, mask, null, dst, 0, dstWidth, dstHeight, new CaptureTransform(rotation, false));
+    }
+
+    /**
+     * Composite source into destination with a prepared alpha mask, turning
+     * source upright by transform while sampling it
+     * @param src       source ARGB pixels, row-major with stride srcWidth
+     * @param srcWidth
+     * @param srcHeight
+     * @param mask      alpha mask with the same size as destination
+     * @param dst       destination ARGB pixels, row-major with stride dstWidth
+     * @param dstWidth
+     * @param dstHeight
+     * @param transform rotation and mirror applied to source
+     */
+    public void composite(int[] src, int srcWidth, int srcHeight,
+                          AlphaMask mask,
+                          int[] dst, int dstWidth, int dstHeight,
+                          CaptureTransform transform) {
+        composite(src, 0, srcWidth, srcHeight, mask, null, dst, 0, dstWidth, dstHeight, transform);
+    }
+
+    /**
+     * Composite source into destination with a span compiled mask,
+     * same output as the AlphaMask version of the span mask
+     * @param src       source ARGB pixels, row-major with stride srcWidth
+     * @param srcWidth
+     * @param srcHeight
+     * @param mask      span mask with the same size as destination
+     * @param dst       destination ARGB pixels, row-major with stride dstWidth
+     * @param dstWidth
+     * @param dstHeight
+     * @param rotation  clockwise rotation applied to source, one of ROTATION_*
+     */
+    public void composite(int[] src, int srcWidth, int srcHeight,
+                          SpanMask mask,
+                          int[] dst, int dstWidth, int dstHeight,
+                          int rotation) {
+        composite(src, srcWidth, srcHeight, mask, dst, dstWidth, dstHeight, new CaptureTransform(rotation, false));
+    }
+
+    /**
+     * Composite source into destination with a span compiled mask, turning
+     * source upright by transform while sampling it, so no rotated or
+     * mirrored copy of source is made
+     * @param src       source ARGB pixels, row-major with stride srcWidth
+     * @param srcWidth
+     * @param srcHeight
+     * @param mask      span mask with the same size as destination
+     * @param dst       destination ARGB pixels, row-major with stride dstWidth
+     * @param dstWidth
+     * @param dstHeight
+     * @param transform rotation and mirror applied to source
+     */
+    public void composite(int[] src, int srcWidth, int srcHeight,
+                          SpanMask mask,
+                          int[] dst, int dstWidth, int dstHeight,
+                          CaptureTransform transform) {
+        composite(src, 0, srcWidth, srcHeight, mask == null ? null : mask.getAlphaMask(), mask,
+                  dst, 0, dstWidth, dstHeight, transform);
+    }
+
+    public long getCompositeCount() {
+        return mCompositeCount.get();
+    }
+
+    public double getAverageCompositeMs() {
+        long count = mCompositeCount.get();
+        return count == 0 ? 0.0 : mCompositeTimeNs.get() / 1e6 / count;
+    }
+
+    public void resetStatistics() {
+        mCompositeCount.set(0);
+        mCompositeTimeNs.set(0);
+    }
+
+    private void composite(final int[] src, final int srcOffset, final int srcWidth, final int srcHeight,
+                           final AlphaMask alphaMask, final SpanMask spanMask,
+                           final int[] dst, final int dstOffset, final int dstWidth, final int dstHeight,
+                           final CaptureTransform transform) {
+        checkBounds(src, srcOffset, srcWidth, srcHeight, "src");
+        checkBounds(dst, dstOffset, dstWidth, dstHeight, "dst");
+        if (alphaMask == null || alphaMask.getWidth() != dstWidth || alphaMask.getHeight() != dstHeight) {
+            throw new IllegalArgumentException("Bad mask for " + dstWidth + "x" + dstHeight);
+        }
+
+        long startTime = System.nanoTime();
+        try {
+            compositeBands(src, srcOffset, srcWidth, alphaMask.getAlpha(), spanMask,
+                           dst, dstOffset, dstWidth, 0, dstHeight,
+                           new Sampling(srcWidth, srcHeight, dstWidth, dstHeight, transform));
+        } finally {
+            mCompositeTimeNs.addAndGet(System.nanoTime() - startTime);
+            mCompositeCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Composite destination rows [rowBegin, rowEnd) from the part of source
+     * covering them, see getSourceBounds(). Source and destination are only
+     * held for the band, so a large image can be composited strip by strip.
+     * @param srcBand    ARGB pixels of the source rectangle, row-major with stride bandWidth
+     * @param bandLeft   left of the source rectangle in source
+     * @param bandTop    top of the source rectangle in source
+     * @param bandWidth
+     * @param bandHeight
+     * @param srcWidth   width of the whole source
+     * @param srcHeight  height of the whole source
+     * @param mask       span mask of the whole destination
+     * @param dstBand    ARGB pixels of rows [rowBegin, rowEnd), row-major with stride dstWidth
+     * @param dstWidth
+     * @param dstHeight  height of the whole destination
+     * @param rowBegin
+     * @param rowEnd
+     * @param rotation   clockwise rotation applied to source, one of ROTATION_*
+     */
+    public void compositeBand(int[] srcBand, int bandLeft, int bandTop, int bandWidth, int bandHeight,
+                              int srcWidth, int srcHeight,
+                              SpanMask mask,
+                              int[] dstBand, int dstWidth, int dstHeight, int rowBegin, int rowEnd,
+                              int rotation) {
+        compositeBand(srcBand, bandLeft, bandTop, bandWidth, bandHeight, srcWidth, srcHeight, mask,
+                      dstBand, dstWidth, dstHeight, rowBegin, rowEnd, new CaptureTransform(rotation, false));
+    }
+
+    /**
+     * Composite destination rows [rowBegin, rowEnd) like compositeBand() above,
+     * with source turned upright by transform
+     */
+    public void compositeBand(int[] srcBand, int bandLeft, int bandTop, int bandWidth, int bandHeight,
+                              int srcWidth, int srcHeight,
+                              SpanMask mask,
+                              int[] dstBand, int dstWidth, int dstHeight, int rowBegin, int rowEnd,
+                              CaptureTransform transform) {
+        int[] bounds = getSourceBounds(srcWidth, srcHeight, dstWidth, dstHeight, transform.getRotation(), rowBegin, rowEnd);
+        if (bounds[0] < bandLeft || bounds[1] < bandTop
+                || bounds[2] > bandLeft + bandWidth || bounds[3] > bandTop + bandHeight) {
+            throw new IllegalArgumentException("Source band doesn't cover rows " + rowBegin + " ~ " + rowEnd);
+        }
+        checkBounds(srcBand, 0, bandWidth, bandHeight, "src");
+        checkBounds(dstBand, 0, dstWidth, rowEnd - rowBegin, "dst");
+        if (mask == null || mask.getWidth() != dstWidth || mask.getHeight() != dstHeight) {
+            throw new IllegalArgumentException("Bad mask for " + dstWidth + "x" + dstHeight);
+        }
+
+        // Offsets make whole-image indices land inside the band arrays
+        long startTime = System.nanoTime();
+        try {
+            compositeBands(srcBand, -(bandTop * bandWidth + bandLeft), bandWidth,
+                           mask.getAlphaMask().getAlpha(), mask,
+                           dstBand, -rowBegin * dstWidth, dstWidth, rowBegin, rowEnd,
+                           new Sampling(srcWidth, srcHeight, dstWidth, dstHeight, transform));
+        } finally {
+            mCompositeTimeNs.addAndGet(System.nanoTime() - startTime);
+            mCompositeCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Source rectangle sampled by destination rows [rowBegin, rowEnd),
+     * which doesn't depend on whether the transform mirrors
+     * @return {left, top, right, bottom} in source, right and bottom exclusive
+     */
+    public static int[] getSourceBounds(int srcWidth, int srcHeight, int dstWidth, int dstHeight,
+                                        int rotation, int rowBegin, int rowEnd) {
+        if (rowBegin < 0 || rowEnd > dstHeight || rowBegin >= rowEnd) {
+            throw new IllegalArgumentException("Bad rows " + rowBegin + " ~ " + rowEnd + " of " + dstHeight);
+        }
+        return new Sampling(srcWidth, srcHeight, dstWidth, dstHeight, new CaptureTransform(rotation, false))
+                .sourceBounds(rowBegin, rowEnd);
+    }
+
+    private void compositeBands(final int[] src, final int srcOffset, final int srcStride,
+                                final byte[] mask, final SpanMask spanMask,
+                                final int[] dst, final int dstOffset, final int dstWidth,
+                                final int rowBegin, final int rowEnd, final Sampling sampling) {
+        final int rowCount = rowEnd - rowBegin;
+        final int bands    = Math.min(mThreadCount, Math.max(1, rowCount / MIN_BAND_HEIGHT));
+        if (bands <= 1 || mWorkers == null) {
+            compositeRows(src, srcOffset, srcStride, mask, spanMask, dst, dstOffset, dstWidth, rowBegin, rowEnd, sampling);
+            return;
+        }
+
+        List<Callable<Void>> jobs       = new ArrayList<Callable<Void>>(bands);
+        int                  bandHeight = (rowCount + bands - 1) / bands;
+        for (int top = rowBegin; top < rowEnd; top += bandHeight) {
+            final int bandTop    = top;
+            final int bandBottom = Math.min(rowEnd, top + bandHeight);
+            jobs.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    compositeRows(src, srcOffset, srcStride, mask, spanMask, dst, dstOffset, dstWidth,
+                                  bandTop, bandBottom, sampling);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Void> result : mWorkers.invokeAll(jobs)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Compositing interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Compositing failed", e.getCause());
+        }
+    }
+
+    private static void compositeRows(int[] src, int srcOffset, int srcWidth,
+                                      byte[] mask, SpanMask spanMask,
+                                      int[] dst, int dstOffset, int dstWidth,
+                                      int rowBegin, int rowEnd, Sampling sampling) {
+        if (spanMask != null) {
+            compositeSpanRows(src, srcOffset, srcWidth, mask, spanMask, dst, dstOffset, dstWidth,
+                              rowBegin, rowEnd, sampling);
+            return;
+        }
+
+        for (int y = rowBegin; y < rowEnd; y++) {
+            int maskIndex = y * dstWidth;
+            int dstIndex  = dstOffset + y * dstWidth;
+            int srcIndex  = srcOffset + sampling.rowOrigin(y, srcWidth);
+            int srcStep   = sampling.columnStep(srcWidth);
+            int fraction  = sampling.columnFraction;
+            int accum     = 0;
+            for (int x = 0; x < dstWidth; x++) {
+                int alpha = mask[maskIndex + x] & 0xFF;
+                if (alpha == 0) {
+                    dst[dstIndex + x] = 0;
+                } else {
+                    int color = src[srcIndex];
+                    if (alpha != 0xFF) {
+                        color = multiplyAlpha(color, alpha);
+                    }
+                    dst[dstIndex + x] = color;
+                }
+
+                // Step to the next source sample with 16.16 fixed-point
+                accum += fraction;
+                srcIndex += (accum >>> 16) * srcStep;
+                accum &= 0xFFFF;
+            }
+        }
+    }
+
+    private static void compositeSpanRows(int[] src, int srcOffset, int srcWidth,
+                                          byte[] mask, SpanMask spanMask,
+                                          int[] dst, int dstOffset, int dstWidth,
+                                          int rowBegin, int rowEnd, Sampling sampling) {
+        int srcStep  = sampling.columnStep(srcWidth);
+        int fraction = sampling.columnFraction;
+        for (int y = rowBegin; y < rowEnd; y++) {
+            int maskIndex = y * dstWidth;
+            int dstIndex  = dstOffset + y * dstWidth;
+            int srcIndex  = srcOffset + sampling.rowOrigin(y, srcWidth);
+            int accum     = 0;
+            int x         = 0;
+            for (int span = spanMask.getRowOffset(y); span < spanMask.getRowOffset(y + 1); span++) {
+                int end = spanMask.getSpanEnd(span);
+                switch (spanMask.getSpanType(span)) {
+                    case SpanMask.SPAN_TRANSPARENT: {
+                        Arrays.fill(dst, dstIndex + x, dstIndex + end, 0);
+                        // Skip source samples of the whole run at once
+                        long skipped = accum + (long) fraction * (end - x);
+                        srcIndex += (int) (skipped >>> 16) * srcStep;
+                        accum     = (int) (skipped & 0xFFFF);
+                        break;
+                    }
+
+                    case SpanMask.SPAN_OPAQUE: {
+                        if (fraction == 0x10000 && srcStep == 1) {
+                            System.arraycopy(src, srcIndex, dst, dstIndex + x, end - x);
+                            srcIndex += end - x;
+                            break;
+                        }
+                        for (int i = x; i < end; i++) {
+                            dst[dstIndex + i] = src[srcIndex];
+                            accum += fraction;
+                            srcIndex += (accum >>> 16) * srcStep;
+                            accum &= 0xFFFF;
+                        }
+                        break;
+                    }
+
+                    default: {
+                        for (int i = x; i < end; i++) {
+                            dst[dstIndex + i] = multiplyAlpha(src[srcIndex], mask[maskIndex + i] & 0xFF);
+                            accum += fraction;
+                            srcIndex += (accum >>> 16) * srcStep;
+                            accum &= 0xFFFF;
+                        }
+                        break;
+                    }
+                }
+                x = end;
+            }
+        }
+    }
+
+    /**
+     * Integer version of ImageUtils.mixAlphaToColor(), rounded to nearest
+     */
+    static int multiplyAlpha(int color, int alpha) {
+        int product = (color >>> 24) * alpha + 0x80;
+        return (((product + (product >>> 8)) >>> 8) << 24) | (color & 0x00FFFFFF);
+    }
+
+    private static void checkBounds(int[] pixels, int offset, int width, int height, String name) {
+        if (pixels == null || width <= 0 || height <= 0 || offset < 0
+                || (long) offset + (long) width * height > pixels.length) {
+            throw new IllegalArgumentException("Bad " + name + " buffer for " + width + "x" + height);
+        }
+    }
+
+    public void release() {
+        if (mWorkers != null) {
+            mWorkers.shutdown();
+            mWorkers = null;
+        }
+    }
+
+    /**
+     * Nearest neighbour mapping from destination pixels to source pixels.
+     * Along a destination row the source walks either a source row or a source
+     * column depending on rotation, with a constant 16.16 fixed-point step.
+     * A mirrored transform samples the source flipped along the walk of a
+     * destination column instead, which mirrors destination rows.
+     */
+    private static final class Sampling {
+        final int     rotation;
+        final boolean mirrored;
+        final int     srcWidth;
+        final int     srcHeight;
+        final int     rowFraction;
+        final int     columnFraction;
+
+        Sampling(int srcWidth, int srcHeight, int dstWidth, int dstHeight, CaptureTransform transform) {
+            this.rotation  = transform.getRotation();
+            this.mirrored  = transform.isMirrored();
+            this.srcWidth  = srcWidth;
+            this.srcHeight = srcHeight;
+
+            boolean transposed   = rotation == ROTATION_90 || rotation == ROTATION_270;
+            int     alongRow     = transposed ? srcHeight : srcWidth;
+            int     alongColumn  = transposed ? srcWidth : srcHeight;
+            switch (rotation) {
+                case ROTATION_0:
+                case ROTATION_90:
+                case ROTATION_180:
+                case ROTATION_270:
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported rotation " + rotation);
+            }
+            this.columnFraction = (int) (((long) alongRow << 16) / dstWidth);
+            this.rowFraction    = (int) (((long) alongColumn << 16) / dstHeight);
+        }
+
+        /**
+         * Source index of the first sample of destination row y
+         */
+        int rowOrigin(int y, int stride) {
+            int v = (int) (((long) y * rowFraction) >>> 16);
+            switch (rotation) {
+                case ROTATION_90:
+                    // dst(x, y) = src(v, srcHeight - 1 - u), mirrored src(v, u)
+                    return mirrored ? v : (srcHeight - 1) * stride + v;
+                case ROTATION_180:
+                    // dst(x, y) = src(srcWidth - 1 - u, srcHeight - 1 - v), mirrored src(u, srcHeight - 1 - v)
+                    return (srcHeight - 1 - v) * stride + (mirrored ? 0 : srcWidth - 1);
+                case ROTATION_270:
+                    // dst(x, y) = src(srcWidth - 1 - v, u), mirrored src(srcWidth - 1 - v, srcHeight - 1 - u)
+                    return (mirrored ? (srcHeight - 1) * stride : 0) + srcWidth - 1 - v;
+                default:
+                    // dst(x, y) = src(u, v), mirrored src(srcWidth - 1 - u, v)
+                    return v * stride + (mirrored ? srcWidth - 1 : 0);
+            }
+        }
+
+        /**
+         * Source rectangle {left, top, right, bottom} sampled by destination rows [rowBegin, rowEnd)
+         */
+        int[] sourceBounds(int rowBegin, int rowEnd) {
+            int first = (int) (((long) rowBegin * rowFraction) >>> 16);
+            int last  = (int) (((long) (rowEnd - 1) * rowFraction) >>> 16);
+            switch (rotation) {
+                case ROTATION_90:
+                    return new int[] {first, 0, last + 1, srcHeight};
+                case ROTATION_180:
+                    return new int[] {0, srcHeight - 1 - last, srcWidth, srcHeight - first};
+                case ROTATION_270:
+                    return new int[] {srcWidth - 1 - last, 0, srcWidth - first, srcHeight};
+                default:
+                    return new int[] {0, first, srcWidth, last + 1};
+            }
+        }
+
+        /**
+         * Source index delta for one whole source step along a destination row
+         */
+        int columnStep(int stride) {
+            int step;
+            switch (rotation) {
+                case ROTATION_90:
+                    step = -stride;
+                    break;
+                case ROTATION_180:
+                    step = -1;
+                    break;
+                case ROTATION_270:
+                    step = stride;
+                    break;
+                default:
+                    step = 1;
+                    break;
+            }
+            return mirrored ? -step : step;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pipeline stage
+ * A single worker thread draining a bounded queue. The output of a stage is
+ * handed to its sink, which is usually the next stage, so chained stages
+ * run overlapped: frame N+1 is decoded while frame N is being encoded.
+ * When the queue is full, the backpressure policy decides whether the producer
+ * waits, the oldest queued item is dropped or the new item is rejected.
+ */
+public class PipelineStage<I, O> {
+
+    private static final String NAME_STAGE_THREAD_PREFIX = "PipelineStage-";
+    private static final long   IDLE_GAP_NS              = 1000 * 1000000L; // Longer wait for an item ends a burst
+
+    public  static final int    POLICY_BLOCK             = 0x0001;
+    public  static final int    POLICY_DROP_OLDEST       = 0x0002;
+    public  static final int    POLICY_REJECT            = 0x0003;
+
+    private final String                   mName;
+    private final BlockingQueue<I>         mQueue;
+    private final Processor<I, O>          mProcessor;
+    private final AtomicLong               mProcessedCount   = new AtomicLong();
+    private final AtomicLong               mFailedCount      = new AtomicLong();
+    private final AtomicLong               mBusyTimeNs       = new AtomicLong();
+    private final AtomicLong               mDroppedCount     = new AtomicLong();
+    private final AtomicLong               mBurstIntervals   = new AtomicLong();
+    private final AtomicLong               mBurstTimeNs      = new AtomicLong();
+    private final int                      mPolicy;
+    private volatile Sink<? super O>       mSink             = null;
+    private volatile Sink<? super I>       mDroppedSink      = null;
+    private volatile FailedSink<? super I> mFailedSink       = null;
+    private volatile Thread                mWorker           = null;
+    private volatile int                   mMaxQueueDepth    = 0;
+    private long                           mLastCompletedNs  = 0;
+
+    public interface Processor<I, O> {
+        /**
+         * Process one item on the stage thread
+         * @return output for the sink, or null to pass nothing downstream
+         */
+        O process(I input) throws Exception;
+    }
+
+    public interface Sink<T> {
+        void accept(T item);
+    }
+
+    public interface FailedSink<T> {
+        /**
+         * Called on the stage thread for an item whose processor threw
+         */
+        void accept(T item, Exception error);
+    }
+
+    public PipelineStage(String name, int queueCapacity, Processor<I, O> processor) {
+        this(name, queueCapacity, POLICY_BLOCK, processor);
+    }
+
+    public PipelineStage(String name, int queueCapacity, int policy, Processor<I, O> processor) {
+        switch (policy) {
+            case POLICY_BLOCK:
+            case POLICY_DROP_OLDEST:
+            case POLICY_REJECT:
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown backpressure policy " + policy);
+        }
+        mName      = name;
+        mQueue     = new ArrayBlockingQueue<I>(Math.max(1, queueCapacity));
+        mPolicy    = policy;
+        mProcessor = processor;
+    }
+
+    public PipelineStage<I, O> setSink(Sink<? super O> sink) {
+        mSink = sink;
+        return this;
+    }
+
+    /**
+     * Receive items dropped or rejected by backpressure, to release their resources
+     */
+    public PipelineStage<I, O> setDroppedSink(Sink<? super I> sink) {
+        mDroppedSink = sink;
+        return this;
+    }
+
+    /**
+     * Receive items whose processor threw, to report them and release their
+     * resources. Without a failed sink failures are only counted.
+     */
+    public PipelineStage<I, O> setFailedSink(FailedSink<? super I> sink) {
+        mFailedSink = sink;
+        return this;
+    }
+
+    /**
+     * Chain next stage after this one
+     * @return next stage, so stages can be chained fluently
+     */
+    public <R> PipelineStage<O, R> then(final PipelineStage<O, R> next) {
+        mSink = new Sink<O>() {
+            @Override
+            public void accept(O item) {
+                next.accept(item);
+            }
+        };
+        return next;
+    }
+
+    public synchronized void start() {
+        if (mWorker != null) {
+            return;
+        }
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainQueue();
+            }
+        }, NAME_STAGE_THREAD_PREFIX + mName);
+        mWorker.setDaemon(true);
+        mWorker.start();
+    }
+
+    /**
+     * Stop the worker, items still queued are handed to the dropped sink
+     */
+    public synchronized void stop() {
+        if (mWorker != null) {
+            mWorker.interrupt();
+            mWorker = null;
+        }
+        I item = null;
+        while ((item = mQueue.poll()) != null) {
+            notifyDropped(item);
+        }
+    }
+
+    /**
+     * Queue an item, applying the backpressure policy while the stage is full
+     * @return false if this item was rejected
+     */
+    public boolean accept(I item) {
+        switch (mPolicy) {
+            case POLICY_DROP_OLDEST:
+                while (!mQueue.offer(item)) {
+                    I oldest = mQueue.poll();
+                    if (oldest != null) {
+                        notifyDropped(oldest);
+                    }
+                }
+                break;
+
+            case POLICY_REJECT:
+                if (!mQueue.offer(item)) {
+                    notifyDropped(item);
+                    return false;
+                }
+                break;
+
+            default:
+                try {
+                    mQueue.put(item);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    notifyDropped(item);
+                    return false;
+                }
+                break;
+        }
+        updateMaxQueueDepth();
+        return true;
+    }
+
+    /**
+     * Queue an item without ever waiting, for producers which must not block,
+     * e.g. while holding a camera image. A POLICY_BLOCK stage rejects the
+     * item if it is full, other policies apply as in accept().
+     * @return false if this item was rejected
+     */
+    public boolean offer(I item) {
+        if (mPolicy != POLICY_BLOCK) {
+            return accept(item);
+        }
+        if (!mQueue.offer(item)) {
+            notifyDropped(item);
+            return false;
+        }
+        updateMaxQueueDepth();
+        return true;
+    }
+
+    private void notifyDropped(I item) {
+        mDroppedCount.incrementAndGet();
+        Sink<? super I> droppedSink = mDroppedSink;
+        if (droppedSink != null) {
+            droppedSink.accept(item);
+        }
+    }
+
+    private void notifyFailed(I item, Exception error) {
+        FailedSink<? super I> failedSink = mFailedSink;
+        if (failedSink != null) {
+            failedSink.accept(item, error);
+        }
+    }
+
+    private void drainQueue() {
+        while (!Thread.currentThread().isInterrupted()) {
+            I    item      = null;
+            long waitStart = System.nanoTime();
+            try {
+                item = mQueue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            boolean resumed = System.nanoTime() - waitStart > IDLE_GAP_NS;
+
+            O    output    = null;
+            long startTime = System.nanoTime();
+            try {
+                output = mProcessor.process(item);
+            } catch (Exception e) {
+                mFailedCount.incrementAndGet();
+                notifyFailed(item, e);
+                continue;
+            }
+            long endTime = System.nanoTime();
+
+            mBusyTimeNs.addAndGet(endTime - startTime);
+            mProcessedCount.incrementAndGet();
+            // Time between completions counts only within a burst, not the idle time before it
+            if (mLastCompletedNs != 0 && !resumed) {
+                mBurstTimeNs.addAndGet(endTime - mLastCompletedNs);
+                mBurstIntervals.incrementAndGet();
+            }
+            mLastCompletedNs = endTime;
+
+            Sink<? super O> sink = mSink;
+            if (output != null && sink != null) {
+                sink.accept(output);
+            }
+        }
+    }
+
+    private void updateMaxQueueDepth() {
+        int depth = mQueue.size();
+        if (depth > mMaxQueueDepth) {
+            mMaxQueueDepth = depth;
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    public long getProcessedCount() {
+        return mProcessedCount.get();
+    }
+
+    public long getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public int getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Average time spent in processor per item
+     */
+    public double getAverageProcessMs() {
+        long count = mProcessedCount.get();
+        return count == 0 ? 0.0 : mBusyTimeNs.get() / 1e6 / count;
+    }
+
+    /**
+     * Sustained output rate measured between consecutive completed items of
+     * a burst. A wait of more than a second for the next item ends a burst,
+     * so idle time between bursts doesn't lower the rate.
+     */
+    public double getFramesPerSecond() {
+        long intervals = mBurstIntervals.get();
+        long duration  = mBurstTimeNs.get();
+        return intervals == 0 || duration <= 0 ? 0.0 : intervals * 1e9 / duration;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s{queue=%d/max %d, done=%d, failed=%d, dropped=%d, avg=%.1fms, fps=%.2f}",
+                mName, getQueueDepth(), getMaxQueueDepth(), getProcessedCount(),
+                getFailedCount(), getDroppedCount(), getAverageProcessMs(), getFramesPerSecond());
+    }
+}
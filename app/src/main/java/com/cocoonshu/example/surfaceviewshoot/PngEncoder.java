@@ -0,0 +1,73 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PNG encoder with a configurable deflate level
+ * Bitmap.compress() ignores quality for PNG, this one goes through PngWriter,
+ * deflating row chunks on a worker pool.
+ */
+public class PngEncoder extends ImageEncoder {
+
+    private static final String NAME_PNG_WORKER = "PngEncoderWorker";
+
+    private int             mLevel       = PngWriter.DEFAULT_LEVEL;
+    private int             mThreadCount = 1;
+    private ExecutorService mWorkers     = null;
+
+    public PngEncoder(int level) {
+        this(level, Runtime.getRuntime().availableProcessors());
+    }
+
+    public PngEncoder(int level, int threadCount) {
+        mLevel       = level;
+        mThreadCount = Math.max(1, threadCount);
+        if (mThreadCount > 1) {
+            mWorkers = Executors.newFixedThreadPool(mThreadCount, new ThreadFactory() {
+                private final AtomicInteger mIndex = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, NAME_PNG_WORKER + "-" + mIndex.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    @Override
+    public String getFileExtension() {
+        return ".png";
+    }
+
+    @Override
+    protected void onEncode(Bitmap bitmap, OutputStream out) throws IOException {
+        int       width     = bitmap.getWidth();
+        int       height    = bitmap.getHeight();
+        PngWriter writer    = new PngWriter(out, width, height, mLevel, mWorkers);
+        int       batchRows = Math.min(height, writer.getRowsPerChunk() * mThreadCount);
+        int[]     rows      = new int[width * batchRows];
+        for (int top = 0; top < height; top += batchRows) {
+            int rowCount = Math.min(batchRows, height - top);
+            bitmap.getPixels(rows, 0, width, 0, top, width, rowCount);
+            writer.writeRows(rows, 0, rowCount);
+        }
+        writer.finish();
+    }
+
+    @Override
+    public void release() {
+        if (mWorkers != null) {
+            mWorkers.shutdown();
+            mWorkers = null;
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG writer
+ * Stream 8-bit RGBA PNG from ARGB rows, without any dependency on
+ * android.graphics. Rows are written top to bottom with writeRows()
+ * and the image is closed by finish(). Each row picks the filter with
+ * the smallest sum of absolute differences, as libpng does.
+ *
+ * Rows are deflated in chunks which don't share a dictionary, so chunks
+ * can be compressed on several threads and joined into one zlib stream,
+ * the same way pigz does. Checksums of chunks are combined in order.
+ */
+public class PngWriter {
+
+    public  static final int    DEFAULT_LEVEL      = 6;
+
+    private static final byte[] SIGNATURE          = new byte[] {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int    CHUNK_IHDR         = 0x49484452;
+    private static final int    CHUNK_IDAT         = 0x49444154;
+    private static final int    CHUNK_IEND         = 0x49454E44;
+    private static final int    IDAT_CHUNK_SIZE    = 64 * 1024;
+    private static final int    BYTES_PER_PIXEL    = 4;
+    private static final int    COLOR_TYPE_RGBA    = 6;
+    private static final int    MIN_CHUNK_BYTES    = 128 * 1024;
+    private static final int    MIN_ROWS_PER_CHUNK = 8;
+
+    static final int            FILTER_NONE        = 0;
+    static final int            FILTER_SUB         = 1;
+    static final int            FILTER_UP          = 2;
+    static final int            FILTER_AVERAGE     = 3;
+    static final int            FILTER_PAETH       = 4;
+
+    private final OutputStream      mOut;
+    private final int               mWidth;
+    private final int               mHeight;
+    private final int               mLevel;
+    private final int               mRowsPerChunk;
+    private final ExecutorService   mExecutor;
+    private final ChunkOutputStream mIdatStream;
+    private final byte[]            mPreviousRow;
+    private long                    mAdler        = 1L;
+    private int                     mWrittenRows  = 0;
+
+    public PngWriter(OutputStream out, int width, int height, int level) throws IOException {
+        this(out, width, height, level, null);
+    }
+
+    /**
+     * @param executor executor deflating row chunks in parallel, or null to deflate on caller thread
+     */
+    public PngWriter(OutputStream out, int width, int height, int level, ExecutorService executor) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Bad image size " + width + "x" + height);
+        }
+        mOut          = out;
+        mWidth        = width;
+        mHeight       = height;
+        mLevel        = Math.max(0, Math.min(9, level));
+        mExecutor     = executor;
+        mRowsPerChunk = Math.max(MIN_ROWS_PER_CHUNK, MIN_CHUNK_BYTES / (1 + width * BYTES_PER_PIXEL));
+        mPreviousRow  = new byte[width * BYTES_PER_PIXEL];
+        mIdatStream   = new ChunkOutputStream(out, CHUNK_IDAT, IDAT_CHUNK_SIZE);
+
+        out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8]  = 8;               // Bit depth
+        header[9]  = COLOR_TYPE_RGBA; // Color type
+        header[10] = 0;               // Compression method
+        header[11] = 0;               // Filter method
+        header[12] = 0;               // Interlace method
+        writeChunk(out, CHUNK_IHDR, header, 0, header.length);
+
+        // zlib stream header, deflate with 32K window
+        mIdatStream.write(0x78);
+        mIdatStream.write(zlibLevelFlags(mLevel));
+    }
+
+    /**
+     * Rows per deflate chunk, write at least this many rows per worker
+     * thread in one writeRows() call to keep all workers busy
+     */
+    public int getRowsPerChunk() {
+        return mRowsPerChunk;
+    }
+
+    /**
+     * Write the next rows of image. Rows are cut into chunks of getRowsPerChunk()
+     * rows, chunks are filtered and deflated independently and in parallel, then
+     * appended to IDAT in order.
+     * @param argb     ARGB pixels, row-major with stride width
+     * @param offset   index of the first pixel in argb
+     * @param rowCount
+     */
+    public void writeRows(final int[] argb, final int offset, int rowCount) throws IOException {
+        if (mWrittenRows + rowCount > mHeight) {
+            throw new IllegalStateException("Too many rows, " + (mWrittenRows + rowCount) + " > " + mHeight);
+        }
+        if (rowCount <= 0) {
+            return;
+        }
+
+        List<DeflateChunk> chunks = new ArrayList<DeflateChunk>();
+        for (int first = 0; first < rowCount; first += mRowsPerChunk) {
+            int     count    = Math.min(mRowsPerChunk, rowCount - first);
+            boolean firstRow = mWrittenRows == 0 && first == 0;
+            chunks.add(new DeflateChunk(argb, offset, first, count, firstRow));
+        }
+
+        if (mExecutor == null || chunks.size() == 1) {
+            for (DeflateChunk chunk : chunks) {
+                chunk.call();
+            }
+        } else {
+            try {
+                for (Future<DeflateChunk> result : mExecutor.invokeAll(chunks)) {
+                    result.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("PNG encoding interrupted");
+            } catch (ExecutionException e) {
+                throw new IOException("PNG encoding failed", e.getCause());
+            }
+        }
+
+        // Stitch independent deflate blocks in order
+        for (DeflateChunk chunk : chunks) {
+            mIdatStream.write(chunk.output, 0, chunk.outputLength);
+            mAdler = combineAdler32(mAdler, chunk.adler, chunk.inputLength);
+        }
+
+        toRgba(argb, offset + (rowCount - 1) * mWidth, mWidth, mPreviousRow);
+        mWrittenRows += rowCount;
+    }
+
+    /**
+     * Close image data and write the trailing chunk, the underlying stream is left open
+     */
+    public void finish() throws IOException {
+        if (mWrittenRows != mHeight) {
+            throw new IllegalStateException("Only " + mWrittenRows + " of " + mHeight + " rows are written");
+        }
+
+        // Every chunk ends with a sync flush, close the stream with an empty final block
+        Deflater deflater = new Deflater(mLevel, true);
+        byte[]   buffer   = new byte[16];
+        deflater.finish();
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            mIdatStream.write(buffer, 0, length);
+        }
+        deflater.end();
+
+        byte[] trailer = new byte[4];
+        putInt(trailer, 0, (int) mAdler);
+        mIdatStream.write(trailer, 0, trailer.length);
+        mIdatStream.flushChunk();
+        writeChunk(mOut, CHUNK_IEND, new byte[0], 0, 0);
+        mOut.flush();
+    }
+
+    /**
+     * A run of rows filtered and deflated with its own dictionary,
+     * ended by a sync flush so chunks can be concatenated on byte boundary
+     */
+    private class DeflateChunk implements Callable<DeflateChunk> {
+        final int[]   argb;
+        final int     offset;
+        final int     firstRow;
+        final int     rowCount;
+        final boolean isImageTop;
+        byte[]        output       = null;
+        int           outputLength = 0;
+        int           inputLength  = 0;
+        long          adler        = 1L;
+
+        DeflateChunk(int[] argb, int offset, int firstRow, int rowCount, boolean isImageTop) {
+            this.argb       = argb;
+            this.offset     = offset;
+            this.firstRow   = firstRow;
+            this.rowCount   = rowCount;
+            this.isImageTop = isImageTop;
+        }
+
+        @Override
+        public DeflateChunk call() {
+            int      rowBytes = mWidth * BYTES_PER_PIXEL;
+            byte[]   previous = new byte[rowBytes];
+            byte[]   current  = new byte[rowBytes];
+            byte[]   filtered = new byte[1 + rowBytes];
+            Adler32  checksum = new Adler32();
+            Deflater deflater = new Deflater(mLevel, true);
+
+            if (firstRow > 0) {
+                toRgba(argb, offset + (firstRow - 1) * mWidth, mWidth, previous);
+            } else {
+                System.arraycopy(mPreviousRow, 0, previous, 0, rowBytes);
+            }
+
+            output = new byte[Math.max(1024, rowCount * (1 + rowBytes) / 2)];
+            for (int row = 0; row < rowCount; row++) {
+                toRgba(argb, offset + (firstRow + row) * mWidth, mWidth, current);
+                int length = filterRow(current, previous, isImageTop && row == 0, filtered);
+                checksum.update(filtered, 0, length);
+                inputLength += length;
+
+                deflater.setInput(filtered, 0, length);
+                while (!deflater.needsInput()) {
+                    drain(deflater, Deflater.NO_FLUSH);
+                }
+
+                byte[] swap = previous;
+                previous = current;
+                current  = swap;
+            }
+
+            // Sync flush until deflater has nothing left to give
+            do {
+                drain(deflater, Deflater.SYNC_FLUSH);
+            } while (outputLength == output.length);
+            deflater.end();
+            adler = checksum.getValue();
+            return this;
+        }
+
+        private void drain(Deflater deflater, int flush) {
+            if (outputLength == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            outputLength += deflater.deflate(output, outputLength, output.length - outputLength, flush);
+        }
+    }
+
+    /**
+     * Adler-32 of two concatenated sequences, as zlib adler32_combine()
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        final long base = 65521L;
+        long remainder = length2 % base;
+        long sum1      = adler1 & 0xFFFF;
+        long sum2      = (remainder * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + base - remainder;
+        sum1 = sum1 % base;
+        sum2 = sum2 % base;
+        return sum1 | (sum2 << 16);
+    }
+
+    private static int zlibLevelFlags(int level) {
+        int levelFlag = level <= 1 ? 0 : level <= 5 ? 1 : level == 6 ? 2 : 3;
+        int flags     = levelFlag << 6;
+        return flags + (31 - ((0x78 << 8) + flags) % 31);
+    }
+
+    /**
+     * Convert ARGB ints into RGBA bytes
+     */
+    static void toRgba(int[] argb, int offset, int width, byte[] rgba) {
+        for (int x = 0, i = 0; x < width; x++, i += BYTES_PER_PIXEL) {
+            int pixel = argb[offset + x];
+            rgba[i]     = (byte) (pixel >>> 16);
+            rgba[i + 1] = (byte) (pixel >>> 8);
+            rgba[i + 2] = (byte) pixel;
+            rgba[i + 3] = (byte) (pixel >>> 24);
+        }
+    }
+
+    /**
+     * Filter a row with the filter type giving the smallest sum of absolute values
+     * @param row      raw row bytes
+     * @param previous raw bytes of the row above
+     * @param firstRow there is no row above
+     * @param out      receive filter type byte followed by filtered row
+     * @return filtered length
+     */
+    static int filterRow(byte[] row, byte[] previous, boolean firstRow, byte[] out) {
+        int length     = row.length;
+        int bestFilter = FILTER_NONE;
+        int bestSum    = Integer.MAX_VALUE;
+        int lastType   = firstRow ? FILTER_SUB : FILTER_PAETH;
+        for (int type = FILTER_NONE; type <= lastType; type++) {
+            int sum = 0;
+            for (int i = 0; i < length && sum < bestSum; i++) {
+                int value = (byte) filterByte(type, row, previous, i);
+                sum += value < 0 ? -value : value;
+            }
+            if (sum < bestSum) {
+                bestSum    = sum;
+                bestFilter = type;
+            }
+        }
+
+        out[0] = (byte) bestFilter;
+        for (int i = 0; i < length; i++) {
+            out[i + 1] = (byte) filterByte(bestFilter, row, previous, i);
+        }
+        return length + 1;
+    }
+
+    private static int filterByte(int type, byte[] row, byte[] previous, int i) {
+        int raw   = row[i] & 0xFF;
+        int left  = i >= BYTES_PER_PIXEL ? row[i - BYTES_PER_PIXEL] & 0xFF : 0;
+        int above = previous[i] & 0xFF;
+        switch (type) {
+            case FILTER_SUB:
+                return raw - left;
+            case FILTER_UP:
+                return raw - above;
+            case FILTER_AVERAGE:
+                return raw - ((left + above) >>> 1);
+            case FILTER_PAETH:
+                int upperLeft = i >= BYTES_PER_PIXEL ? previous[i - BYTES_PER_PIXEL] & 0xFF : 0;
+                return raw - paethPredictor(left, above, upperLeft);
+            default:
+                return raw;
+        }
+    }
+
+    private static int paethPredictor(int left, int above, int upperLeft) {
+        int estimate   = left + above - upperLeft;
+        int leftDelta  = Math.abs(estimate - left);
+        int aboveDelta = Math.abs(estimate - above);
+        int upperDelta = Math.abs(estimate - upperLeft);
+        if (leftDelta <= aboveDelta && leftDelta <= upperDelta) {
+            return left;
+        } else if (aboveDelta <= upperDelta) {
+            return above;
+        } else {
+            return upperLeft;
+        }
+    }
+
+    static void writeChunk(OutputStream out, int type, byte[] data, int offset, int length) throws IOException {
+        byte[] header = new byte[8];
+        putInt(header, 0, length);
+        putInt(header, 4, type);
+
+        CRC32 crc = new CRC32();
+        crc.update(header, 4, 4);
+        crc.update(data, offset, length);
+        byte[] trailer = new byte[4];
+        putInt(trailer, 0, (int) crc.getValue());
+
+        out.write(header);
+        out.write(data, offset, length);
+        out.write(trailer);
+    }
+
+    static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset]     = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Slice a byte stream into chunks of a type
+     */
+    static class ChunkOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private final int          mType;
+        private final byte[]       mBuffer;
+        private int                mLength = 0;
+
+        ChunkOutputStream(OutputStream out, int type, int chunkSize) {
+            mOut    = out;
+            mType   = type;
+            mBuffer = new byte[chunkSize];
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            if (mLength == mBuffer.length) {
+                flushChunk();
+            }
+            mBuffer[mLength++] = (byte) oneByte;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (mLength == mBuffer.length) {
+                    flushChunk();
+                }
+                int copied = Math.min(length, mBuffer.length - mLength);
+                System.arraycopy(buffer, offset, mBuffer, mLength, copied);
+                mLength += copied;
+                offset  += copied;
+                length  -= copied;
+            }
+        }
+
+        void flushChunk() throws IOException {
+            if (mLength > 0) {
+                writeChunk(mOut, mType, mBuffer, 0, mLength);
+                mLength = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import android.graphics.Bitmap;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Raw ARGB container
+ * Uncompressed pixels for downstream machine consumption, big-endian:
+ *   int  magic   'ARGB'
+ *   int  version 1
+ *   int  width
+ *   int  height
+ *   int  pixels[width * height], unpremultiplied 0xAARRGGBB in row-major order
+ */
+public class RawArgbEncoder extends ImageEncoder {
+
+    public  static final int MAGIC          = 0x41524742; // 'ARGB'
+    public  static final int VERSION        = 1;
+    private static final int ROWS_PER_BATCH = 64;
+
+    @Override
+    public String getFileExtension() {
+        return ".argb";
+    }
+
+    @Override
+    protected void onEncode(Bitmap bitmap, OutputStream out) throws IOException {
+        int    width  = bitmap.getWidth();
+        int    height = bitmap.getHeight();
+        int[]  rows   = new int[width * Math.min(height, ROWS_PER_BATCH)];
+        byte[] bytes  = new byte[rows.length * 4];
+
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(width);
+        header.writeInt(height);
+        header.flush();
+
+        for (int top = 0; top < height; top += ROWS_PER_BATCH) {
+            int rowCount   = Math.min(ROWS_PER_BATCH, height - top);
+            int pixelCount = width * rowCount;
+            bitmap.getPixels(rows, 0, width, 0, top, width, rowCount);
+            for (int i = 0, j = 0; i < pixelCount; i++, j += 4) {
+                int pixel = rows[i];
+                bytes[j]     = (byte) (pixel >>> 24);
+                bytes[j + 1] = (byte) (pixel >>> 16);
+                bytes[j + 2] = (byte) (pixel >>> 8);
+                bytes[j + 3] = (byte) pixel;
+            }
+            out.write(bytes, 0, pixelCount * 4);
+        }
+    }
+}
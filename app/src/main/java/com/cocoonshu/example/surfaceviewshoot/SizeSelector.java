@@ -0,0 +1,206 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import android.util.Size;
+
+/**
+ * Size selector
+ * Choose the capture size and the preview size among the sizes a camera
+ * supports. Sensor readout, JPEG encoding, decoding and memory all grow
+ * with pixel count, so by default the capture size is the smallest one
+ * which still covers the composite output with a matching aspect ratio,
+ * instead of the largest one. The preview size is always one the camera
+ * can stream to a SurfaceHolder natively.
+ * All sizes are in sensor orientation.
+ */
+public class SizeSelector {
+
+    public  static final int   POLICY_SMALLEST_SUFFICIENT = 0;
+    public  static final int   POLICY_LARGEST             = 1;
+    public  static final float DEFAULT_ASPECT_TOLERANCE   = 0.02f;
+
+    private int   mPolicy            = POLICY_SMALLEST_SUFFICIENT;
+    private float mAspectTolerance   = DEFAULT_ASPECT_TOLERANCE;
+    private Size  mForcedOutputSize  = null;
+    private Size  mForcedPreviewSize = null;
+    private Size  mLastOutputSize    = null;
+    private Size  mLastPreviewSize   = null;
+    private Size  mLastTargetSize    = null;
+    private Size  mLastSurfaceSize   = null;
+    private long  mLargestPixels     = 0;
+
+    /**
+     * @param policy POLICY_SMALLEST_SUFFICIENT or POLICY_LARGEST
+     */
+    public void setPolicy(int policy) {
+        mPolicy = policy;
+    }
+
+    public int getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Relative difference of aspect ratios still taken as the same aspect ratio
+     */
+    public void setAspectTolerance(float tolerance) {
+        mAspectTolerance = Math.max(0f, tolerance);
+    }
+
+    /**
+     * Use size as capture size whenever the camera supports it, null to select by policy
+     */
+    public void setOutputSizeOverride(Size size) {
+        mForcedOutputSize = size;
+    }
+
+    /**
+     * Use size as preview size whenever the camera supports it, null to select by policy
+     */
+    public void setPreviewSizeOverride(Size size) {
+        mForcedPreviewSize = size;
+    }
+
+    /**
+     * Select capture size
+     * @param sizes        sizes the camera can capture
+     * @param targetWidth  width of the composite output, 0 for no requirement
+     * @param targetHeight height of the composite output, 0 for no requirement
+     * @return selected size, or null if sizes is empty
+     */
+    public Size selectOutputSize(Size[] sizes, int targetWidth, int targetHeight) {
+        Size largest = CameraCapabilityIndex.findLargest(sizes);
+        mLastTargetSize = new Size(targetWidth, targetHeight);
+        mLargestPixels  = largest == null ? 0 : (long) largest.getWidth() * largest.getHeight();
+        if (contains(sizes, mForcedOutputSize)) {
+            mLastOutputSize = mForcedOutputSize;
+        } else if (mPolicy == POLICY_LARGEST || targetWidth <= 0 || targetHeight <= 0) {
+            mLastOutputSize = largest;
+        } else {
+            // Smallest covering size of the same aspect ratio, then of any aspect ratio
+            Size selected = findSmallestCovering(sizes, targetWidth, targetHeight, (float) targetWidth / targetHeight);
+            if (selected == null) {
+                selected = findSmallestCovering(sizes, targetWidth, targetHeight, 0f);
+            }
+            mLastOutputSize = selected != null ? selected : largest;
+        }
+        return mLastOutputSize;
+    }
+
+    /**
+     * Select preview size with the aspect ratio of the capture size,
+     * so preview shows what is captured
+     * @param sizes         sizes the camera can stream to a SurfaceHolder
+     * @param outputSize    selected capture size
+     * @param surfaceWidth  width of the preview surface
+     * @param surfaceHeight height of the preview surface
+     * @return selected size, or null if sizes is empty
+     */
+    public Size selectPreviewSize(Size[] sizes, Size outputSize, int surfaceWidth, int surfaceHeight) {
+        mLastSurfaceSize = new Size(surfaceWidth, surfaceHeight);
+        if (contains(sizes, mForcedPreviewSize)) {
+            mLastPreviewSize = mForcedPreviewSize;
+            return mLastPreviewSize;
+        }
+
+        // Preview is never shown larger than the surface, so covering it is enough
+        float aspect   = outputSize == null ? (float) surfaceWidth / surfaceHeight
+                                            : (float) outputSize.getWidth() / outputSize.getHeight();
+        Size  selected = findSmallestCovering(sizes, surfaceWidth, surfaceHeight, aspect);
+        if (selected == null) {
+            selected = findLargest(sizes, aspect);
+        }
+        if (selected == null) {
+            selected = findClosestAspect(sizes, aspect);
+        }
+        mLastPreviewSize = selected;
+        return mLastPreviewSize;
+    }
+
+    public Size getLastOutputSize() {
+        return mLastOutputSize;
+    }
+
+    public Size getLastPreviewSize() {
+        return mLastPreviewSize;
+    }
+
+    /**
+     * Pixels of the last selected capture size relative to the largest one
+     */
+    public float getLastPixelRatio() {
+        if (mLastOutputSize == null || mLargestPixels == 0) {
+            return 0f;
+        }
+        return (float) mLastOutputSize.getWidth() * mLastOutputSize.getHeight() / mLargestPixels;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SizeSelector{policy=%s, target=%s, output=%s (%.0f%% of largest), surface=%s, preview=%s%s}",
+                mPolicy == POLICY_LARGEST ? "largest" : "smallest-sufficient",
+                mLastTargetSize, mLastOutputSize, getLastPixelRatio() * 100,
+                mLastSurfaceSize, mLastPreviewSize,
+                mForcedOutputSize != null || mForcedPreviewSize != null ? ", overridden" : "");
+    }
+
+    /**
+     * @param aspect aspect ratio sizes must have, 0 for any
+     */
+    private Size findSmallestCovering(Size[] sizes, int width, int height, float aspect) {
+        Size smallest = null;
+        long minArea  = Long.MAX_VALUE;
+        for (Size size : sizes) {
+            long area = (long) size.getWidth() * size.getHeight();
+            if (size.getWidth() >= width && size.getHeight() >= height
+                    && (aspect == 0f || isSameAspect(size, aspect))
+                    && area < minArea) {
+                minArea  = area;
+                smallest = size;
+            }
+        }
+        return smallest;
+    }
+
+    private Size findLargest(Size[] sizes, float aspect) {
+        Size largest = null;
+        long maxArea = 0;
+        for (Size size : sizes) {
+            long area = (long) size.getWidth() * size.getHeight();
+            if (isSameAspect(size, aspect) && maxArea < area) {
+                maxArea = area;
+                largest = size;
+            }
+        }
+        return largest;
+    }
+
+    private static Size findClosestAspect(Size[] sizes, float aspect) {
+        Size  closest = null;
+        float minDiff = Float.MAX_VALUE;
+        for (Size size : sizes) {
+            float diff = Math.abs((float) size.getWidth() / size.getHeight() - aspect);
+            if (diff < minDiff) {
+                minDiff = diff;
+                closest = size;
+            }
+        }
+        return closest;
+    }
+
+    private boolean isSameAspect(Size size, float aspect) {
+        float sizeAspect = (float) size.getWidth() / size.getHeight();
+        return Math.abs(sizeAspect - aspect) <= aspect * mAspectTolerance;
+    }
+
+    private static boolean contains(Size[] sizes, Size wanted) {
+        if (wanted == null) {
+            return false;
+        }
+        for (Size size : sizes) {
+            if (size.equals(wanted)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
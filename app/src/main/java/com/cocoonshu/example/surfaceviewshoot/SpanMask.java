@@ -0,0 +1,156 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+/**
+ * Span mask
+ * An AlphaMask compiled into runs of transparent, opaque and partial pixels
+ * per row. Overlay masks are mostly large transparent or opaque regions
+ * with thin edges, so compositing with spans clears or copies whole runs
+ * and only blends pixels of partial spans.
+ */
+public class SpanMask {
+
+    public  static final byte SPAN_TRANSPARENT = 0;
+    public  static final byte SPAN_OPAQUE      = 1;
+    public  static final byte SPAN_PARTIAL     = 2;
+
+    private final AlphaMask mAlphaMask;
+    private final int[]     mRowOffsets;
+    private final int[]     mSpanEnds;
+    private final byte[]    mSpanTypes;
+    private long            mTransparentPixels = 0;
+    private long            mOpaquePixels      = 0;
+    private long            mPartialPixels     = 0;
+
+    private SpanMask(AlphaMask alphaMask, int[] rowOffsets, int[] spanEnds, byte[] spanTypes) {
+        mAlphaMask  = alphaMask;
+        mRowOffsets = rowOffsets;
+        mSpanEnds   = spanEnds;
+        mSpanTypes  = spanTypes;
+    }
+
+    /**
+     * Compile alpha mask into spans, the alpha mask is kept for partial spans
+     */
+    public static SpanMask compile(AlphaMask alphaMask) {
+        int    width      = alphaMask.getWidth();
+        int    height     = alphaMask.getHeight();
+        byte[] alpha      = alphaMask.getAlpha();
+        int[]  rowOffsets = new int[height + 1];
+        int[]  spanEnds   = new int[Math.max(16, height * 2)];
+        byte[] spanTypes  = new byte[spanEnds.length];
+        int    spanCount  = 0;
+
+        for (int y = 0; y < height; y++) {
+            int rowIndex = y * width;
+            rowOffsets[y] = spanCount;
+            for (int x = 0; x < width; ) {
+                byte type = typeOf(alpha[rowIndex + x]);
+                int  end  = x + 1;
+                while (end < width && typeOf(alpha[rowIndex + end]) == type) {
+                    end++;
+                }
+
+                if (spanCount == spanEnds.length) {
+                    spanEnds  = copyOf(spanEnds, spanCount * 2);
+                    spanTypes = copyOf(spanTypes, spanCount * 2);
+                }
+                spanEnds[spanCount]  = end;
+                spanTypes[spanCount] = type;
+                spanCount++;
+                x = end;
+            }
+        }
+        rowOffsets[height] = spanCount;
+
+        SpanMask mask = new SpanMask(alphaMask, rowOffsets, copyOf(spanEnds, spanCount), copyOf(spanTypes, spanCount));
+        for (int y = 0; y < height; y++) {
+            int begin = 0;
+            for (int span = rowOffsets[y]; span < rowOffsets[y + 1]; span++) {
+                long length = mask.mSpanEnds[span] - begin;
+                switch (mask.mSpanTypes[span]) {
+                    case SPAN_TRANSPARENT: mask.mTransparentPixels += length; break;
+                    case SPAN_OPAQUE:      mask.mOpaquePixels      += length; break;
+                    default:               mask.mPartialPixels     += length; break;
+                }
+                begin = mask.mSpanEnds[span];
+            }
+        }
+        return mask;
+    }
+
+    private static byte typeOf(byte alpha) {
+        if (alpha == 0) {
+            return SPAN_TRANSPARENT;
+        } else if (alpha == (byte) 0xFF) {
+            return SPAN_OPAQUE;
+        } else {
+            return SPAN_PARTIAL;
+        }
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(length, array.length));
+        return copy;
+    }
+
+    private static byte[] copyOf(byte[] array, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(length, array.length));
+        return copy;
+    }
+
+    public int getWidth() {
+        return mAlphaMask.getWidth();
+    }
+
+    public int getHeight() {
+        return mAlphaMask.getHeight();
+    }
+
+    public AlphaMask getAlphaMask() {
+        return mAlphaMask;
+    }
+
+    public int getSpanCount() {
+        return mSpanEnds.length;
+    }
+
+    public long getTransparentPixels() {
+        return mTransparentPixels;
+    }
+
+    public long getOpaquePixels() {
+        return mOpaquePixels;
+    }
+
+    public long getPartialPixels() {
+        return mPartialPixels;
+    }
+
+    /**
+     * Index of the first span of row y, spans of row y end at getRowOffset(y + 1)
+     */
+    int getRowOffset(int y) {
+        return mRowOffsets[y];
+    }
+
+    /**
+     * Exclusive end column of span
+     */
+    int getSpanEnd(int span) {
+        return mSpanEnds[span];
+    }
+
+    byte getSpanType(int span) {
+        return mSpanTypes[span];
+    }
+
+    @Override
+    public String toString() {
+        double pixels = (double) getWidth() * getHeight();
+        return String.format("SpanMask{%dx%d, spans=%d, transparent=%.1f%%, opaque=%.1f%%, partial=%.1f%%}",
+                getWidth(), getHeight(), getSpanCount(),
+                mTransparentPixels * 100 / pixels, mOpaquePixels * 100 / pixels, mPartialPixels * 100 / pixels);
+    }
+}
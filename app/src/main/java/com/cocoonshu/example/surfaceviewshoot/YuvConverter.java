@@ -0,0 +1,228 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * YUV converter
+ * Convert YUV_420_888 planes to ARGB straight into a caller's pixel buffer,
+ * e.g. the source buffer of MaskCompositor, without going through JPEG.
+ * Planes are read with their own row and pixel strides, so planar (I420),
+ * semi-planar (NV12/NV21) and padded layouts of camera images all work.
+ * Rows are split into bands and converted on a worker pool.
+ *
+ * Colors are converted with full range BT.601 (JFIF) coefficients in
+ * 16.16 fixed-point, the color space camera YUV and JPEG output share.
+ */
+public class YuvConverter {
+
+    private static final String NAME_CONVERTER_WORKER = "YuvConverterWorker";
+    private static final int    MIN_BAND_HEIGHT       = 16;
+    private static final int    FIXED_ONE_HALF        = 1 << 15;
+    private static final int    COEFF_R_V             = 91881;  // 1.402
+    private static final int    COEFF_G_U             = 22554;  // 0.344136
+    private static final int    COEFF_G_V             = 46802;  // 0.714136
+    private static final int    COEFF_B_U             = 116130; // 1.772
+
+    private ExecutorService  mWorkers         = null;
+    private int              mThreadCount     = 1;
+    private final AtomicLong mConvertCount    = new AtomicLong();
+    private final AtomicLong mConvertTimeNs   = new AtomicLong();
+
+    /**
+     * Where the planes of a YUV_420_888 image are in one byte array.
+     * Y pixel stride is always 1, U and V share row and pixel strides.
+     */
+    public static final class Layout {
+        public final int yOffset;
+        public final int yRowStride;
+        public final int uOffset;
+        public final int vOffset;
+        public final int uvRowStride;
+        public final int uvPixelStride;
+
+        public Layout(int yOffset, int yRowStride, int uOffset, int vOffset, int uvRowStride, int uvPixelStride) {
+            this.yOffset       = yOffset;
+            this.yRowStride    = yRowStride;
+            this.uOffset       = uOffset;
+            this.vOffset       = vOffset;
+            this.uvRowStride   = uvRowStride;
+            this.uvPixelStride = uvPixelStride;
+        }
+
+        /**
+         * Packed I420 as Frame.FORMAT_YUV_420_888 data: Y, then U, then V
+         * with no row padding
+         */
+        public static Layout i420(int width, int height) {
+            int chromaWidth  = (width + 1) / 2;
+            int chromaHeight = (height + 1) / 2;
+            int uOffset      = width * height;
+            return new Layout(0, width, uOffset, uOffset + chromaWidth * chromaHeight, chromaWidth, 1);
+        }
+
+        /**
+         * Bytes the layout spans for a width x height image
+         */
+        public int getByteCount(int width, int height) {
+            int chromaWidth  = (width + 1) / 2;
+            int chromaHeight = (height + 1) / 2;
+            int chromaBytes  = (chromaHeight - 1) * uvRowStride + (chromaWidth - 1) * uvPixelStride + 1;
+            return Math.max(yOffset + (height - 1) * yRowStride + width,
+                            Math.max(uOffset, vOffset) + chromaBytes);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Layout{y=%d/%d, u=%d, v=%d, uv=%d/%d}",
+                    yOffset, yRowStride, uOffset, vOffset, uvRowStride, uvPixelStride);
+        }
+    }
+
+    public YuvConverter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public YuvConverter(int threadCount) {
+        mThreadCount = Math.max(1, threadCount);
+        if (mThreadCount > 1) {
+            mWorkers = Executors.newFixedThreadPool(mThreadCount, new ThreadFactory() {
+                private final AtomicInteger mIndex = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, NAME_CONVERTER_WORKER + "-" + mIndex.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * Convert a YUV image to opaque ARGB
+     * @param yuv        planes of the image
+     * @param layout     where the planes are in yuv
+     * @param width
+     * @param height
+     * @param argb       destination pixels
+     * @param argbOffset index of the first destination pixel
+     * @param argbStride destination pixels per row
+     */
+    public void convert(final byte[] yuv, final Layout layout, final int width, final int height,
+                        final int[] argb, final int argbOffset, final int argbStride) {
+        if (yuv.length < layout.getByteCount(width, height)) {
+            throw new IllegalArgumentException("Bad yuv buffer for " + width + "x" + height + " " + layout);
+        }
+        if (argbOffset < 0 || argbStride < width || argb.length < argbOffset + (long) (height - 1) * argbStride + width) {
+            throw new IllegalArgumentException("Bad argb buffer for " + width + "x" + height);
+        }
+
+        long startTime = System.nanoTime();
+        int  bands     = Math.min(mThreadCount, Math.max(1, height / MIN_BAND_HEIGHT));
+        if (bands <= 1 || mWorkers == null) {
+            convertRows(yuv, layout, width, argb, argbOffset, argbStride, 0, height);
+        } else {
+            // Bands start on even rows, so no chroma row is shared by two bands
+            List<Callable<Void>> jobs       = new ArrayList<Callable<Void>>(bands);
+            int                  bandHeight = ((height + bands - 1) / bands + 1) & ~1;
+            for (int top = 0; top < height; top += bandHeight) {
+                final int bandTop    = top;
+                final int bandBottom = Math.min(height, top + bandHeight);
+                jobs.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        convertRows(yuv, layout, width, argb, argbOffset, argbStride, bandTop, bandBottom);
+                        return null;
+                    }
+                });
+            }
+
+            try {
+                for (Future<Void> result : mWorkers.invokeAll(jobs)) {
+                    result.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Converting interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Converting failed", e.getCause());
+            }
+        }
+        mConvertTimeNs.addAndGet(System.nanoTime() - startTime);
+        mConvertCount.incrementAndGet();
+    }
+
+    /**
+     * Convert packed I420 data to opaque ARGB, see Frame.FORMAT_YUV_420_888
+     */
+    public void convertI420(byte[] yuv, int width, int height, int[] argb, int argbOffset, int argbStride) {
+        convert(yuv, Layout.i420(width, height), width, height, argb, argbOffset, argbStride);
+    }
+
+    public long getConvertCount() {
+        return mConvertCount.get();
+    }
+
+    public double getAverageConvertMs() {
+        long count = mConvertCount.get();
+        return count == 0 ? 0.0 : mConvertTimeNs.get() / 1e6 / count;
+    }
+
+    public void release() {
+        if (mWorkers != null) {
+            mWorkers.shutdown();
+            mWorkers = null;
+        }
+    }
+
+    private static void convertRows(byte[] yuv, Layout layout, int width,
+                                    int[] argb, int argbOffset, int argbStride,
+                                    int rowBegin, int rowEnd) {
+        int uvPixelStride = layout.uvPixelStride;
+        for (int y = rowBegin; y < rowEnd; y++) {
+            int yIndex   = layout.yOffset + y * layout.yRowStride;
+            int uvRow    = (y >> 1) * layout.uvRowStride;
+            int uIndex   = layout.uOffset + uvRow;
+            int vIndex   = layout.vOffset + uvRow;
+            int dstIndex = argbOffset + y * argbStride;
+            for (int x = 0; x < width; x += 2) {
+                // Chroma terms are shared by the two pixels of a pair
+                int u     = (yuv[uIndex] & 0xFF) - 128;
+                int v     = (yuv[vIndex] & 0xFF) - 128;
+                int red   = COEFF_R_V * v + FIXED_ONE_HALF;
+                int green = -COEFF_G_U * u - COEFF_G_V * v + FIXED_ONE_HALF;
+                int blue  = COEFF_B_U * u + FIXED_ONE_HALF;
+                uIndex += uvPixelStride;
+                vIndex += uvPixelStride;
+
+                int luma = (yuv[yIndex++] & 0xFF) << 16;
+                argb[dstIndex++] = toArgb(luma + red, luma + green, luma + blue);
+                if (x + 1 < width) {
+                    luma = (yuv[yIndex++] & 0xFF) << 16;
+                    argb[dstIndex++] = toArgb(luma + red, luma + green, luma + blue);
+                }
+            }
+        }
+    }
+
+    private static int toArgb(int red, int green, int blue) {
+        return 0xFF000000 | clamp(red >> 16) << 16 | clamp(green >> 16) << 8 | clamp(blue >> 16);
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+}
@@ -0,0 +1,170 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Camera lifecycle test
+ * CameraLifecycle driven against FakeCamera: concurrent start/stop storms
+ * with disconnections, opening failures and keep-alive, then the parked
+ * start and warm resume paths one step at a time.
+ */
+public class CameraLifecycleTest {
+
+    private static final int STORM_THREADS   = 8;
+    private static final int STORM_ATTEMPTS  = 200000; // per thread
+    private static final int DISCONNECT_RATE = 1000;   // one in
+
+    private FakeCamera              mCamera    = null;
+    private CameraLifecycle<String> mLifecycle = null;
+
+    @Before
+    public void setUp() {
+        mCamera    = new FakeCamera();
+        mLifecycle = new CameraLifecycle<String>(mCamera);
+        mCamera.attach(mLifecycle);
+    }
+
+    @After
+    public void tearDown() {
+        mCamera.shutdown();
+    }
+
+    @Test
+    public void stormKeepsOneCameraAndSettles() throws Exception {
+        final AtomicReference<Throwable> error   = new AtomicReference<Throwable>();
+        Thread[]                         callers = new Thread[STORM_THREADS];
+        for (int i = 0; i < STORM_THREADS; i++) {
+            final String target = "surface-" + i;
+            final Random random = new Random(i);
+            callers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int attempt = 0; attempt < STORM_ATTEMPTS; attempt++) {
+                            if (random.nextInt(DISCONNECT_RATE) == 0) {
+                                mCamera.disconnect();
+                            } else if (random.nextBoolean()) {
+                                mLifecycle.start(target);
+                            } else {
+                                mLifecycle.stop();
+                            }
+                            int state = mLifecycle.getState();
+                            if (state < CameraHelper.STATE_OPENING || state > CameraHelper.STATE_WARM) {
+                                throw new IllegalStateException("Bad state " + state);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread caller : callers) {
+            caller.start();
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        assertNull(String.valueOf(error.get()), error.get());
+
+        // Whatever the storm left, the camera settles and still works
+        mCamera.settle(false);
+        mCamera.drain();
+        mLifecycle.start("final");
+        mCamera.drain();
+        assertEquals(CameraHelper.STATE_OPEN, mLifecycle.getState());
+        assertEquals(1, mCamera.getDevices());
+        assertEquals("final", mCamera.getTarget());
+
+        mLifecycle.shutdown();
+        mCamera.drain();
+        assertEquals(CameraHelper.STATE_CLOSED, mLifecycle.getState());
+        assertEquals(0, mCamera.getDevices());
+        assertEquals(0, mCamera.getOpensInFlight());
+        assertNull(mCamera.getViolation(), mCamera.getViolation());
+        assertTrue(mCamera.getOpenCount() > 0);
+    }
+
+    @Test
+    public void parkedStartRestartsOnUiThread() throws Exception {
+        mCamera.settle(false);
+        mLifecycle.start("first");
+        mCamera.drain();
+
+        CountDownLatch blocked = mCamera.blockCameraThread();
+        mLifecycle.stop();
+        assertEquals(CameraHelper.STATE_CLOSING, mLifecycle.getState());
+        assertEquals(CameraHelper.ERR_NO_ERROR, mLifecycle.start("second"));
+        assertEquals(CameraHelper.STATE_CLOSING, mLifecycle.getState());
+        blocked.countDown();
+        mCamera.drain();
+
+        assertEquals(1, mCamera.getRestartCount());
+        assertEquals(CameraHelper.STATE_OPEN, mLifecycle.getState());
+        assertEquals(1, mCamera.getDevices());
+        assertEquals("second", mCamera.getTarget());
+        assertNull(mCamera.getViolation(), mCamera.getViolation());
+    }
+
+    @Test
+    public void stopCancelsParkedStart() throws Exception {
+        mCamera.settle(false);
+        mLifecycle.start("first");
+        mCamera.drain();
+
+        CountDownLatch blocked = mCamera.blockCameraThread();
+        mLifecycle.stop();
+        mLifecycle.start("second");
+        mLifecycle.stop();
+        blocked.countDown();
+        mCamera.drain();
+
+        assertEquals(0, mCamera.getRestartCount());
+        assertEquals(CameraHelper.STATE_CLOSED, mLifecycle.getState());
+        assertEquals(0, mCamera.getDevices());
+        assertNull(mCamera.getViolation(), mCamera.getViolation());
+    }
+
+    @Test
+    public void warmCameraResumesWithoutReopening() throws Exception {
+        mCamera.settle(true);
+        mLifecycle.start("first");
+        mCamera.drain();
+
+        CountDownLatch blocked = mCamera.blockCameraThread();
+        mLifecycle.stop();
+        assertEquals(CameraHelper.STATE_WARM, mLifecycle.getState());
+        mLifecycle.start("second");
+        assertEquals(CameraHelper.STATE_OPEN, mLifecycle.getState());
+        blocked.countDown();
+        mCamera.drain();
+
+        assertEquals(CameraHelper.STATE_OPEN, mLifecycle.getState());
+        assertEquals(1, mCamera.getOpenCount());
+        assertEquals(1, mCamera.getDevices());
+        assertNull(mCamera.getViolation(), mCamera.getViolation());
+    }
+
+    @Test
+    public void keepAliveEndCloses() throws Exception {
+        mCamera.settle(true);
+        mLifecycle.start("first");
+        mCamera.drain();
+        mLifecycle.stop();
+        mCamera.drain();
+
+        assertEquals(CameraHelper.STATE_CLOSED, mLifecycle.getState());
+        assertEquals(0, mCamera.getDevices());
+        assertNull(mCamera.getViolation(), mCamera.getViolation());
+    }
+}
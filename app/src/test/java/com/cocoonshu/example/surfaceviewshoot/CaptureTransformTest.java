@@ -0,0 +1,151 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Capture transform test
+ * Every sensor orientation, display rotation and lens facing is composited
+ * through the dense, span and banded paths of MaskCompositor, at 1:1 scale,
+ * and compared with pixels moved one by one along getMatrix().
+ */
+public class CaptureTransformTest {
+
+    private static final int[] ORIENTATIONS = {0, 90, 180, 270};
+    private static final int[] FACINGS      = {CaptureTransform.LENS_FACING_FRONT, CaptureTransform.LENS_FACING_BACK};
+    private static final int[] SRC_SIZES    = {7, 5, 40, 34}; // width, height pairs, the large one spans worker bands
+    private static final int   BAND_ROWS    = 3;
+
+    @Test
+    public void createKnownOrientations() {
+        // Typical back camera mounted landscape in a portrait phone
+        assertTransform(90, false, CaptureTransform.create(90, 0, CaptureTransform.LENS_FACING_BACK));
+        assertTransform(0, false, CaptureTransform.create(90, 90, CaptureTransform.LENS_FACING_BACK));
+        assertTransform(180, false, CaptureTransform.create(90, 270, CaptureTransform.LENS_FACING_BACK));
+        assertTransform(180, false, CaptureTransform.create(270, 90, CaptureTransform.LENS_FACING_BACK));
+
+        // Front camera turns the other way, then mirrors like its preview
+        assertTransform(270, true, CaptureTransform.create(270, 0, CaptureTransform.LENS_FACING_FRONT));
+        assertTransform(0, true, CaptureTransform.create(270, 90, CaptureTransform.LENS_FACING_FRONT));
+        assertTransform(180, true, CaptureTransform.create(90, 90, CaptureTransform.LENS_FACING_FRONT));
+    }
+
+    @Test
+    public void compositePathsMatchMatrix() {
+        MaskCompositor compositor = new MaskCompositor(4);
+        try {
+            for (int sensor : ORIENTATIONS) {
+                for (int display : ORIENTATIONS) {
+                    for (int facing : FACINGS) {
+                        CaptureTransform transform = CaptureTransform.create(sensor, display, facing);
+                        for (int i = 0; i < SRC_SIZES.length; i += 2) {
+                            checkPaths(compositor, transform, SRC_SIZES[i], SRC_SIZES[i + 1],
+                                    "sensor " + sensor + ", display " + display + ", facing " + facing);
+                        }
+                    }
+                }
+            }
+        } finally {
+            compositor.release();
+        }
+    }
+
+    private static void checkPaths(MaskCompositor compositor, CaptureTransform transform,
+                                   int srcWidth, int srcHeight, String label) {
+        int       dstWidth  = transform.getTransformedWidth(srcWidth, srcHeight);
+        int       dstHeight = transform.getTransformedHeight(srcWidth, srcHeight);
+        int[]     src       = createSource(srcWidth, srcHeight);
+        AlphaMask alphaMask = createMask(dstWidth, dstHeight);
+        SpanMask  spanMask  = SpanMask.compile(alphaMask);
+        int[]     expected  = moveAlongMatrix(src, srcWidth, srcHeight, alphaMask, transform);
+        label += ", " + transform + ", " + srcWidth + "x" + srcHeight;
+
+        int[] dense = new int[dstWidth * dstHeight];
+        compositor.composite(src, srcWidth, srcHeight, alphaMask, dense, dstWidth, dstHeight, transform);
+        assertArrayEquals("dense, " + label, expected, dense);
+
+        int[] spans = new int[dstWidth * dstHeight];
+        compositor.composite(src, srcWidth, srcHeight, spanMask, spans, dstWidth, dstHeight, transform);
+        assertArrayEquals("span, " + label, expected, spans);
+
+        int[] banded = new int[dstWidth * dstHeight];
+        for (int rowBegin = 0; rowBegin < dstHeight; rowBegin += BAND_ROWS) {
+            int   rowEnd     = Math.min(dstHeight, rowBegin + BAND_ROWS);
+            int[] bounds     = MaskCompositor.getSourceBounds(
+                    srcWidth, srcHeight, dstWidth, dstHeight, transform.getRotation(), rowBegin, rowEnd);
+            int   bandWidth  = bounds[2] - bounds[0];
+            int   bandHeight = bounds[3] - bounds[1];
+            int[] srcBand    = new int[bandWidth * bandHeight];
+            for (int y = 0; y < bandHeight; y++) {
+                System.arraycopy(src, (bounds[1] + y) * srcWidth + bounds[0], srcBand, y * bandWidth, bandWidth);
+            }
+            int[] dstBand = new int[dstWidth * (rowEnd - rowBegin)];
+            compositor.compositeBand(srcBand, bounds[0], bounds[1], bandWidth, bandHeight,
+                    srcWidth, srcHeight, spanMask, dstBand, dstWidth, dstHeight, rowBegin, rowEnd, transform);
+            System.arraycopy(dstBand, 0, banded, rowBegin * dstWidth, dstBand.length);
+        }
+        assertArrayEquals("banded, " + label, expected, banded);
+    }
+
+    /**
+     * Expected output: every source pixel center moved by getMatrix(), then masked
+     */
+    private static int[] moveAlongMatrix(int[] src, int srcWidth, int srcHeight,
+                                         AlphaMask mask, CaptureTransform transform) {
+        int       dstWidth = mask.getWidth();
+        float[]   matrix   = transform.getMatrix(srcWidth, srcHeight);
+        int[]     moved    = new int[mask.getWidth() * mask.getHeight()];
+        boolean[] hit      = new boolean[moved.length];
+        for (int y = 0; y < srcHeight; y++) {
+            for (int x = 0; x < srcWidth; x++) {
+                int dstX = Math.round(matrix[0] * x + matrix[1] * y + matrix[2]);
+                int dstY = Math.round(matrix[3] * x + matrix[4] * y + matrix[5]);
+                assertTrue(0 <= dstX && dstX < dstWidth && 0 <= dstY && dstY < mask.getHeight());
+                assertFalse("Two source pixels land on " + dstX + ", " + dstY, hit[dstY * dstWidth + dstX]);
+                hit[dstY * dstWidth + dstX]   = true;
+                moved[dstY * dstWidth + dstX] = src[y * srcWidth + x];
+            }
+        }
+
+        for (int i = 0; i < moved.length; i++) {
+            int alpha = mask.getAlpha()[i] & 0xFF;
+            moved[i] = alpha == 0 ? 0 : alpha == 0xFF ? moved[i] : MaskCompositor.multiplyAlpha(moved[i], alpha);
+        }
+        return moved;
+    }
+
+    /**
+     * Opaque pixels which are all different, so any misplaced one shows
+     */
+    private static int[] createSource(int width, int height) {
+        int[] src = new int[width * height];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = 0xFF000000 | ((i * 0x010203) & 0x00FFFFFF);
+        }
+        return src;
+    }
+
+    /**
+     * Transparent, opaque and partial runs shifting from row to row
+     */
+    private static AlphaMask createMask(int width, int height) {
+        AlphaMask mask  = new AlphaMask(width, height);
+        byte[]    alpha = mask.getAlpha();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int run = ((x + y) / 3) % 3;
+                alpha[y * width + x] = (byte) (run == 0 ? 0x00 : run == 1 ? 0xFF : 0x80 + x);
+            }
+        }
+        return mask;
+    }
+
+    private static void assertTransform(int rotation, boolean mirrored, CaptureTransform transform) {
+        assertEquals(rotation, transform.getRotation());
+        assertEquals(mirrored, transform.isMirrored());
+    }
+}
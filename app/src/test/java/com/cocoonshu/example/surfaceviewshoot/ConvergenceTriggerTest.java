@@ -0,0 +1,193 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import org.junit.Test;
+
+import static com.cocoonshu.example.surfaceviewshoot.ConvergenceTrigger.ACTION_CAPTURE;
+import static com.cocoonshu.example.surfaceviewshoot.ConvergenceTrigger.ACTION_NONE;
+import static com.cocoonshu.example.surfaceviewshoot.ConvergenceTrigger.ACTION_START_PRECAPTURE;
+import static com.cocoonshu.example.surfaceviewshoot.ConvergenceTrigger.AE_STATE_CONVERGED;
+import static com.cocoonshu.example.surfaceviewshoot.ConvergenceTrigger.AE_STATE_FLASH_REQUIRED;
+import static com.cocoonshu.example.surfaceviewshoot.ConvergenceTrigger.AE_STATE_PRECAPTURE;
+import static com.cocoonshu.example.surfaceviewshoot.ConvergenceTrigger.AE_STATE_SEARCHING;
+import static com.cocoonshu.example.surfaceviewshoot.ConvergenceTrigger.AF_STATE_ACTIVE_SCAN;
+import static com.cocoonshu.example.surfaceviewshoot.ConvergenceTrigger.AF_STATE_FOCUSED_LOCKED;
+import static com.cocoonshu.example.surfaceviewshoot.ConvergenceTrigger.AF_STATE_INACTIVE;
+import static com.cocoonshu.example.surfaceviewshoot.ConvergenceTrigger.AF_STATE_NOT_FOCUSED_LOCKED;
+import static com.cocoonshu.example.surfaceviewshoot.ConvergenceTrigger.AF_STATE_PASSIVE_FOCUSED;
+import static com.cocoonshu.example.surfaceviewshoot.ConvergenceTrigger.AF_STATE_PASSIVE_SCAN;
+import static com.cocoonshu.example.surfaceviewshoot.ConvergenceTrigger.AF_STATE_PASSIVE_UNFOCUSED;
+import static com.cocoonshu.example.surfaceviewshoot.ConvergenceTrigger.REASON_CONVERGED;
+import static com.cocoonshu.example.surfaceviewshoot.ConvergenceTrigger.REASON_PRECAPTURED;
+import static com.cocoonshu.example.surfaceviewshoot.ConvergenceTrigger.REASON_TIMED_OUT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Convergence trigger test
+ * Replays sequences of preview result 3A states, one result per frame
+ * of a 30fps preview, and checks the action taken on every result and
+ * why the capture fired.
+ */
+public class ConvergenceTriggerTest {
+
+    private static final long FRAME_NS   = 33 * 1000000L;
+    private static final int  MAX_FRAMES = 4;
+    private static final long TIMEOUT_NS = 500 * 1000000L;
+
+    /**
+     * Preview result of a recorded sequence, states as CaptureResult reports them
+     */
+    private static class Result {
+        final Integer afState;
+        final Integer aeState;
+        final int     expectedAction;
+
+        Result(Integer afState, Integer aeState, int expectedAction) {
+            this.afState        = afState;
+            this.aeState        = aeState;
+            this.expectedAction = expectedAction;
+        }
+    }
+
+    private static Result result(Integer afState, Integer aeState, int expectedAction) {
+        return new Result(afState, aeState, expectedAction);
+    }
+
+    /**
+     * Arm at time 0 and feed results a frame apart
+     */
+    private static void replay(ConvergenceTrigger trigger, Result... results) {
+        assertTrue(trigger.arm(0));
+        long nowNs = 0;
+        for (int i = 0; i < results.length; i++) {
+            nowNs += FRAME_NS;
+            assertEquals("action of result " + i, results[i].expectedAction,
+                    trigger.onResult(results[i].afState, results[i].aeState, nowNs));
+        }
+    }
+
+    @Test
+    public void firesOnFirstResultWhenConverged() {
+        ConvergenceTrigger trigger = new ConvergenceTrigger(MAX_FRAMES, TIMEOUT_NS);
+        replay(trigger, result(AF_STATE_PASSIVE_FOCUSED, AE_STATE_CONVERGED, ACTION_CAPTURE));
+
+        assertFalse(trigger.isArmed());
+        assertEquals(REASON_CONVERGED, trigger.getLastReason());
+        assertEquals(FRAME_NS, trigger.getLastWaitNs());
+        assertEquals(1, trigger.getCount(REASON_CONVERGED));
+    }
+
+    @Test
+    public void unreportedStatesCountAsConverged() {
+        ConvergenceTrigger trigger = new ConvergenceTrigger(MAX_FRAMES, TIMEOUT_NS);
+        replay(trigger, result(null, null, ACTION_CAPTURE));
+        assertEquals(REASON_CONVERGED, trigger.getLastReason());
+    }
+
+    @Test
+    public void precaptureOnceThenFireWhenSettled() {
+        ConvergenceTrigger trigger = new ConvergenceTrigger(MAX_FRAMES, TIMEOUT_NS);
+        replay(trigger,
+                result(AF_STATE_PASSIVE_SCAN, AE_STATE_SEARCHING, ACTION_START_PRECAPTURE),
+                result(AF_STATE_ACTIVE_SCAN, AE_STATE_PRECAPTURE, ACTION_NONE),
+                result(AF_STATE_ACTIVE_SCAN, AE_STATE_PRECAPTURE, ACTION_NONE),
+                result(AF_STATE_FOCUSED_LOCKED, AE_STATE_FLASH_REQUIRED, ACTION_CAPTURE));
+
+        assertFalse(trigger.isArmed());
+        assertEquals(REASON_PRECAPTURED, trigger.getLastReason());
+        assertEquals(4 * FRAME_NS, trigger.getLastWaitNs());
+        assertEquals(1, trigger.getCount(REASON_PRECAPTURED));
+    }
+
+    @Test
+    public void precaptureRunsOutOfFrames() {
+        ConvergenceTrigger trigger = new ConvergenceTrigger(MAX_FRAMES, TIMEOUT_NS);
+        Result searching = result(AF_STATE_PASSIVE_SCAN, AE_STATE_SEARCHING, ACTION_NONE);
+        replay(trigger,
+                result(AF_STATE_PASSIVE_SCAN, AE_STATE_SEARCHING, ACTION_START_PRECAPTURE),
+                searching, searching, searching,
+                result(AF_STATE_PASSIVE_SCAN, AE_STATE_SEARCHING, ACTION_CAPTURE));
+
+        assertEquals(REASON_TIMED_OUT, trigger.getLastReason());
+        assertEquals(1, trigger.getCount(REASON_TIMED_OUT));
+    }
+
+    @Test
+    public void precaptureRunsOutOfTime() {
+        ConvergenceTrigger trigger = new ConvergenceTrigger(100, TIMEOUT_NS);
+        assertTrue(trigger.arm(0));
+        assertEquals(ACTION_START_PRECAPTURE, trigger.onResult(AF_STATE_ACTIVE_SCAN, AE_STATE_PRECAPTURE, FRAME_NS));
+        assertEquals(ACTION_NONE, trigger.onResult(AF_STATE_ACTIVE_SCAN, AE_STATE_PRECAPTURE, TIMEOUT_NS - 1));
+        assertEquals(ACTION_CAPTURE, trigger.onResult(AF_STATE_ACTIVE_SCAN, AE_STATE_PRECAPTURE, TIMEOUT_NS));
+
+        assertEquals(REASON_TIMED_OUT, trigger.getLastReason());
+        assertEquals(TIMEOUT_NS, trigger.getLastWaitNs());
+    }
+
+    @Test
+    public void stalledPreviewFiresOnTimeout() {
+        ConvergenceTrigger trigger = new ConvergenceTrigger(MAX_FRAMES, TIMEOUT_NS);
+        replay(trigger, result(AF_STATE_PASSIVE_SCAN, AE_STATE_SEARCHING, ACTION_START_PRECAPTURE));
+
+        // No more results, only the timeout runnable
+        assertEquals(ACTION_NONE, trigger.onTimeout(TIMEOUT_NS - 1));
+        assertTrue(trigger.isArmed());
+        assertEquals(ACTION_CAPTURE, trigger.onTimeout(TIMEOUT_NS));
+        assertFalse(trigger.isArmed());
+        assertEquals(REASON_TIMED_OUT, trigger.getLastReason());
+
+        // A timeout late after the capture fired does nothing
+        assertEquals(ACTION_NONE, trigger.onTimeout(2 * TIMEOUT_NS));
+        assertEquals(1, trigger.getCount(REASON_TIMED_OUT));
+    }
+
+    @Test
+    public void failedFocusFiresWithoutWaiting() {
+        // AF finished its scan without focus, waiting can't make the shot sharper
+        ConvergenceTrigger trigger = new ConvergenceTrigger(MAX_FRAMES, TIMEOUT_NS);
+        replay(trigger, result(AF_STATE_NOT_FOCUSED_LOCKED, AE_STATE_CONVERGED, ACTION_CAPTURE));
+        assertEquals(REASON_CONVERGED, trigger.getLastReason());
+
+        // Failing during precapture ends the precapture as well
+        replay(trigger,
+                result(AF_STATE_ACTIVE_SCAN, AE_STATE_CONVERGED, ACTION_START_PRECAPTURE),
+                result(AF_STATE_ACTIVE_SCAN, AE_STATE_CONVERGED, ACTION_NONE),
+                result(AF_STATE_NOT_FOCUSED_LOCKED, AE_STATE_CONVERGED, ACTION_CAPTURE));
+        assertEquals(REASON_PRECAPTURED, trigger.getLastReason());
+        assertEquals(0, trigger.getCount(REASON_TIMED_OUT));
+    }
+
+    @Test
+    public void fixedFocusWaitsForAeOnly() {
+        ConvergenceTrigger trigger = new ConvergenceTrigger(MAX_FRAMES, TIMEOUT_NS);
+        replay(trigger,
+                result(AF_STATE_INACTIVE, AE_STATE_SEARCHING, ACTION_START_PRECAPTURE),
+                result(AF_STATE_INACTIVE, AE_STATE_PRECAPTURE, ACTION_NONE),
+                result(AF_STATE_INACTIVE, AE_STATE_CONVERGED, ACTION_CAPTURE));
+        assertEquals(REASON_PRECAPTURED, trigger.getLastReason());
+    }
+
+    @Test
+    public void afReadiness() {
+        assertTrue(ConvergenceTrigger.isAfReady(null));
+        assertTrue(ConvergenceTrigger.isAfReady(AF_STATE_INACTIVE));
+        assertTrue(ConvergenceTrigger.isAfReady(AF_STATE_PASSIVE_FOCUSED));
+        assertTrue(ConvergenceTrigger.isAfReady(AF_STATE_FOCUSED_LOCKED));
+        assertTrue(ConvergenceTrigger.isAfReady(AF_STATE_NOT_FOCUSED_LOCKED));
+        assertFalse(ConvergenceTrigger.isAfReady(AF_STATE_PASSIVE_SCAN));
+        assertFalse(ConvergenceTrigger.isAfReady(AF_STATE_ACTIVE_SCAN));
+        assertFalse(ConvergenceTrigger.isAfReady(AF_STATE_PASSIVE_UNFOCUSED));
+    }
+
+    @Test
+    public void armOnlyOnce() {
+        ConvergenceTrigger trigger = new ConvergenceTrigger(MAX_FRAMES, TIMEOUT_NS);
+        assertTrue(trigger.arm(0));
+        assertFalse(trigger.arm(FRAME_NS));
+        trigger.disarm();
+        assertEquals(ACTION_NONE, trigger.onResult(AF_STATE_PASSIVE_FOCUSED, AE_STATE_CONVERGED, 2 * FRAME_NS));
+        assertEquals(ACTION_NONE, trigger.onTimeout(TIMEOUT_NS));
+        assertTrue(trigger.arm(3 * FRAME_NS));
+    }
+}
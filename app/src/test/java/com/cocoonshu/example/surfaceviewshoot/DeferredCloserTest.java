@@ -0,0 +1,191 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Deferred closer test
+ * A fake reader whose close action wipes the frame buffer, the way closing
+ * an ImageReader frees the buffers of its images, stands in for
+ * Camera2FrameSource.
+ */
+public class DeferredCloserTest {
+
+    private static final int MAX_RETAINED = 2;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Reader of one frame, retained through the closer like ImageOwner does
+     */
+    private static class FakeReader {
+        final ByteBuffer     buffer     = ByteBuffer.allocateDirect(64 * 1024);
+        final AtomicInteger  closeCount = new AtomicInteger();
+        final DeferredCloser closer     = new DeferredCloser(MAX_RETAINED, new Runnable() {
+            @Override
+            public void run() {
+                closeCount.incrementAndGet();
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    buffer.put((byte) 0);
+                }
+            }
+        });
+
+        FakeReader() {
+            for (int i = 0; i < buffer.capacity(); i++) {
+                buffer.put(i, (byte) (i * 31 + 7));
+            }
+        }
+
+        Frame acquireFrame() {
+            Frame frame = new Frame(Frame.FORMAT_JPEG, buffer.duplicate(), 320, 240, 0, null);
+            frame.setOwner(new Frame.Owner() {
+                @Override
+                public boolean retain() {
+                    return closer.acquire();
+                }
+
+                @Override
+                public void release() {
+                    closer.release();
+                }
+            });
+            return frame;
+        }
+
+        byte[] snapshot() {
+            byte[]     content = new byte[buffer.capacity()];
+            ByteBuffer data    = buffer.duplicate();
+            data.clear();
+            data.get(content);
+            return content;
+        }
+    }
+
+    @Test
+    public void closesAtOnceWithoutUsers() {
+        FakeReader reader = new FakeReader();
+        reader.closer.close();
+        assertTrue(reader.closer.isClosed());
+        assertEquals(1, reader.closeCount.get());
+
+        reader.closer.close();
+        assertEquals(1, reader.closeCount.get());
+    }
+
+    @Test
+    public void inFlightWriteSurvivesStop() throws Exception {
+        final FakeReader reader   = new FakeReader();
+        final byte[]     original = reader.snapshot();
+        final Frame      frame    = reader.acquireFrame();
+        final File       file     = mFolder.newFile("frame.jpg");
+        assertTrue(frame.retain());
+
+        // Writer holds the retained frame, stop() comes before it starts writing
+        final CountDownLatch             stopped = new CountDownLatch(1);
+        final AtomicReference<Throwable> error   = new AtomicReference<Throwable>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stopped.await();
+                    ImageWriter.writeFrame(frame, file);
+                } catch (Throwable e) {
+                    error.set(e);
+                } finally {
+                    frame.release();
+                }
+            }
+        });
+        writer.start();
+
+        reader.closer.close();
+        assertFalse("Reader closed under a retained frame", reader.closer.isClosed());
+        stopped.countDown();
+        writer.join(5000);
+
+        assertNull(error.get());
+        assertTrue(reader.closer.isClosed());
+        assertEquals(1, reader.closeCount.get());
+        assertArrayEquals(original, readFile(file));
+    }
+
+    @Test
+    public void refusesRetainWhileClosing() {
+        FakeReader reader = new FakeReader();
+        Frame      held   = reader.acquireFrame();
+        assertTrue(held.retain());
+
+        reader.closer.close();
+        assertFalse(reader.acquireFrame().retain());
+
+        held.release();
+        assertTrue(reader.closer.isClosed());
+    }
+
+    @Test
+    public void limitsRetainedFrames() {
+        FakeReader reader = new FakeReader();
+        for (int i = 0; i < MAX_RETAINED; i++) {
+            assertTrue(reader.acquireFrame().retain());
+        }
+        assertFalse(reader.acquireFrame().retain());
+        assertEquals(MAX_RETAINED, reader.closer.getUserCount());
+    }
+
+    @Test
+    public void closesOnceUnderConcurrentRelease() throws Exception {
+        for (int round = 0; round < 200; round++) {
+            final FakeReader reader  = new FakeReader();
+            final Frame[]    frames  = new Frame[MAX_RETAINED];
+            Thread[]         threads = new Thread[MAX_RETAINED];
+            for (int i = 0; i < MAX_RETAINED; i++) {
+                frames[i] = reader.acquireFrame();
+                assertTrue(frames[i].retain());
+                final Frame frame = frames[i];
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        frame.release();
+                    }
+                });
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            reader.closer.close();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(1, reader.closeCount.get());
+            assertEquals(0, reader.closer.getUserCount());
+        }
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] content = new byte[(int) in.length()];
+            in.readFully(content);
+            return content;
+        } finally {
+            in.close();
+        }
+    }
+}
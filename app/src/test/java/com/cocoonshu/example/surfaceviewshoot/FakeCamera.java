@@ -0,0 +1,275 @@
+package com.cocoonshu.example.surfaceviewshoot;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Fake camera
+ * A CameraLifecycle driver with a camera thread and a UI thread of its own,
+ * which opens asynchronously, keeps warm for a random while, sometimes
+ * fails to open or can't reuse a warm camera, and records any breach of
+ * the lifecycle contract instead of throwing on the thread it happens on.
+ */
+class FakeCamera implements CameraLifecycle.Driver<String> {
+
+    static final int ERR_OPEN_FAILED = -1;
+
+    private final ScheduledExecutorService mCameraThread;
+    private final ExecutorService          mUiThread;
+    private final AtomicReference<Thread>  mCameraThreadRef = new AtomicReference<Thread>();
+    private final AtomicInteger            mDevices         = new AtomicInteger();
+    private final AtomicInteger            mOpensInFlight   = new AtomicInteger();
+    private final AtomicInteger            mOpenCount       = new AtomicInteger();
+    private final AtomicInteger            mRestartCount    = new AtomicInteger();
+    private final AtomicReference<String>  mViolation       = new AtomicReference<String>();
+    private final Random                   mRandom          = new Random(0xCA3E8A);
+    private volatile Boolean               mKeptAlive       = null;
+    private volatile boolean               mFailing         = true;
+    private volatile String                mTarget          = null;
+    private CameraLifecycle<String>        mLifecycle       = null;
+
+    FakeCamera() {
+        mCameraThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "FakeCameraThread");
+                mCameraThreadRef.set(thread);
+                return thread;
+            }
+        });
+        mUiThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "FakeUiThread");
+            }
+        });
+    }
+
+    void attach(CameraLifecycle<String> lifecycle) {
+        mLifecycle = lifecycle;
+    }
+
+    @Override
+    public int open(String target) {
+        checkNotOnCameraThread("open");
+        if (mDevices.get() != 0 || mOpensInFlight.get() != 0) {
+            violate("Opened while a camera is open or opening");
+        }
+        mOpenCount.incrementAndGet();
+        if (mFailing && nextInt(20) == 0) {
+            // Like a denied permission, fails before anything is opened
+            mLifecycle.openFailed();
+            return ERR_OPEN_FAILED;
+        }
+        mOpensInFlight.incrementAndGet();
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                mOpensInFlight.decrementAndGet();
+                if (mDevices.incrementAndGet() != 1) {
+                    violate("Two cameras open at once");
+                }
+                mLifecycle.onOpened();
+            }
+        });
+        return CameraHelper.ERR_NO_ERROR;
+    }
+
+    @Override
+    public void resume(String target) {
+        checkOnCameraThread("resume");
+        if (mFailing && nextInt(4) == 0) {
+            mLifecycle.reopen(target); // Warm camera doesn't fit anymore
+        }
+    }
+
+    @Override
+    public void keepWarm() {
+        checkOnCameraThread("keepWarm");
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                mLifecycle.endKeepAlive();
+            }
+        });
+    }
+
+    @Override
+    public void release() {
+        if (mDevices.get() > 0) {
+            Thread.yield(); // Closing a device takes a while, widen the window for racing opens
+            mDevices.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void restart(String target) {
+        if (Thread.currentThread() == mCameraThreadRef.get()) {
+            violate("Parked start restarted on the camera thread");
+        }
+        mRestartCount.incrementAndGet();
+        mLifecycle.start(target);
+    }
+
+    @Override
+    public boolean isKeptAlive() {
+        Boolean keptAlive = mKeptAlive;
+        return keptAlive != null ? keptAlive : nextInt(2) == 0;
+    }
+
+    @Override
+    public void setTarget(String target) {
+        mTarget = target;
+    }
+
+    @Override
+    public void runOnCameraThread(Runnable task) {
+        mCameraThread.execute(guard(task));
+    }
+
+    @Override
+    public void runOnUiThread(Runnable task) {
+        mUiThread.execute(guard(task));
+    }
+
+    /**
+     * Camera taken away, like CameraDevice.StateCallback.onDisconnected()
+     * of the camera which is open, if any
+     */
+    void disconnect() {
+        mCameraThread.execute(guard(new Runnable() {
+            @Override
+            public void run() {
+                if (mDevices.get() > 0) {
+                    mLifecycle.abort();
+                }
+            }
+        }));
+    }
+
+    /**
+     * Stop opening failures and reuse refusals, so the camera settles
+     * @param keptAlive whether stop() keeps the camera warm from now on
+     */
+    void settle(boolean keptAlive) {
+        mFailing   = false;
+        mKeptAlive = keptAlive;
+    }
+
+    /**
+     * Hold the camera thread until the returned latch is counted down
+     */
+    CountDownLatch blockCameraThread() {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mCameraThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        return latch;
+    }
+
+    /**
+     * Wait until the camera and UI threads have nothing left to run, delayed work included
+     */
+    void drain() throws InterruptedException {
+        for (int round = 0; round < 5; round++) {
+            Thread.sleep(10);
+            for (ExecutorService thread : new ExecutorService[] {mCameraThread, mUiThread}) {
+                try {
+                    thread.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                        }
+                    }).get(5, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    violate("Drain failed: " + e);
+                } catch (TimeoutException e) {
+                    violate("Thread stuck");
+                }
+            }
+        }
+    }
+
+    void shutdown() {
+        mCameraThread.shutdownNow();
+        mUiThread.shutdownNow();
+    }
+
+    int getDevices() {
+        return mDevices.get();
+    }
+
+    int getOpensInFlight() {
+        return mOpensInFlight.get();
+    }
+
+    int getOpenCount() {
+        return mOpenCount.get();
+    }
+
+    int getRestartCount() {
+        return mRestartCount.get();
+    }
+
+    String getTarget() {
+        return mTarget;
+    }
+
+    String getViolation() {
+        return mViolation.get();
+    }
+
+    private void schedule(Runnable task) {
+        mCameraThread.schedule(guard(task), nextInt(200), TimeUnit.MICROSECONDS);
+    }
+
+    private Runnable guard(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    violate("Thrown on " + Thread.currentThread().getName() + ": " + e);
+                }
+            }
+        };
+    }
+
+    private void checkOnCameraThread(String call) {
+        if (Thread.currentThread() != mCameraThreadRef.get()) {
+            violate(call + " off the camera thread");
+        }
+    }
+
+    private void checkNotOnCameraThread(String call) {
+        if (Thread.currentThread() == mCameraThreadRef.get()) {
+            violate(call + " on the camera thread");
+        }
+    }
+
+    private void violate(String violation) {
+        mViolation.compareAndSet(null, violation);
+    }
+
+    private int nextInt(int bound) {
+        synchronized (mRandom) {
+            return mRandom.nextInt(bound);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.cocoonshu.example.surfaceviewshoot.benchmark;
+
+import com.cocoonshu.example.surfaceviewshoot.DecodePlan;
+import com.cocoonshu.example.surfaceviewshoot.ImageMath;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ImageMath benchmark
+ * Scale computations run once per capture, the alpha math once per
+ * output pixel, so the latter is measured over a whole 1080p row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageMathBenchmark {
+
+    private static final int ROW_PIXELS = 1080;
+
+    // Sensor sizes from 8MP to 48MP, onto a 1080p pannel
+    private final int[][] mSensorSizes = new int[][] {
+            {3264, 2448}, {4000, 3000}, {4032, 3024}, {5184, 3888}, {8000, 6000}};
+    private int[]         mColors      = null;
+    private int[]         mAlphas      = null;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        mColors = new int[ROW_PIXELS];
+        mAlphas = new int[ROW_PIXELS];
+        for (int i = 0; i < ROW_PIXELS; i++) {
+            mColors[i] = random.nextInt();
+            mAlphas[i] = random.nextInt(256);
+        }
+    }
+
+    @Benchmark
+    public void computeSampleSize(Blackhole blackhole) {
+        for (int[] size : mSensorSizes) {
+            blackhole.consume(ImageMath.computeSampleSize(size[0], size[1], 1920, 1080));
+        }
+    }
+
+    @Benchmark
+    public void scaleImageFill(Blackhole blackhole) {
+        for (int[] size : mSensorSizes) {
+            blackhole.consume(ImageMath.scaleImage((float) size[0], size[1], 1920, 1080, ImageMath.SCALE_MODE_FILL));
+        }
+    }
+
+    @Benchmark
+    public void scaleImageInside(Blackhole blackhole) {
+        for (int[] size : mSensorSizes) {
+            blackhole.consume(ImageMath.scaleImage((float) size[0], size[1], 1920, 1080, ImageMath.SCALE_MODE_INSIDE));
+        }
+    }
+
+    @Benchmark
+    public void planDecode(Blackhole blackhole) {
+        for (int[] size : mSensorSizes) {
+            blackhole.consume(DecodePlan.plan(size[0], size[1], 1920, 1080));
+        }
+    }
+
+    @Benchmark
+    public void mixAlphaToColorRow(Blackhole blackhole) {
+        int[] colors = mColors;
+        int[] alphas = mAlphas;
+        int   mixed  = 0;
+        for (int i = 0; i < ROW_PIXELS; i++) {
+            mixed ^= ImageMath.mixAlphaToColor(colors[i], alphas[i]);
+        }
+        blackhole.consume(mixed);
+    }
+}
@@ -0,0 +1,119 @@
+package com.cocoonshu.example.surfaceviewshoot.benchmark;
+
+import com.cocoonshu.example.surfaceviewshoot.AlphaMask;
+import com.cocoonshu.example.surfaceviewshoot.MaskCompositor;
+import com.cocoonshu.example.surfaceviewshoot.SpanMask;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mask compositor benchmark
+ * Rotate, scale and mask a sensor size capture onto a 1080p pannel with
+ * the dense and the span mask, with one thread and with all cores.
+ * At ROTATION_0 with a full size opaque mask it measures plain copying,
+ * at ROTATION_90 plain rotation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MaskCompositorBenchmark {
+
+    @Param({"4000x3000", "8000x6000"})
+    public String sensorSize;
+
+    @Param({"0", "90"})
+    public int rotation;
+
+    @Param({"1", "0"}) // 0 for all available processors
+    public int threads;
+
+    private MaskCompositor mCompositor  = null;
+    private int[]          mSource      = null;
+    private int            mSrcWidth    = 0;
+    private int            mSrcHeight   = 0;
+    private int[]          mOutput      = null;
+    private int            mDstWidth    = 0;
+    private int            mDstHeight   = 0;
+    private AlphaMask      mAlphaMask   = null;
+    private SpanMask       mSpanMask    = null;
+    private AlphaMask      mOpaqueMask  = null;
+    private int[]          mFullOutput = null;
+
+    @Setup
+    public void setup() {
+        String[] size = sensorSize.split("x");
+        mSrcWidth  = Integer.parseInt(size[0]);
+        mSrcHeight = Integer.parseInt(size[1]);
+        mDstWidth  = rotation == MaskCompositor.ROTATION_90 ? 1080 : 1920;
+        mDstHeight = rotation == MaskCompositor.ROTATION_90 ? 1920 : 1080;
+
+        Random random = new Random(0);
+        mSource = new int[mSrcWidth * mSrcHeight];
+        for (int i = 0; i < mSource.length; i++) {
+            mSource[i] = random.nextInt() | 0xFF000000;
+        }
+        mOutput    = new int[mDstWidth * mDstHeight];
+        mAlphaMask = ReplayHarness.createRoundMask(mDstWidth, mDstHeight);
+        mSpanMask  = SpanMask.compile(mAlphaMask);
+
+        // Full size opaque mask, only moves pixels
+        int   fullWidth  = rotation == MaskCompositor.ROTATION_90 ? mSrcHeight : mSrcWidth;
+        int   fullHeight = rotation == MaskCompositor.ROTATION_90 ? mSrcWidth : mSrcHeight;
+        int[] opaque     = new int[fullWidth * fullHeight];
+        Arrays.fill(opaque, 0xFF000000);
+        mOpaqueMask = AlphaMask.fromArgb(opaque, 0, fullWidth, fullHeight);
+        mFullOutput = new int[fullWidth * fullHeight];
+        mCompositor = threads > 0 ? new MaskCompositor(threads) : new MaskCompositor();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mCompositor.release();
+    }
+
+    @Benchmark
+    public int[] compositeDenseMask() {
+        mCompositor.composite(mSource, mSrcWidth, mSrcHeight, mAlphaMask,
+                mOutput, mDstWidth, mDstHeight, rotation);
+        return mOutput;
+    }
+
+    @Benchmark
+    public int[] compositeSpanMask() {
+        mCompositor.composite(mSource, mSrcWidth, mSrcHeight, mSpanMask,
+                mOutput, mDstWidth, mDstHeight, rotation);
+        return mOutput;
+    }
+
+    @Benchmark
+    public int[] rotateFullSize() {
+        int fullWidth  = mOpaqueMask.getWidth();
+        int fullHeight = mOpaqueMask.getHeight();
+        mCompositor.composite(mSource, mSrcWidth, mSrcHeight, mOpaqueMask,
+                mFullOutput, fullWidth, fullHeight, rotation);
+        return mFullOutput;
+    }
+
+    @Benchmark
+    public SpanMask compileSpanMask() {
+        return SpanMask.compile(mAlphaMask);
+    }
+}
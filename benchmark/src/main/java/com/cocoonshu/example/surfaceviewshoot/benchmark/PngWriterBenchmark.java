@@ -0,0 +1,112 @@
+package com.cocoonshu.example.surfaceviewshoot.benchmark;
+
+import com.cocoonshu.example.surfaceviewshoot.PngWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PNG writer benchmark
+ * Encode a masked 1080p output and a 12MP image, deflating on the caller
+ * thread and on a pool of all cores. The image is a smooth gradient with
+ * noise and a transparent surround, close to a composited capture.
+ *
+ * JPEG is encoded by Bitmap.compress() on device, which has no JVM
+ * counterpart, so it isn't measured here.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class PngWriterBenchmark {
+
+    @Param({"1080x1920", "4000x3000"})
+    public String imageSize;
+
+    @Param({"1", "6"})
+    public int level;
+
+    @Param({"1", "0"}) // 0 for all available processors
+    public int threads;
+
+    private int[]           mPixels   = null;
+    private int             mWidth    = 0;
+    private int             mHeight   = 0;
+    private ExecutorService mExecutor = null;
+
+    @Setup
+    public void setup() {
+        String[] size = imageSize.split("x");
+        mWidth  = Integer.parseInt(size[0]);
+        mHeight = Integer.parseInt(size[1]);
+        mPixels = new int[mWidth * mHeight];
+
+        byte[] alpha = ReplayHarness.createRoundMask(mWidth, mHeight).getAlpha();
+        int    seed  = 1;
+        for (int y = 0; y < mHeight; y++) {
+            for (int x = 0; x < mWidth; x++) {
+                seed = seed * 1103515245 + 12345;
+                int noise = (seed >>> 28) - 8;
+                int r     = clamp(x * 255 / mWidth + noise);
+                int g     = clamp(y * 255 / mHeight + noise);
+                int b     = clamp(128 + noise);
+                mPixels[y * mWidth + x] = ((alpha[y * mWidth + x] & 0xFF) << 24) | (r << 16) | (g << 8) | b;
+            }
+        }
+
+        int threadCount = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        mExecutor = threadCount > 1 ? Executors.newFixedThreadPool(threadCount) : null;
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        CountingOutputStream out    = new CountingOutputStream();
+        PngWriter            writer = new PngWriter(out, mWidth, mHeight, level, mExecutor);
+        writer.writeRows(mPixels, 0, mHeight);
+        writer.finish();
+        return out.count;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int oneByte) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            count += length;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.cocoonshu.example.surfaceviewshoot.benchmark;
+
+import com.cocoonshu.example.surfaceviewshoot.AlphaMask;
+import com.cocoonshu.example.surfaceviewshoot.ByteArrayPool;
+import com.cocoonshu.example.surfaceviewshoot.CaptureLatencyStats;
+import com.cocoonshu.example.surfaceviewshoot.CapturePipeline;
+import com.cocoonshu.example.surfaceviewshoot.CaptureStages;
+import com.cocoonshu.example.surfaceviewshoot.CaptureTimeline;
+import com.cocoonshu.example.surfaceviewshoot.CaptureTransform;
+import com.cocoonshu.example.surfaceviewshoot.DecodePlan;
+import com.cocoonshu.example.surfaceviewshoot.FileFrameSource;
+import com.cocoonshu.example.surfaceviewshoot.Frame;
+import com.cocoonshu.example.surfaceviewshoot.FrameSource;
+import com.cocoonshu.example.surfaceviewshoot.MaskCompositor;
+import com.cocoonshu.example.surfaceviewshoot.PipelineStage;
+import com.cocoonshu.example.surfaceviewshoot.PngWriter;
+import com.cocoonshu.example.surfaceviewshoot.SpanMask;
+import com.cocoonshu.example.surfaceviewshoot.YuvConverter;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Replay harness
+ * Run recorded frames through decode, composite and write stages on a
+ * headless JVM, assembled by the same CaptureStages as CameraHelper on a
+ * device, and report sustained throughput and per stage latency.
+ * JPEG is decoded by ImageIO instead of BitmapFactory, subsampled by the
+ * DecodePlan a device would use, YUV is converted by the same YuvConverter
+ * as on a device.
+ *
+ * Usage: ReplayHarness <frame dir> [fps] [frame count] [output dir or -]
+ */
+public class ReplayHarness {
+
+    private static final int              OUTPUT_WIDTH          = 1080;
+    private static final int              OUTPUT_HEIGHT         = 1920;
+    private static final CaptureTransform TRANSFORM             = new CaptureTransform(MaskCompositor.ROTATION_90, false);
+    private static final long             COMPLETION_TIMEOUT_MS = 10 * 60 * 1000;
+
+    private final ByteArrayPool       mBufferPool   = new ByteArrayPool();
+    private final CaptureLatencyStats mLatencyStats = new CaptureLatencyStats();
+    private final CapturePipeline     mPipeline     = new CapturePipeline();
+    private final MaskCompositor      mCompositor   = new MaskCompositor();
+    private final YuvConverter        mConverter    = new YuvConverter();
+    private final SpanMask            mMask         = SpanMask.compile(createRoundMask(OUTPUT_WIDTH, OUTPUT_HEIGHT));
+    private final AtomicLong          mWrittenBytes = new AtomicLong();
+    private final File                mOutputDir;
+
+    private CaptureStages<Shot, Shot, Shot> mCaptureStages = null;
+    private PipelineStage<Shot, Shot>       mWriteStage    = null;
+
+    /**
+     * A frame on its way through the stages
+     */
+    private static class Shot implements CaptureStages.Shot {
+        final CaptureTimeline timeline;
+        final int             format;
+        final byte[]          data;
+        final int             length;
+        final int             width;
+        final int             height;
+        int[]                 pixels;
+        int                   pixelWidth;
+        int                   pixelHeight;
+
+        Shot(CaptureTimeline timeline, int format, byte[] data, int length, int width, int height) {
+            this.timeline = timeline;
+            this.format   = format;
+            this.data     = data;
+            this.length   = length;
+            this.width    = width;
+            this.height   = height;
+        }
+
+        @Override
+        public CaptureTimeline getTimeline() {
+            return timeline;
+        }
+    }
+
+    public ReplayHarness(File outputDir) {
+        mOutputDir = outputDir;
+
+        PipelineStage.Processor<Shot, Shot> decoder = new PipelineStage.Processor<Shot, Shot>() {
+            @Override
+            public Shot process(Shot shot) throws Exception {
+                try {
+                    decode(shot);
+                } finally {
+                    mBufferPool.release(shot.data);
+                }
+                return shot;
+            }
+        };
+
+        PipelineStage.Processor<Shot, Shot> compositor = new PipelineStage.Processor<Shot, Shot>() {
+            @Override
+            public Shot process(Shot shot) throws Exception {
+                int[] output = new int[OUTPUT_WIDTH * OUTPUT_HEIGHT];
+                mCompositor.composite(shot.pixels, shot.pixelWidth, shot.pixelHeight,
+                        mMask, output, OUTPUT_WIDTH, OUTPUT_HEIGHT, TRANSFORM);
+                shot.pixels      = output;
+                shot.pixelWidth  = OUTPUT_WIDTH;
+                shot.pixelHeight = OUTPUT_HEIGHT;
+                shot.timeline.mark(CaptureTimeline.POINT_COMPOSITED);
+                return shot;
+            }
+        };
+
+        mCaptureStages = new CaptureStages<Shot, Shot, Shot>(mPipeline, decoder, compositor,
+                new CaptureStages.Listener<Shot, Shot>() {
+            @Override
+            public void onDropped(Shot shot) {
+                mBufferPool.release(shot.data);
+            }
+
+            @Override
+            public void onDecodeFailed(Shot shot, Exception error) {
+                System.err.println("Failed to decode frame: " + error);
+            }
+
+            @Override
+            public void onCompositeFailed(Shot shot, Exception error) {
+                System.err.println("Failed to composite frame: " + error);
+            }
+        });
+
+        mWriteStage = new PipelineStage<Shot, Shot>(CaptureStages.NAME_WRITE_STAGE, CaptureStages.WRITE_QUEUE_CAPACITY,
+                CaptureStages.WRITE_POLICY, new PipelineStage.Processor<Shot, Shot>() {
+            @Override
+            public Shot process(Shot shot) throws Exception {
+                write(shot);
+                shot.timeline.mark(CaptureTimeline.POINT_WRITTEN);
+                mLatencyStats.record(shot.timeline);
+                return null;
+            }
+        });
+
+        mCaptureStages.getCompositeStage().then(mWriteStage);
+        mPipeline.addStage(mWriteStage);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args[0].isEmpty()) {
+            System.err.println("Usage: ReplayHarness <frame dir> [fps] [frame count] [output dir or -]");
+            System.exit(1);
+        }
+
+        File       frameDir   = new File(args[0]);
+        double     fps        = args.length > 1 ? Double.parseDouble(args[1]) : 30;
+        int        frameCount = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        File       outputDir  = args.length > 3 && !"-".equals(args[3]) ? new File(args[3]) : null;
+        List<File> files      = FileFrameSource.listFrameFiles(frameDir);
+        if (files.isEmpty()) {
+            System.err.println("No *.jpg, *.jpeg or *_WxH.yuv in " + frameDir);
+            System.exit(1);
+        }
+
+        ReplayHarness   harness = new ReplayHarness(outputDir);
+        FileFrameSource source  = new FileFrameSource(files, fps, frameCount);
+        System.out.println(harness.run(source));
+    }
+
+    /**
+     * Replay source through the pipeline until every frame is written or dropped
+     * @return report of the run
+     */
+    public String run(FileFrameSource source) throws InterruptedException {
+        mPipeline.start();
+        long startTime = System.nanoTime();
+        source.start(new FrameSource.Listener() {
+            @Override
+            public void onFrameAvailable(Frame frame) {
+                // Same hand-off as CameraHelper: copy out of the frame and queue without blocking
+                frame.getTimeline().mark(CaptureTimeline.POINT_IMAGE_AVAILABLE);
+                ByteBuffer frameData = frame.getData();
+                int        length    = frameData.remaining();
+                byte[]     data      = mBufferPool.acquire(length);
+                frameData.get(data, 0, length);
+                mCaptureStages.accept(new Shot(frame.getTimeline(), frame.getFormat(), data, length,
+                        frame.getWidth(), frame.getHeight()));
+            }
+        });
+        source.awaitCompletion(COMPLETION_TIMEOUT_MS);
+        awaitDrained(source);
+        long elapsedNs = System.nanoTime() - startTime;
+        mPipeline.stop();
+        mCompositor.release();
+        mConverter.release();
+
+        long emitted = source.getEmittedCount();
+        long written = mWriteStage.getProcessedCount();
+        return String.format("Replayed %d frames of %d files in %.2fs, written %d (%.2f fps), dropped %d, %.1fMB out\n",
+                emitted, source.getFrameFileCount(), elapsedNs / 1e9, written, written * 1e9 / elapsedNs,
+                mCaptureStages.getDecodeStage().getDroppedCount(), mWrittenBytes.get() / 1048576.0)
+                + mMask + "\n"
+                + mPipeline.dump() + "\n"
+                + mLatencyStats.dump();
+    }
+
+    /**
+     * Wait until every emitted frame is written, dropped or failed
+     */
+    private void awaitDrained(FileFrameSource source) throws InterruptedException {
+        while (true) {
+            PipelineStage<Shot, Shot> decodeStage    = mCaptureStages.getDecodeStage();
+            PipelineStage<Shot, Shot> compositeStage = mCaptureStages.getCompositeStage();
+            long done = mWriteStage.getProcessedCount() + decodeStage.getDroppedCount()
+                      + decodeStage.getFailedCount() + compositeStage.getFailedCount() + mWriteStage.getFailedCount();
+            if (done >= source.getEmittedCount()) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private void decode(Shot shot) throws IOException {
+        if (shot.format == Frame.FORMAT_YUV_420_888) {
+            shot.pixels      = new int[shot.width * shot.height];
+            mConverter.convertI420(shot.data, shot.width, shot.height, shot.pixels, 0, shot.width);
+            shot.pixelWidth  = shot.width;
+            shot.pixelHeight = shot.height;
+            return;
+        }
+
+        // Subsample like inSampleSize of the plan, the density scale is left to the compositor
+        DecodePlan plan = DecodePlan.plan(shot.width, shot.height,
+                TRANSFORM.getTransformedWidth(OUTPUT_WIDTH, OUTPUT_HEIGHT),
+                TRANSFORM.getTransformedHeight(OUTPUT_WIDTH, OUTPUT_HEIGHT));
+        BufferedImage image = decodeJpeg(shot.data, shot.length, plan.getSampleSize());
+        shot.pixelWidth  = image.getWidth();
+        shot.pixelHeight = image.getHeight();
+        shot.pixels      = image.getRGB(0, 0, shot.pixelWidth, shot.pixelHeight, null, 0, shot.pixelWidth);
+    }
+
+    private static BufferedImage decodeJpeg(byte[] data, int length, int sampleSize) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data, 0, length));
+        if (input == null) {
+            throw new IOException("Can't decode frame");
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Can't decode frame");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private void write(Shot shot) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(mOutputDir == null
+                ? null
+                : new BufferedOutputStream(new FileOutputStream(
+                        new File(mOutputDir, String.format("REPLAY_%06d.png", mWriteStage.getProcessedCount()))),
+                        64 * 1024));
+        try {
+            PngWriter writer = new PngWriter(counter, shot.pixelWidth, shot.pixelHeight, PngWriter.DEFAULT_LEVEL);
+            writer.writeRows(shot.pixels, 0, shot.pixelHeight);
+            writer.finish();
+        } finally {
+            counter.close();
+        }
+        mWrittenBytes.addAndGet(counter.count);
+    }
+
+    /**
+     * Opaque ellipse with a soft edge on transparent, like a typical overlay
+     */
+    static AlphaMask createRoundMask(int width, int height) {
+        int[]  argb    = new int[width * height];
+        double radiusX = width * 0.45;
+        double radiusY = height * 0.35;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double dx       = (x - width / 2.0) / radiusX;
+                double dy       = (y - height / 2.0) / radiusY;
+                double distance = (1.0 - Math.sqrt(dx * dx + dy * dy)) * radiusY;
+                int    alpha    = (int) Math.max(0, Math.min(255, distance * 64));
+                argb[y * width + x] = alpha << 24;
+            }
+        }
+        return AlphaMask.fromArgb(argb, 0, width, height);
+    }
+
+    /**
+     * Count bytes written, optionally passing them on
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        long                       count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            count++;
+            if (mOut != null) {
+                mOut.write(oneByte);
+            }
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            count += length;
+            if (mOut != null) {
+                mOut.write(buffer, offset, length);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mOut != null) {
+                mOut.close();
+            }
+        }
+    }
+}
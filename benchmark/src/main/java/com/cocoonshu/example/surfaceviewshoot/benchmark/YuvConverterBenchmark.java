@@ -0,0 +1,132 @@
+package com.cocoonshu.example.surfaceviewshoot.benchmark;
+
+import com.cocoonshu.example.surfaceviewshoot.YuvConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+/**
+ * YUV converter benchmark
+ * Convert a sensor size YUV capture to ARGB, as planar I420 and as the
+ * semi-planar padded layout most camera HALs hand out, against decoding
+ * the same picture from JPEG. JPEG is decoded by ImageIO here, standing in
+ * for BitmapFactory which has no JVM counterpart.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class YuvConverterBenchmark {
+
+    private static final int ROW_PADDING = 64;
+
+    @Param({"1920x1080", "4000x3000"})
+    public String sensorSize;
+
+    @Param({"1", "0"}) // 0 for all available processors
+    public int threads;
+
+    private YuvConverter        mConverter        = null;
+    private int                 mWidth            = 0;
+    private int                 mHeight           = 0;
+    private byte[]              mI420             = null;
+    private byte[]              mSemiPlanar       = null;
+    private YuvConverter.Layout mSemiPlanarLayout = null;
+    private byte[]              mJpeg             = null;
+    private int[]               mPixels           = null;
+
+    @Setup
+    public void setup() throws IOException {
+        String[] size = sensorSize.split("x");
+        mWidth  = Integer.parseInt(size[0]);
+        mHeight = Integer.parseInt(size[1]);
+        mPixels = new int[mWidth * mHeight];
+
+        // Smooth gradients with noise, roughly as compressible as a photo
+        int chromaWidth  = (mWidth + 1) / 2;
+        int chromaHeight = (mHeight + 1) / 2;
+        int seed         = 1;
+        mI420 = new byte[mWidth * mHeight + 2 * chromaWidth * chromaHeight];
+        for (int y = 0; y < mHeight; y++) {
+            for (int x = 0; x < mWidth; x++) {
+                seed = seed * 1103515245 + 12345;
+                mI420[y * mWidth + x] = (byte) (16 + (x + y) * 219 / (mWidth + mHeight) + (seed >>> 29));
+            }
+        }
+        int uOffset = mWidth * mHeight;
+        int vOffset = uOffset + chromaWidth * chromaHeight;
+        for (int y = 0; y < chromaHeight; y++) {
+            for (int x = 0; x < chromaWidth; x++) {
+                mI420[uOffset + y * chromaWidth + x] = (byte) (64 + x * 128 / chromaWidth);
+                mI420[vOffset + y * chromaWidth + x] = (byte) (64 + y * 128 / chromaHeight);
+            }
+        }
+
+        // Same picture as padded NV21, V and U interleaved
+        int yRowStride  = mWidth + ROW_PADDING;
+        int uvRowStride = chromaWidth * 2 + ROW_PADDING;
+        int uvOffset    = yRowStride * mHeight;
+        mSemiPlanar = new byte[uvOffset + uvRowStride * chromaHeight];
+        for (int y = 0; y < mHeight; y++) {
+            System.arraycopy(mI420, y * mWidth, mSemiPlanar, y * yRowStride, mWidth);
+        }
+        for (int y = 0; y < chromaHeight; y++) {
+            for (int x = 0; x < chromaWidth; x++) {
+                mSemiPlanar[uvOffset + y * uvRowStride + x * 2]     = mI420[vOffset + y * chromaWidth + x];
+                mSemiPlanar[uvOffset + y * uvRowStride + x * 2 + 1] = mI420[uOffset + y * chromaWidth + x];
+            }
+        }
+        mSemiPlanarLayout = new YuvConverter.Layout(0, yRowStride, uvOffset + 1, uvOffset, uvRowStride, 2);
+
+        mConverter = threads > 0 ? new YuvConverter(threads) : new YuvConverter();
+        mConverter.convertI420(mI420, mWidth, mHeight, mPixels, 0, mWidth);
+        BufferedImage         image = new BufferedImage(mWidth, mHeight, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream jpeg  = new ByteArrayOutputStream();
+        image.setRGB(0, 0, mWidth, mHeight, mPixels, 0, mWidth);
+        ImageIO.write(image, "jpg", jpeg);
+        mJpeg = jpeg.toByteArray();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mConverter.release();
+    }
+
+    @Benchmark
+    public int[] convertI420() {
+        mConverter.convertI420(mI420, mWidth, mHeight, mPixels, 0, mWidth);
+        return mPixels;
+    }
+
+    @Benchmark
+    public int[] convertSemiPlanar() {
+        mConverter.convert(mSemiPlanar, mSemiPlanarLayout, mWidth, mHeight, mPixels, 0, mWidth);
+        return mPixels;
+    }
+
+    @Benchmark
+    public int[] decodeJpeg() throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(mJpeg));
+        return image.getRGB(0, 0, mWidth, mHeight, mPixels, 0, mWidth);
+    }
+}